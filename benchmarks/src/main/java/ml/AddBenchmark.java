@@ -0,0 +1,206 @@
+package ml;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of adding rows to a model, by one thread and by as many threads as there are cores.
+ * The model is replaced after every iteration and a stripe is cleared when it holds more than {@link #MAX_STRIPE_BYTES},
+ * so the rows do not fill the heap. The columns keep their capacity when they are cleared, so the growth of the columns
+ * is measured up to that size and the plain appends after it.
+ *
+ * @author mwe
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class AddBenchmark
+{
+	/** The number of features including the date. */
+	@Param({"2", "10", "50"})
+	int nFeatures;
+	
+	/** The number of rows of a batch for {@link #addAll(Batch)}. */
+	static final int BATCH_SIZE = 1000;
+	
+	/** The number of bytes of the values of a stripe above which it is cleared. */
+	static final long MAX_STRIPE_BYTES = 64L << 20;
+	
+	/** The model the rows are added to. */
+	MLModel model;
+	
+	/** The number of rows of a stripe above which it is cleared. */
+	int maxStripeRows;
+	
+	/**
+	 * The features of one thread, every thread adds the same rows.
+	 */
+	@State(Scope.Thread)
+	public static class Features
+	{
+		/** The features of the rows. */
+		Map<String, Object>[] features;
+		
+		/** The index of the next row. */
+		int next;
+		
+		/** The stripe of the thread, computed like {@link MLModel#add(Map, Object)} does. */
+		int stripe;
+		
+		/**
+		 * Creates the features.
+		 *
+		 * @param benchmark the benchmark with the number of features
+		 */
+		@SuppressWarnings("unchecked")
+		@Setup(Level.Trial)
+		public void setUp(AddBenchmark benchmark)
+		{
+			Random random = new Random(BenchmarkModels.SEED);
+			this.features = new Map[1024];
+			for(int i = 0; i < features.length; i++)
+			{
+				features[i] = BenchmarkModels.features(i, benchmark.nFeatures, random);
+			}
+			this.stripe = (int) (Thread.currentThread().getId() % MLModel.N_STRIPES);
+		}
+		
+		/**
+		 * Gets the features of the next row.
+		 *
+		 * @return the features
+		 */
+		Map<String, Object> next()
+		{
+			return features[next++ & (features.length - 1)];
+		}
+	}
+	
+	/**
+	 * An encoded batch of one thread, like the batches of <tt>ml.addFromLabel</tt>.
+	 */
+	@State(Scope.Thread)
+	public static class Batch
+	{
+		/** The encoded rows. */
+		ColumnStore rows;
+		
+		/** The stripe of the thread, computed like {@link MLModel#addAll(ColumnStore)} does. */
+		int stripe;
+		
+		/**
+		 * Creates the batch.
+		 *
+		 * @param benchmark the benchmark with the number of features
+		 */
+		@Setup(Level.Trial)
+		public void setUp(AddBenchmark benchmark)
+		{
+			this.rows 	= BenchmarkModels.rows(BATCH_SIZE, benchmark.nFeatures);
+			this.stripe = (int) (Thread.currentThread().getId() % MLModel.N_STRIPES);
+		}
+	}
+	
+	/**
+	 * Creates a new model.
+	 */
+	@Setup(Level.Iteration)
+	public void setUp()
+	{
+		this.model 			= BenchmarkModels.linReg(nFeatures, "cholesky", 0);
+		this.maxStripeRows 	= (int) (MAX_STRIPE_BYTES / ((nFeatures + 1) * Double.BYTES));
+	}
+	
+	/**
+	 * Removes the model.
+	 */
+	@TearDown(Level.Iteration)
+	public void tearDown()
+	{
+		MLModel.remove(model.name);
+	}
+	
+	/**
+	 * Adds one row from one thread.
+	 *
+	 * @param features the features of the thread
+	 * @return the encoded row
+	 */
+	@Benchmark
+	@Threads(1)
+	public double[] add(Features features)
+	{
+		double[] row = model.add(features.next(), 1.0d);
+		bound(features.stripe);
+		return row;
+	}
+	
+	/**
+	 * Adds one row from every core at once, the threads contend for the stripes.
+	 *
+	 * @param features the features of the thread
+	 * @return the encoded row
+	 */
+	@Benchmark
+	@Threads(Threads.MAX)
+	public double[] addContended(Features features)
+	{
+		double[] row = model.add(features.next(), 1.0d);
+		bound(features.stripe);
+		return row;
+	}
+	
+	/**
+	 * Adds an encoded batch from every core at once, the path of <tt>ml.addFromLabel</tt>.
+	 * The score is in batches, multiply it with {@link #BATCH_SIZE} for rows.
+	 *
+	 * @param batch the batch of the thread
+	 */
+	@Benchmark
+	@Threads(Threads.MAX)
+	public void addAll(Batch batch)
+	{
+		model.addAll(batch.rows);
+		bound(batch.stripe);
+	}
+	
+	/**
+	 * Clears a stripe that has grown above {@link #maxStripeRows}.
+	 * The size is read without the lock, it is only a hint and the stripe is cleared under the lock.
+	 *
+	 * @param stripe the index of the stripe
+	 */
+	private void bound(int stripe)
+	{
+		if(model.stripes[stripe].size() < maxStripeRows) return;
+		
+		model.stripeLocks[stripe].lock();
+		try
+		{
+			model.stripes[stripe].clear();
+		}
+		finally
+		{
+			model.stripeLocks[stripe].unlock();
+		}
+	}
+}
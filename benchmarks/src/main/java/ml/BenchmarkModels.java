@@ -0,0 +1,194 @@
+package ml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Creates the models and the synthetic rows the benchmarks run on.
+ * A model has the numeric feature <tt>date</tt> in the first column, like the models of the procedures, followed by numeric features <tt>f1</tt> to <tt>fn</tt>.
+ * The label is a linear function of the features plus noise, so every solver converges to the same theta values.
+ *
+ * @author mwe
+ */
+final class BenchmarkModels
+{
+	/** The first date of the synthetic rows. */
+	static final long FIRST_EPOCH_DAY = 10957;
+	
+	/** The number of different dates of the synthetic rows, the dates repeat after ten years. */
+	static final int DAYS = 3650;
+	
+	/** The seed of the random numbers, every run of a benchmark sees the same rows. */
+	static final long SEED = 42;
+	
+	/** The number of the next model, the names of the models have to be unique. */
+	private static int modelCount = 0;
+	
+	/**
+	 * Not instantiable.
+	 */
+	private BenchmarkModels()
+	{
+	}
+	
+	/**
+	 * Creates the types of a model with the date and numeric features.
+	 *
+	 * @param nFeatures the number of features including the date
+	 * @return the Map of feature names and data types in column order
+	 */
+	static Map<String, String> types(int nFeatures)
+	{
+		Map<String, String> types = new LinkedHashMap<>();
+		types.put("date", "numeric");
+		for(int j = 1; j < nFeatures; j++)
+		{
+			types.put("f" + j, "numeric");
+		}
+		return types;
+	}
+	
+	/**
+	 * Creates a Linear Regression model with a unique name.
+	 *
+	 * @param nFeatures the number of features including the date
+	 * @param solver the name of the solver
+	 * @param iter the number of iterations for the iterative solvers
+	 * @return the model
+	 */
+	static Nd4jLinReg linReg(int nFeatures, String solver, long iter)
+	{
+		Map<String, Object> params = new HashMap<>();
+		params.put("theta", new ArrayList<>(Collections.nCopies(nFeatures + 1, 0.0d)));
+		params.put("alpha", 0.01d);
+		params.put("iter", iter);
+		params.put("solver", solver);
+		
+		//Run all iterations, the benchmarks compare the cost of an iteration and not the convergence
+		params.put("tolerance", 0.0d);
+		
+		return new Nd4jLinReg(nextName("linreg"), types(nFeatures), params, null, false);
+	}
+	
+	/**
+	 * Gets a unique name for a model.
+	 *
+	 * @param prefix the prefix of the name
+	 * @return the name
+	 */
+	static synchronized String nextName(String prefix)
+	{
+		return "benchmark-" + prefix + "-" + (modelCount++);
+	}
+	
+	/**
+	 * Gets the date of a row.
+	 *
+	 * @param i the index of the row
+	 * @return the date in the format yyyyMMdd
+	 */
+	static double date(int i)
+	{
+		return DateEncoder.toDate(FIRST_EPOCH_DAY + i % DAYS);
+	}
+	
+	/**
+	 * Creates encoded rows with the label in column 0, the date in column 1 and the numeric features after it.
+	 *
+	 * @param nRows the number of rows
+	 * @param nFeatures the number of features including the date
+	 * @return the ColumnStore with the rows
+	 */
+	static ColumnStore rows(int nRows, int nFeatures)
+	{
+		Random random 	= new Random(SEED);
+		ColumnStore rows = new ColumnStore(nFeatures + 1);
+		double[] row 	= new double[nFeatures + 1];
+		for(int i = 0; i < nRows; i++)
+		{
+			row[1] = date(i);
+			double label = 100.0d - 0.01d * (i % DAYS);
+			for(int j = 2; j <= nFeatures; j++)
+			{
+				row[j] = random.nextGaussian();
+				label += j * row[j];
+			}
+			row[0] = label + random.nextGaussian();
+			rows.add(row);
+		}
+		return rows;
+	}
+	
+	/**
+	 * Creates the features of a row as Map, like they are given to <tt>ml.add</tt> and <tt>ml.score</tt>.
+	 *
+	 * @param i the index of the row
+	 * @param nFeatures the number of features including the date
+	 * @param random the random numbers for the numeric features
+	 * @return the Map of feature names and values
+	 */
+	static Map<String, Object> features(int i, int nFeatures, Random random)
+	{
+		Map<String, Object> features = new HashMap<>();
+		features.put("date", (long) date(i));
+		for(int j = 1; j < nFeatures; j++)
+		{
+			features.put("f" + j, random.nextGaussian());
+		}
+		return features;
+	}
+	
+	/**
+	 * Creates the features of rows as Lists, like they are given to <tt>ml.predict</tt>.
+	 *
+	 * @param nRows the number of rows
+	 * @param nFeatures the number of features including the date
+	 * @return the Map of feature names and their values for all rows
+	 */
+	static Map<String, List<Object>> featureLists(int nRows, int nFeatures)
+	{
+		Random random = new Random(SEED);
+		Map<String, List<Object>> features = new LinkedHashMap<>();
+		for(String featureName : types(nFeatures).keySet())
+		{
+			features.put(featureName, new ArrayList<>(nRows));
+		}
+		for(int i = 0; i < nRows; i++)
+		{
+			for(Map.Entry<String, Object> entry : features(i, nFeatures, random).entrySet())
+			{
+				features.get(entry.getKey()).add(entry.getValue());
+			}
+		}
+		return features;
+	}
+	
+	/**
+	 * Creates the features of rows as arrays in column order, like they are given to {@link MLModel#predictBatch(List)}.
+	 *
+	 * @param nRows the number of rows
+	 * @param nFeatures the number of features including the date
+	 * @return the List of feature arrays
+	 */
+	static List<Object[]> featureArrays(int nRows, int nFeatures)
+	{
+		Random random = new Random(SEED);
+		List<Object[]> rows = new ArrayList<>(nRows);
+		for(int i = 0; i < nRows; i++)
+		{
+			Object[] row = new Object[nFeatures];
+			row[0] = (long) date(i);
+			for(int j = 1; j < nFeatures; j++)
+			{
+				row[j] = random.nextGaussian();
+			}
+			rows.add(row);
+		}
+		return rows;
+	}
+}
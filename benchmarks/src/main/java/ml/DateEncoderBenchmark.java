@@ -0,0 +1,94 @@
+package ml;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the encoding of a column of dates by the DateEncoder against the former encoding, that formatted every date
+ * as String and parsed it to a LocalDate to count the days to the current day.
+ *
+ * @author mwe
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DateEncoderBenchmark
+{
+	/** The number of dates. */
+	@Param({"1000", "1000000"})
+	int size;
+	
+	/** The dates in the format yyyyMMdd. */
+	double[] dates;
+	
+	/** The encoded dates, overwritten by every invocation. */
+	double[] encoded;
+	
+	/** The encoder with the current day as reference day. */
+	DateEncoder encoder;
+	
+	/** The format of the dates for the former encoding. */
+	DateTimeFormatter formatter;
+	
+	/**
+	 * Creates the dates.
+	 */
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		this.dates 		= new double[size];
+		this.encoded 	= new double[size];
+		for(int i = 0; i < size; i++)
+		{
+			dates[i] = BenchmarkModels.date(i);
+		}
+		this.encoder 	= DateEncoder.today();
+		this.formatter 	= DateTimeFormatter.ofPattern("yyyyMMdd");
+	}
+	
+	/**
+	 * Encodes the dates with the DateEncoder.
+	 *
+	 * @return the encoded dates
+	 */
+	@Benchmark
+	public double[] encode()
+	{
+		System.arraycopy(dates, 0, encoded, 0, size);
+		encoder.encode(encoded, 0, size);
+		return encoded;
+	}
+	
+	/**
+	 * Encodes the dates like the former <tt>calcDateDiff</tt> of Nd4jLinReg did, including the current day that it read for every date.
+	 *
+	 * @return the encoded dates
+	 */
+	@Benchmark
+	public double[] parse()
+	{
+		for(int i = 0; i < size; i++)
+		{
+			encoded[i] = ChronoUnit.DAYS.between(LocalDate.parse(String.valueOf((long) dates[i]), formatter), LocalDate.now());
+		}
+		return encoded;
+	}
+}
@@ -0,0 +1,93 @@
+package ml;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the training of a recurrent network, one epoch per invocation, on the time series of the Dl4jRNN tests.
+ * The time includes building the sequences and the normalization of the training, which runs once per training and not per epoch.
+ *
+ * @author mwe
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class Dl4jRNNBenchmark
+{
+	/** The number of rows of the time series. */
+	@Param({"200"})
+	int rows;
+	
+	/** The number of hidden units. */
+	@Param({"10", "50"})
+	long hidden;
+	
+	/** The model that is trained. */
+	Dl4jRNN model;
+	
+	/**
+	 * Creates the model and adds the time series.
+	 */
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		Map<String, String> types = new LinkedHashMap<>();
+		types.put("date", "numeric");
+		
+		Map<String, Object> params = new HashMap<>();
+		params.put("alpha", 0.2d);
+		params.put("epochs", 1L);
+		params.put("hidden", hidden);
+		
+		this.model = new Dl4jRNN(BenchmarkModels.nextName("rnn"), types, params, null, true);
+		ColumnStore series = new ColumnStore(2);
+		for(int i = 1; i <= rows; i++)
+		{
+			series.add(new double[]{100 + i * 50, i});
+		}
+		model.addAll(series);
+	}
+	
+	/**
+	 * Removes the model.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		MLModel.remove(model.name);
+	}
+	
+	/**
+	 * Trains the model for one epoch.
+	 *
+	 * @return the score of the network
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws InterruptedException if the training has been cancelled
+	 */
+	@Benchmark
+	public double trainEpoch() throws IOException, InterruptedException
+	{
+		model.trainExclusive();
+		return model.net.score();
+	}
+}
@@ -0,0 +1,161 @@
+package ml;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the predictions of a trained Linear Regression model: single rows with <tt>ml.score</tt> and <tt>ml.predict</tt>
+ * and batches with <tt>ml.predict</tt> and the batches of <tt>ml.predictAndWrite</tt>.
+ * The batch benchmarks report the time per batch, divide it by <tt>batchSize</tt> for the time per row.
+ *
+ * @author mwe
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PredictBenchmark
+{
+	/** The number of rows the model is trained on. */
+	static final int TRAIN_ROWS = 10000;
+	
+	/** The number of features including the date. */
+	@Param({"2", "10", "50"})
+	int nFeatures;
+	
+	/** The number of rows of a batch. */
+	@Param({"100", "10000"})
+	int batchSize;
+	
+	/** The trained model. */
+	Nd4jLinReg model;
+	
+	/** The features of one row as Map. */
+	Map<String, Object> row;
+	
+	/** The features of one row as Lists. */
+	Map<String, List<Object>> rowLists;
+	
+	/** The features of a batch as Lists. */
+	Map<String, List<Object>> batchLists;
+	
+	/** The features of a batch as arrays. */
+	List<Object[]> batchArrays;
+	
+	/**
+	 * Creates and trains the model and creates the features.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws InterruptedException if the training has been cancelled
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, InterruptedException
+	{
+		this.model = BenchmarkModels.linReg(nFeatures, "cholesky", 0);
+		model.addAll(BenchmarkModels.rows(TRAIN_ROWS, nFeatures));
+		model.trainExclusive();
+		
+		this.row 			= BenchmarkModels.features(0, nFeatures, new Random(BenchmarkModels.SEED));
+		this.rowLists 		= BenchmarkModels.featureLists(1, nFeatures);
+		this.batchLists 	= BenchmarkModels.featureLists(batchSize, nFeatures);
+		this.batchArrays 	= BenchmarkModels.featureArrays(batchSize, nFeatures);
+	}
+	
+	/**
+	 * Removes the model.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		MLModel.remove(model.name);
+	}
+	
+	/**
+	 * Predicts one row with <tt>ml.score</tt>.
+	 *
+	 * @return the prediction
+	 */
+	@Benchmark
+	public double score()
+	{
+		return model.score(row);
+	}
+	
+	/**
+	 * Predicts one row with <tt>ml.predict</tt> and reads its prediction.
+	 *
+	 * @return the prediction
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws InterruptedException the interrupted exception
+	 */
+	@Benchmark
+	public Object predict() throws IOException, InterruptedException
+	{
+		return model.predict(rowLists).findFirst().map(result -> result.get(PredictionMap.PREDICTION)).orElse(null);
+	}
+	
+	/**
+	 * Predicts a batch with <tt>ml.predict</tt> and reads every predicted row.
+	 *
+	 * @param blackhole the sink of the rows
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws InterruptedException the interrupted exception
+	 */
+	@Benchmark
+	public void predictBatchStream(Blackhole blackhole) throws IOException, InterruptedException
+	{
+		model.predict(batchLists).forEach(result -> blackhole.consume(result.get(PredictionMap.PREDICTION)));
+	}
+	
+	/**
+	 * Predicts a batch like <tt>ml.predictAndWrite</tt> does.
+	 *
+	 * @return the predictions
+	 */
+	@Benchmark
+	public double[] predictBatch()
+	{
+		return model.predictBatch(batchArrays);
+	}
+	
+	/**
+	 * Predicts the rows of a batch one by one with <tt>ml.score</tt>, the alternative to {@link #predictBatch()}.
+	 *
+	 * @param blackhole the sink of the predictions
+	 */
+	@Benchmark
+	public void scoreBatch(Blackhole blackhole)
+	{
+		Map<String, Object> features = new HashMap<>();
+		List<String> featureNames = model.getFeatureNames();
+		for(Object[] values : batchArrays)
+		{
+			for(int j = 0; j < values.length; j++)
+			{
+				features.put(featureNames.get(j), values[j]);
+			}
+			blackhole.consume(model.score(features));
+		}
+	}
+}
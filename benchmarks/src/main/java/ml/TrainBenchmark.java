@@ -0,0 +1,89 @@
+package ml;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the training of Linear Regression models with the iterative solvers and the closed form solvers.
+ * The iterative solvers run a fixed number of iterations, so their time grows with the rows and the iterations,
+ * the closed form solvers make one pass over the rows and solve a system with one row and column per feature.
+ * The largest models need a large heap, restrict the parameters with <tt>-p rows=...</tt> on smaller machines.
+ *
+ * @author mwe
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms16g", "-Xmx16g"})
+public class TrainBenchmark
+{
+	/** The number of iterations of Gradient Descent. */
+	static final long GD_ITERATIONS = 100;
+	
+	/** The number of epochs of Stochastic Gradient Descent. */
+	static final long SGD_EPOCHS = 5;
+	
+	/** The number of rows. */
+	@Param({"1000", "10000", "100000", "1000000", "10000000"})
+	int rows;
+	
+	/** The number of features including the date. */
+	@Param({"2", "10", "50"})
+	int nFeatures;
+	
+	/** The name of the solver. */
+	@Param({"gd", "sgd", "cholesky", "qr"})
+	String solver;
+	
+	/** The model that is trained. */
+	Nd4jLinReg model;
+	
+	/**
+	 * Creates the model and adds the rows.
+	 */
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		this.model = BenchmarkModels.linReg(nFeatures, solver, "sgd".equals(solver) ? SGD_EPOCHS : GD_ITERATIONS);
+		model.addAll(BenchmarkModels.rows(rows, nFeatures));
+	}
+	
+	/**
+	 * Removes the model.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		MLModel.remove(model.name);
+	}
+	
+	/**
+	 * Trains the model on all rows.
+	 *
+	 * @return the cost of the trained model
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws InterruptedException if the training has been cancelled
+	 */
+	@Benchmark
+	public double train() throws IOException, InterruptedException
+	{
+		model.trainExclusive();
+		return model.cost;
+	}
+}
@@ -0,0 +1,245 @@
+package ml;
+
+import java.util.Arrays;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Growable column store for the rows that are added to a model.
+ * Every column is held in its own primitive double array, the label in column 0 followed by the features.
+ * Values are parsed once when a row is added, so building the arrays for training is a plain copy.
+ *
+ * @author mwe
+ */
+public class ColumnStore
+{
+	/** The initial number of rows every column can hold. */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/** The number of columns (label plus features). */
+	final int nColumns;
+
+	/** The columns, each one with the values of all rows. */
+	private double[][] columns;
+
+	/** The number of stored rows. */
+	private int size;
+
+	/**
+	 * Instantiates a new empty ColumnStore.
+	 *
+	 * @param nColumns the number of columns (label plus features)
+	 */
+	public ColumnStore(int nColumns)
+	{
+		this.nColumns 	= nColumns;
+		this.columns 	= new double[nColumns][INITIAL_CAPACITY];
+		this.size 		= 0;
+	}
+
+	/**
+	 * Appends a row. The values have to be in column order.
+	 *
+	 * @param row the values of the row
+	 */
+	public void add(double[] row)
+	{
+		if(row.length != nColumns) throw new IllegalArgumentException("Illegal number of values. Expected " + nColumns + " values got " + row.length + ".");
+
+		ensureCapacity(size + 1);
+		for(int j = 0; j < nColumns; j++)
+		{
+			columns[j][size] = row[j];
+		}
+		size++;
+	}
+
+	/**
+	 * Appends all rows of another ColumnStore with the same number of columns.
+	 *
+	 * @param other the ColumnStore with the rows to append
+	 */
+	public void addAll(ColumnStore other)
+	{
+		if(other.nColumns != nColumns) throw new IllegalArgumentException("Illegal number of columns. Expected " + nColumns + " columns got " + other.nColumns + ".");
+
+		ensureCapacity(size + other.size);
+		for(int j = 0; j < nColumns; j++)
+		{
+			System.arraycopy(other.columns[j], 0, columns[j], size, other.size);
+		}
+		size += other.size;
+	}
+
+	/**
+	 * Removes the rows that have been appended after the first rows, e.g. when an append has to be rolled back.
+	 *
+	 * @param newSize the number of rows that are kept
+	 */
+	public void truncate(int newSize)
+	{
+		if(newSize < 0 || newSize > size) throw new IllegalArgumentException("Illegal number of rows " + newSize + ", the store has " + size + " rows.");
+		size = newSize;
+	}
+
+	/**
+	 * Removes all rows but keeps the allocated columns for reuse.
+	 */
+	public void clear()
+	{
+		size = 0;
+	}
+
+	/**
+	 * Shrinks the columns to the number of stored rows, so no memory is held for rows that have not been added.
+	 */
+	public void trimToSize()
+	{
+		int capacity = Math.max(size, 1);
+		if(capacity == columns[0].length) return;
+
+		for(int j = 0; j < nColumns; j++)
+		{
+			columns[j] = Arrays.copyOf(columns[j], capacity);
+		}
+	}
+
+	/**
+	 * Gets a single value.
+	 *
+	 * @param row the index of the row
+	 * @param column the index of the column
+	 * @return the value
+	 */
+	public double get(int row, int column)
+	{
+		if(row >= size) throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+		return columns[column][row];
+	}
+
+	/**
+	 * Gets a copy of one row.
+	 *
+	 * @param row the index of the row
+	 * @return the values of the row in column order
+	 */
+	public double[] getRow(int row)
+	{
+		if(row >= size) throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+
+		double[] result = new double[nColumns];
+		for(int j = 0; j < nColumns; j++)
+		{
+			result[j] = columns[j][row];
+		}
+		return result;
+	}
+
+	/**
+	 * Gets a copy of one column, trimmed to the number of stored rows.
+	 *
+	 * @param column the index of the column
+	 * @return the values of the column
+	 */
+	public double[] getColumn(int column)
+	{
+		return Arrays.copyOf(columns[column], size);
+	}
+
+	/**
+	 * Copies a range of columns into a new INDArray with one row per stored row.
+	 * The array is created in column-major order, so every column is a single block copy.
+	 *
+	 * @param fromColumn the index of the first column (inclusive)
+	 * @param toColumn the index of the last column (exclusive)
+	 * @return the INDArray of the columns
+	 */
+	public INDArray toMatrix(int fromColumn, int toColumn)
+	{
+		int width 		= toColumn - fromColumn;
+		double[] data 	= new double[size * width];
+		for(int j = 0; j < width; j++)
+		{
+			System.arraycopy(columns[fromColumn + j], 0, data, j * size, size);
+		}
+		return Nd4j.create(data, new int[]{size, width}, 'f');
+	}
+
+	/**
+	 * Copies a range of columns into a new INDArray like {@link #toMatrix(int, int)} and encodes one column of dates on the way.
+	 *
+	 * @param fromColumn the index of the first column (inclusive)
+	 * @param toColumn the index of the last column (exclusive)
+	 * @param dateColumn the index of the column with dates in the format yyyyMMdd
+	 * @param encoder the DateEncoder for the dates
+	 * @return the INDArray of the columns
+	 */
+	public INDArray toMatrix(int fromColumn, int toColumn, int dateColumn, DateEncoder encoder)
+	{
+		int width 		= toColumn - fromColumn;
+		double[] data 	= new double[size * width];
+		for(int j = 0; j < width; j++)
+		{
+			System.arraycopy(columns[fromColumn + j], 0, data, j * size, size);
+		}
+		int offset = (dateColumn - fromColumn) * size;
+		encoder.encode(data, offset, offset + size);
+		return Nd4j.create(data, new int[]{size, width}, 'f');
+	}
+
+	/**
+	 * Gets the number of stored rows.
+	 *
+	 * @return the number of rows
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Gets the number of bytes that are allocated for the columns.
+	 *
+	 * @return the allocated bytes
+	 */
+	public long allocatedBytes()
+	{
+		return (long) nColumns * columns[0].length * Double.BYTES;
+	}
+
+	/**
+	 * Grows all columns so that they can hold at least the given number of rows.
+	 *
+	 * @param capacity the minimum number of rows
+	 */
+	private void ensureCapacity(int capacity)
+	{
+		if(capacity <= columns[0].length) return;
+
+		int newCapacity = Math.max(capacity, columns[0].length + (columns[0].length >> 1));
+		for(int j = 0; j < nColumns; j++)
+		{
+			columns[j] = Arrays.copyOf(columns[j], newCapacity);
+		}
+	}
+
+	/**
+	 * Formats a row for displaying. Whole numbers are displayed without decimal places.
+	 *
+	 * @param row the values of the row
+	 * @return the String representation of the row
+	 */
+	static String rowToString(double[] row)
+	{
+		StringBuilder sb = new StringBuilder("[");
+		for(int j = 0; j < row.length; j++)
+		{
+			if(j > 0) sb.append(", ");
+			double val = row[j];
+			if(val == Math.rint(val) && !Double.isInfinite(val) && Math.abs(val) < Long.MAX_VALUE) sb.append((long) val);
+			else sb.append(val);
+		}
+		return sb.append("]").toString();
+	}
+}
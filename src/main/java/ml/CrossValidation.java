@@ -0,0 +1,144 @@
+package ml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the quality of a model with k-fold cross validation. The rows are split into <tt>folds</tt> parts,
+ * every part is predicted by the model trained on the other parts. The trained state of the model is not changed.
+ * <p>
+ * The errors are kept as sums, so the overall values are computed over all predicted rows and not averaged over the folds.
+ *
+ * @author mwe
+ */
+public final class CrossValidation
+{
+	/** The default number of folds. */
+	static final int DEFAULT_FOLDS = 5;
+
+	private CrossValidation()
+	{
+	}
+
+	/**
+	 * Runs the cross validation of the model.
+	 *
+	 * @param model the MLModel
+	 * @param folds the number of folds
+	 * @param concurrency the number of folds that are trained and scored at the same time
+	 * @param seed the seed of the split
+	 * @return the Folds and as last element the overall Fold
+	 * @throws InterruptedException if the calling thread has been interrupted
+	 */
+	public static List<Fold> run(MLModel model, int folds, int concurrency, long seed) throws InterruptedException
+	{
+		if(folds < 2) throw new IllegalArgumentException("The number of folds has to be at least 2, got " + folds + ".");
+		if(concurrency < 1) throw new IllegalArgumentException("The concurrency has to be at least 1, got " + concurrency + ".");
+
+		//The rows are only read, the lock keeps a training from replacing them meanwhile
+		if(!model.trainLock.tryLock()) throw new IllegalArgumentException("Model "+model.name+" is being trained, please wait for the training to finish.");
+		List<Fold> results;
+		try
+		{
+			model.mergeStripes();
+			model.freezeDictionaries();
+			results = model.crossValidate(folds, concurrency, new Random(seed));
+		}
+		finally
+		{
+			model.trainLock.unlock();
+		}
+
+		Fold overall = new Fold(0);
+		for(Fold fold : results)
+		{
+			overall.add(fold);
+		}
+		results.add(overall);
+		return results;
+	}
+
+	/**
+	 * The errors of the predictions of one fold or of all folds.
+	 */
+	public static final class Fold
+	{
+		/** The number of the fold starting at 1, 0 for all folds. */
+		final int index;
+
+		/** The number of predicted rows. */
+		long n;
+
+		/** The sum of the squared errors. */
+		double squaredError;
+
+		/** The sum of the absolute errors. */
+		double absoluteError;
+
+		/** The sum of the labels. */
+		double sumLabels;
+
+		/** The sum of the squared labels. */
+		double sumSquaredLabels;
+
+		/** The time the fold has taken in milliseconds, the sum of all folds for the overall Fold. */
+		long millis;
+
+		/**
+		 * Instantiates a new empty Fold.
+		 *
+		 * @param index the number of the fold starting at 1, 0 for all folds
+		 */
+		Fold(int index)
+		{
+			this.index = index;
+		}
+
+		/**
+		 * Adds the sums of another Fold.
+		 *
+		 * @param other the other Fold
+		 */
+		void add(Fold other)
+		{
+			n 					+= other.n;
+			squaredError 		+= other.squaredError;
+			absoluteError 		+= other.absoluteError;
+			sumLabels 			+= other.sumLabels;
+			sumSquaredLabels 	+= other.sumSquaredLabels;
+			millis 				+= other.millis;
+		}
+
+		/**
+		 * Gets the mean squared error.
+		 *
+		 * @return the MSE
+		 */
+		public double mse()
+		{
+			return squaredError / n;
+		}
+
+		/**
+		 * Gets the mean absolute error.
+		 *
+		 * @return the MAE
+		 */
+		public double mae()
+		{
+			return absoluteError / n;
+		}
+
+		/**
+		 * Gets the coefficient of determination, the part of the variance of the labels that the predictions explain.
+		 *
+		 * @return the R squared, NaN if the labels do not vary
+		 */
+		public double r2()
+		{
+			double totalSquares = sumSquaredLabels - sumLabels * sumLabels / n;
+			return totalSquares > 0 ? 1.0d - squaredError / totalSquares : Double.NaN;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package ml;
+
+import java.time.LocalDate;
+
+/**
+ * Encodes date features given as numbers in the format yyyyMMdd as their difference in days to a reference day.
+ * The reference day is fixed when a model is trained and stored with it, so predictions do not change from one day to the next.
+ * The conversion is pure integer arithmetic (the civil calendar algorithms of Howard Hinnant), no date objects are created.
+ *
+ * @author mwe
+ */
+public final class DateEncoder
+{
+	/** The number of days from 0000-03-01 to 1970-01-01. */
+	private static final long EPOCH_OFFSET = 719468;
+
+	/** The number of days of a 400 year cycle. */
+	private static final long DAYS_PER_ERA = 146097;
+
+	/** The reference day as number of days since 1970-01-01. */
+	final long referenceDay;
+
+	/**
+	 * Instantiates a new DateEncoder.
+	 *
+	 * @param referenceDay the reference day as number of days since 1970-01-01
+	 */
+	public DateEncoder(long referenceDay)
+	{
+		this.referenceDay = referenceDay;
+	}
+
+	/**
+	 * Creates a DateEncoder with the current day as reference day.
+	 *
+	 * @return the DateEncoder
+	 */
+	public static DateEncoder today()
+	{
+		return new DateEncoder(LocalDate.now().toEpochDay());
+	}
+
+	/**
+	 * Encodes one date.
+	 *
+	 * @param date the date in the format yyyyMMdd
+	 * @return the number of days from the date to the reference day
+	 */
+	public double encode(double date)
+	{
+		return referenceDay - toEpochDay(date);
+	}
+
+	/**
+	 * Encodes a range of dates in place.
+	 *
+	 * @param dates the dates in the format yyyyMMdd
+	 * @param from the first index (inclusive)
+	 * @param to the last index (exclusive)
+	 */
+	public void encode(double[] dates, int from, int to)
+	{
+		for(int i = from; i < to; i++)
+		{
+			dates[i] = referenceDay - toEpochDay(dates[i]);
+		}
+	}
+
+	/**
+	 * Converts a date in the format yyyyMMdd to the number of days since 1970-01-01.
+	 * Days that do not exist in their month (e.g. 20170230) are rejected, they are not moved to the next month.
+	 *
+	 * @param date the date
+	 * @return the epoch day
+	 */
+	public static long toEpochDay(double date)
+	{
+		long value 	= (long) date;
+		long year 	= value / 10000;
+		long month 	= (value / 100) % 100;
+		long day 	= value % 100;
+		if(value != date || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)) throw new IllegalArgumentException("Illegal date " + ColumnStore.rowToString(new double[]{date}) + ", please use the format yyyyMMdd.");
+
+		//Years start in March, so the leap day is the last day of the year
+		if(month <= 2) year--;
+		long era 		= Math.floorDiv(year, 400);
+		long yearOfEra 	= year - era * 400;
+		long dayOfYear 	= (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		long dayOfEra 	= yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * DAYS_PER_ERA + dayOfEra - EPOCH_OFFSET;
+	}
+
+	/**
+	 * Gets the number of days of a month of the Gregorian calendar.
+	 *
+	 * @param year the year
+	 * @param month the month, 1 to 12
+	 * @return the number of days
+	 */
+	static int lengthOfMonth(long year, long month)
+	{
+		if(month == 2) return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+		return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+	}
+
+	/**
+	 * Converts a number of days since 1970-01-01 to a date in the format yyyyMMdd.
+	 *
+	 * @param epochDay the epoch day
+	 * @return the date
+	 */
+	public static long toDate(long epochDay)
+	{
+		long shifted 	= epochDay + EPOCH_OFFSET;
+		long era 		= Math.floorDiv(shifted, DAYS_PER_ERA);
+		long dayOfEra 	= shifted - era * DAYS_PER_ERA;
+		long yearOfEra 	= (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear 	= dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long monthIndex = (5 * dayOfYear + 2) / 153;
+		long day 		= dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+		long month 		= monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+		long year 		= yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		return year * 10000 + month * 100 + day;
+	}
+}
@@ -1,32 +1,20 @@
 package ml;
 
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
-import java.io.File;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.time.LocalDate;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
-import javax.imageio.ImageIO;
-import javax.swing.JFrame;
-import javax.swing.JPanel;
-import javax.swing.WindowConstants;
-
-import org.datavec.api.records.reader.SequenceRecordReader;
-import org.datavec.api.records.reader.impl.collection.CollectionRecordReader;
-import org.datavec.api.records.reader.impl.collection.CollectionSequenceRecordReader;
-import org.datavec.api.records.reader.impl.collection.ListStringRecordReader;
-import org.datavec.api.split.ListStringSplit;
-import org.datavec.api.split.StringSplit;
-import org.datavec.api.writable.ArrayWritable;
-import org.datavec.api.writable.DoubleWritable;
-import org.datavec.api.writable.Writable;
-import org.deeplearning4j.datasets.datavec.RecordReaderDataSetIterator;
-import org.deeplearning4j.datasets.datavec.SequenceRecordReaderDataSetIterator;
+import org.deeplearning4j.datasets.iterator.AsyncDataSetIterator;
 import org.deeplearning4j.nn.api.OptimizationAlgorithm;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
@@ -36,19 +24,9 @@ import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
-import org.jfree.chart.ChartFactory;
-import org.jfree.chart.ChartPanel;
-import org.jfree.chart.JFreeChart;
-import org.jfree.chart.axis.NumberAxis;
-import org.jfree.chart.plot.PlotOrientation;
-import org.jfree.chart.plot.XYPlot;
-import org.jfree.data.xy.XYSeries;
-import org.jfree.data.xy.XYSeriesCollection;
-import org.jfree.ui.RefineryUtilities;
 import org.nd4j.linalg.activations.Activation;
 import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
-import org.nd4j.linalg.dataset.api.preprocessor.NormalizerMinMaxScaler;
+import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
 
@@ -61,10 +39,61 @@ public class Dl4jRNN extends MLModel
 	/**  The hyperparameters for RNN. */
 	Map<String, Object> params;
 	
-	int trainSize;
-    int miniBatchSize;
-    
+	/** The number of time steps of a training sequence. */
+	final int window;
+	
+	/** The number of sequences of a mini-batch. */
+	final int batchSize;
+	
+	/** The part of the latest rows that is held out to score the network, between 0 and 1. */
+	final double validation;
+	
+	/** The number of epochs between two scores of the validation rows. */
+	final int evalEvery;
+	
+	/** The number of scores of the validation rows without improvement after which the training stops. */
+	final int patience;
+	
+	/** The epoch with the best score of the validation rows in the last training, -1 if no rows have been held out. */
+	volatile int bestEpoch = -1;
+	
+	/** The best score of the validation rows in the last training. */
+	volatile double bestScore = Double.NaN;
+	
+	/** The score of the published network, on the validation rows if rows have been held out and on the training rows otherwise. */
+	volatile double cost = Double.NaN;
+	
     MultiLayerNetwork net;
+    
+    /** The smallest value of every column (label and features) of the trained rows, the values are scaled to [0, 1] with it. Only used by the training, the forecast has a copy. */
+    double[] min;
+    
+    /** The largest value of every column of the trained rows. */
+    double[] max;
+    
+    /** The forecast after the trained rows, null if the model has not been trained. A training publishes a new one when it has finished. */
+    volatile Forecast forecast;
+    
+    /** The maximum number of steps after the trained rows that can be predicted. */
+    static final int MAX_FORECAST_STEPS = 100000;
+    
+    /** The default number of time steps of a training sequence. */
+    static final int DEFAULT_WINDOW = 20;
+    
+    /** The default number of sequences of a mini-batch. */
+    static final int DEFAULT_BATCH_SIZE = 32;
+    
+    /** The number of mini-batches that are prepared ahead of the training. */
+    static final int PREFETCH = 4;
+    
+    /** The default part of the latest rows that is held out to score the network. */
+    static final double DEFAULT_VALIDATION = 0.2;
+    
+    /** The default number of epochs between two scores of the validation rows. */
+    static final int DEFAULT_EVAL_EVERY = 1;
+    
+    /** The default number of scores without improvement after which the training stops. */
+    static final int DEFAULT_PATIENCE = 5;
 	
 	
 	public Dl4jRNN(String name, Map<String, String> types, Map<String, Object> params, Map<String, String> extra, boolean timePeriod) 
@@ -73,88 +102,375 @@ public class Dl4jRNN extends MLModel
 		
 		this.timePeriod 	= timePeriod;
 		this.params 		= params;
-		this.trainSize 		= 0;
-		this.miniBatchSize 	= 20;
-		this.net 			= configureNetwork();
+		this.window 		= (int) getLong(params, "window", DEFAULT_WINDOW);
+		this.batchSize 		= (int) getLong(params, "batchSize", DEFAULT_BATCH_SIZE);
+		this.validation 	= getDouble(params, "validation", DEFAULT_VALIDATION);
+		this.evalEvery 		= (int) Math.max(1, getLong(params, "evalEvery", DEFAULT_EVAL_EVERY));
+		this.patience 		= (int) Math.max(1, getLong(params, "patience", DEFAULT_PATIENCE));
+		if(nFeatures == 0 || classAttributes[0] != null) throw new IllegalArgumentException("The first feature of model " + name + " is the date in the format yyyyMMdd and has to be numeric. Model '"+name+"' has not been created.");
+		if(validation < 0 || validation >= 1) throw new IllegalArgumentException("The validation part has to be at least 0 and less than 1, got " + validation + ". Model '"+name+"' has not been created.");
+		this.net 			= configureNetwork(params, nFeatures+1);
 	}
 
+	/**
+	 * Trains the network on the windows of the rows in time order. The last <tt>validation</tt> part of the rows is held out if it has
+	 * at least one window. It is scored every <tt>evalEvery</tt> epochs and the training stops when the score has not improved for
+	 * <tt>patience</tt> evaluations, the network then keeps the parameters of the best evaluation.
+	 * 
+	 * @see ml.MLModel#train()
+	 */
 	@Override
 	protected void train() throws IOException, InterruptedException 
 	{
-		Collection<Collection<Collection<Writable>>> colTrain 	= new ArrayList<>();
-		Collection<Collection<Collection<Writable>>> colPredict = new ArrayList<>();
-		this.trainSize = 100;
+		if(rows.size() < window + 1) throw new IllegalArgumentException("Model "+name+" needs at least " + (window + 1) + " rows for training with a window of " + window + ", it has " + rows.size() + ".");
+		
+		//The forecast has a network of its own, it predicts with the last training until this one has finished
+		this.bestEpoch 		= -1;
+		this.bestScore 		= Double.NaN;
+		
+		//The rows may have been added by several threads, the series is ordered by the time in the first feature
+		int[] order 	= timeOrder();
+		
+		//The validation rows are the latest ones, the forecast continues after them. They are scaled like the training rows.
+		int n 			= order.length;
+		int nValidation = (int) (n * validation);
+		if(nValidation < window + 1 || n - nValidation < window + 1) nValidation = 0;
+		fitScaling(order, 0, n - nValidation);
+		INDArray trainSeries 		= scaledSeries(order, 0, n - nValidation);
+		INDArray validationSeries 	= nValidation > 0 ? scaledSeries(order, n - nValidation, n) : null;
 		
-		for(int i = 0; i < trainSize; i++)
+		int nEpochs 	= (int) (long) params.get("epochs");
+		INDArray best 	= null;
+		int evaluations = 0;
+		
+		//The windows are copied into the layout of the network in the prefetch thread while the previous batch is fitted
+		AsyncDataSetIterator trainDataIter = new AsyncDataSetIterator(new WindowDataSetIterator(trainSeries, window, batchSize), PREFETCH);
+		try
 		{
-			Collection<Collection<Writable>> seqTrain = new ArrayList<>();
-			
-			for(int j = 0; j < miniBatchSize; j++)
+			// ----- Train the network -----
+			for (int i = 0; i < nEpochs; i++) 
 			{
-				seqTrain.add(Arrays.<Writable>asList(new DoubleWritable(Double.parseDouble(rows.get(i+j).get(0))), new DoubleWritable(Double.parseDouble(rows.get(i+j).get(1)))));
+				if(Thread.interrupted()) throw new InterruptedException("Training of model " + name + " has been cancelled.");
+				progress = i;
+				net.fit(trainDataIter);
+				progressCost = net.score();
+				trainDataIter.reset();
+				
+				if(validationSeries == null || (i + 1) % evalEvery != 0 && i + 1 < nEpochs) continue;
+				double score = validationScore(net, validationSeries);
+				progressCost = score;
+				if(best == null || score < bestScore)
+				{
+					best 		= net.params().dup();
+					bestScore 	= score;
+					bestEpoch 	= i + 1;
+					evaluations = 0;
+				}
+				else if(++evaluations >= patience)
+				{
+					nEpochs = i + 1;
+					break;
+				}
 			}
-			colTrain.add(seqTrain);
-			
-			Collection<Collection<Writable>> seqPredict = new ArrayList<>();
-			seqPredict.add(Arrays.<Writable>asList(new DoubleWritable(Double.parseDouble(rows.get(i+miniBatchSize+1).get(0))), new DoubleWritable(Double.parseDouble(rows.get(i+miniBatchSize+1).get(1)))));
-			colPredict.add(seqPredict);
-		}				
-		SequenceRecordReader trainReader 	= new CollectionSequenceRecordReader(colTrain);
-		SequenceRecordReader predictReader 	= new CollectionSequenceRecordReader(colPredict);
-		DataSetIterator trainDataIter 		= new SequenceRecordReaderDataSetIterator(trainReader, predictReader, miniBatchSize, -1, true, SequenceRecordReaderDataSetIterator.AlignmentMode.ALIGN_END);
-		
-        //Normalize the training data
-        NormalizerMinMaxScaler normalizer = new NormalizerMinMaxScaler(0, 1);
-        normalizer.fitLabel(true);
-        normalizer.fit(trainDataIter);              //Collect training data statistics
-        trainDataIter.reset();
-        trainDataIter.setPreProcessor(normalizer);
-        
-		int nEpochs = (int) (long) params.get("epochs");
-		
-		while(trainDataIter.hasNext())
-		{
-			System.out.println(trainDataIter.next());
-		}
-		trainDataIter.reset();
-		
-		 // ----- Train the network -----
-        for (int i = 0; i < nEpochs; i++) 
-        {
-            net.fit(trainDataIter);
-            trainDataIter.reset();
-            System.out.println("Epoch: "+i+" / "+nEpochs+"\n");
-        }
-        
-        //Init rnnTimeStep with train data
-        while (trainDataIter.hasNext()) 
-        {
-        	net.rnnTimeStep(trainDataIter.next().getFeatureMatrix());
-        }
-        trainDataIter.reset();
+		}
+		finally
+		{
+			trainDataIter.shutdown();
+		}
+		progress = nEpochs;
+		if(best != null) net.setParams(best);
+		
+		this.cost 		= best != null ? bestScore : validationScore(net, trainSeries);
+		this.forecast 	= prime(nValidation > 0 ? scaledSeries(order, 0, n) : trainSeries, order);
+		this.state 		= State.trained;
+	}
+	
+	/**
+	 * Scores a network on all windows of the validation rows.
+	 *
+	 * @param net the network
+	 * @param series the scaled series of the validation rows
+	 * @return the mean score of the windows
+	 */
+	double validationScore(MultiLayerNetwork net, INDArray series)
+	{
+		WindowDataSetIterator it 	= new WindowDataSetIterator(series, window, batchSize);
+		double sum 					= 0;
+		int count 					= 0;
+		while(it.hasNext())
+		{
+			DataSet batch 	= it.next();
+			int size 		= batch.numExamples();
+			sum 			+= net.score(batch) * size;
+			count 			+= size;
+		}
+		return sum / count;
+	}
+	
+	/**
+	 * Sorts the rows by the time in the first feature.
+	 *
+	 * @return the indices of the rows in time order
+	 */
+	int[] timeOrder()
+	{
+		return IntStream.range(0, rows.size()).boxed()
+				.sorted(Comparator.comparingDouble(i -> rows.get(i, 1)))
+				.mapToInt(Integer::intValue).toArray();
+	}
+	
+	/**
+	 * Checks that the first feature is a valid date, the network reads it as epoch day.
+	 * 
+	 * @see ml.MLModel#checkRow(double[])
+	 */
+	@Override
+	protected void checkRow(double[] row)
+	{
+		DateEncoder.toEpochDay(row[1]);
+	}
+	
+	/**
+	 * Gets a value of the rows as the network reads it. The date in the first feature is read as epoch day,
+	 * so the time advances by the same amount for every day, also across the end of a month or a year.
+	 *
+	 * @param row the index of the row
+	 * @param col the index of the column, the label is column 0
+	 * @return the value
+	 */
+	double value(int row, int col)
+	{
+		double value = rows.get(row, col);
+		return col == 1 ? DateEncoder.toEpochDay(value) : value;
+	}
+	
+	/**
+	 * Computes the smallest and the largest value of every column of a range of the rows for the scaling.
+	 * Only the rows the network is trained on are passed, the held out rows must not leak into the scaling.
+	 *
+	 * @param order the indices of the rows in time order
+	 * @param from the first position in time order, inclusive
+	 * @param to the last position in time order, exclusive
+	 */
+	void fitScaling(int[] order, int from, int to)
+	{
+		int nColumns = nFeatures+1;
+		this.min = new double[nColumns];
+		this.max = new double[nColumns];
+		for(int c = 0; c < nColumns; c++)
+		{
+			int col = c;
+			double[] column = IntStream.range(from, to).mapToDouble(t -> value(order[t], col)).toArray();
+			min[c] = Arrays.stream(column).min().orElse(0);
+			max[c] = Arrays.stream(column).max().orElse(0);
+		}
+	}
+	
+	/**
+	 * Scales a value of a column to [0, 1] with the scaling of the training.
+	 *
+	 * @param col the index of the column
+	 * @param value the value
+	 * @return the scaled value
+	 */
+	double scale(int col, double value)
+	{
+		return scale(min, max, col, value);
+	}
+	
+	/**
+	 * Scales a value of a column to [0, 1].
+	 *
+	 * @param min the smallest value of every column
+	 * @param max the largest value of every column
+	 * @param col the index of the column
+	 * @param value the value
+	 * @return the scaled value
+	 */
+	static double scale(double[] min, double[] max, int col, double value)
+	{
+		double range = max[col] - min[col];
+		return (value - min[col]) / (range > 0 ? range : 1);
+	}
+	
+	/**
+	 * Scales a value of a column back from [0, 1].
+	 *
+	 * @param min the smallest value of every column
+	 * @param max the largest value of every column
+	 * @param col the index of the column
+	 * @param value the scaled value
+	 * @return the value
+	 */
+	static double unscale(double[] min, double[] max, int col, double value)
+	{
+		double range = max[col] - min[col];
+		return value * (range > 0 ? range : 1) + min[col];
+	}
+	
+	/**
+	 * Builds the scaled series of a range of the rows with one row per column (label and features) and one column per time step.
+	 *
+	 * @param order the indices of the rows in time order
+	 * @param from the first position in time order, inclusive
+	 * @param to the last position in time order, exclusive
+	 * @return the series in 'c' order
+	 */
+	INDArray scaledSeries(int[] order, int from, int to)
+	{
+		int n 			= to - from;
+		int nColumns 	= nFeatures+1;
+		double[] series = new double[nColumns * n];
+		for(int c = 0; c < nColumns; c++)
+		{
+			for(int t = 0; t < n; t++)
+			{
+				series[c * n + t] = scale(c, value(order[from + t], c));
+			}
+		}
+		return Nd4j.create(series, new int[]{nColumns, n}, 'c');
+	}
+	
+	/**
+	 * Runs the whole series through a copy of the trained network once, so the forecast can continue from its hidden state.
+	 * The forecast keeps the copy and the scaling, a later training does not change them.
+	 *
+	 * @param series the scaled series of the rows
+	 * @param order the indices of the rows in time order
+	 * @return the Forecast that starts after the last row
+	 */
+	Forecast prime(INDArray series, int[] order)
+	{
+		int n 			= order.length;
+		int nColumns 	= nFeatures+1;
+		
+		//The step is measured in days, the dates of the forecast are whole days after the last row
+		double firstTime 	= value(order[0], 1);
+		double lastTime 	= value(order[n-1], 1);
+		double step 		= (lastTime - firstTime) / (n - 1);
+		if(!(step > 0)) throw new IllegalArgumentException("The date in the first feature of model " + name + " does not increase, please add rows of different dates.");
+		
+		MultiLayerNetwork copy = net.clone();
+		try
+		{
+			INDArray output = copy.rnnTimeStep(series.reshape(1, nColumns, n));
+			double[] next 	= new double[nColumns];
+			for(int c = 0; c < nColumns; c++)
+			{
+				next[c] = output.getDouble(0, c, n-1);
+			}
+			return new Forecast(copy, min.clone(), max.clone(), lastTime, step, copyState(copy.rnnGetPreviousState(0)), next);
+		}
+		finally
+		{
+			copy.rnnClearPreviousState();
+		}
+	}
+	
+	/**
+	 * Copies the hidden state of a layer, the network reuses its arrays.
+	 *
+	 * @param state the state of the layer
+	 * @return the copy
+	 */
+	static Map<String, INDArray> copyState(Map<String, INDArray> state)
+	{
+		Map<String, INDArray> copy = new LinkedHashMap<>();
+		for(Map.Entry<String, INDArray> entry : state.entrySet())
+		{
+			copy.put(entry.getKey(), entry.getValue().dup('c'));
+		}
+		return copy;
+	}
+
+	/**
+	 * Predicts the label for every time between the features <tt>start</tt> and <tt>end</tt> that lies one or more steps after the trained rows.
+	 * The forecast is cached with the model, a longer forecast only computes the new steps.
+	 * 
+	 * @see ml.MLModel#predict(java.util.Map)
+	 */
+	@Override
+	protected Stream<Map<String, Object>> predict(Map<String, List<Object>> features) throws IOException, InterruptedException 
+	{
+		if(!timePeriod) throw new IllegalArgumentException("Model "+name+" can only predict a time period, please create it with timePeriod set to true.");
+		if(features.keySet().size() != 2) throw new IllegalArgumentException("Illegal number of feature values. Parameter for predicting a period is set to true, please provide exactly one start and end date as features.");
+		Map<String, ?> period 	= features;
+		long start 				= DateEncoder.toEpochDay(toDouble(period.get("start")));
+		long end 				= DateEncoder.toEpochDay(toDouble(period.get("end")));
+		
+		//The forecast has a network of its own, so it does not wait for a training of the model
+		Forecast f = forecast;
+		if(f == null) throw new IllegalArgumentException("Model "+name+" is not trained, please train first.");
+		
+		//Step k is the epoch day lastTime + (k+1) * step
+		long first 	= Math.max(0, (long) Math.ceil((start - f.lastTime) / f.step - 1e-9) - 1);
+		long last 	= (long) Math.floor((end - f.lastTime) / f.step + 1e-9) - 1;
+		if(last >= MAX_FORECAST_STEPS) throw new IllegalArgumentException("The period ends more than " + MAX_FORECAST_STEPS + " steps after the trained rows of model " + name + ".");
+		
+		int nPredictions = (int) Math.max(0, last - first + 1);
+		if(nPredictions == 0) return Stream.empty();
+		
+		double[] labels 		= f.labels((int) first, (int) last);
+		INDArray times 			= Nd4j.zeros(nPredictions, 1);
+		INDArray predictions 	= Nd4j.zeros(nPredictions, 1);
+		for(int k = 0; k < nPredictions; k++)
+		{
+			times.put(k, 0, DateEncoder.toDate(Math.round(f.time((int) first + k))));
+			predictions.put(k, 0, labels[k]);
+		}
+		
+		String[] featureNames = {getFeatureNames().get(0)};
+		return IntStream.range(0, times.rows()).mapToObj(k -> new PredictionMap(featureNames, times, predictions, k, extra));
 	}
 
 	@Override
-	protected Collection<Map<String, Object>> predict(Map<String, List<Object>> features) throws IOException, InterruptedException 
-	{
-//		int startDate = Integer.parseInt(String.valueOf(features.get("start")));
-//		int endDate = Integer.parseInt(String.valueOf(features.get("end")));
-//		
-//		int nPredictions = endDate-startDate;
-//		System.out.println(nPredictions);
-//		double[] dates = new double[nPredictions];
-//		
-//		for(int i = 0; i < nPredictions; i++)
-//		{
-//			dates[i] = i+startDate;
-//		}
-//		INDArray featureArray = Nd4j.create(dates);
-//		System.out.println(featureArray);
-		Map<String, INDArray> state = net.rnnGetPreviousState(0);
-//		List<INDArray> predicted = net.feedForward(input, featuresMask, labelsMask);
-//		System.out.println(predicted);
-		
-		return null;
+	protected Implementations getImplementation()
+	{
+		return Implementations.Dl4j;
+	}
+	
+	@Override
+	protected boolean isTimePeriod()
+	{
+		return timePeriod;
+	}
+	
+	@Override
+	protected Map<String, Object> getParams()
+	{
+		return params;
+	}
+	
+	/* (non-Javadoc)
+	 * @see ml.MLModel#writeSnapshot(java.io.DataOutputStream)
+	 */
+	@Override
+	protected void writeSnapshot(DataOutputStream out) throws IOException
+	{
+		//The network is configured from the hyperparameters, only the learned parameters have to be stored
+		ModelSnapshots.writeDoubles(out, net.params().dup().data().asDouble());
+		
+		//The scaling and the forecast with the hidden state it continues from, if the model has been trained since the last restore
+		Forecast f = forecast;
+		out.writeBoolean(f != null);
+		if(f != null) f.write(out);
+	}
+	
+	/* (non-Javadoc)
+	 * @see ml.MLModel#readSnapshot(java.nio.ByteBuffer)
+	 */
+	@Override
+	protected void readSnapshot(ByteBuffer in)
+	{
+		double[] netParams = ModelSnapshots.readDoubles(in);
+		if(netParams.length != net.numParams()) throw new IllegalArgumentException("The snapshot of model " + name + " has " + netParams.length + " network parameters, expected " + net.numParams());
+		net.setParams(Nd4j.create(netParams));
+		
+		if(in.get() == 0) return;
+		Forecast f 		= Forecast.read(in, net.clone());
+		this.min 		= f.min;
+		this.max 		= f.max;
+		this.forecast 	= f;
 	}
 
 	@Override
@@ -162,24 +478,134 @@ public class Dl4jRNN extends MLModel
 	{
 		String extraString = "none";
 		if(extra != null) extraString = extra.toString();
+		Forecast f = forecast;
 		
 		return Arrays.asList(
 		  "Status: " 				+ state
 		, "Time series given: " 	+ timePeriod
 		, "Feature names: " 		+ types.toString() + " (total: "+nFeatures+")"
 		, "Extra attributes: " 		+ extraString
-		, "Number of added rows: " 	+ nRows
+		, "Number of added rows: " 	+ nRows.get()
 		, "Epochs: "				+ params.get("epochs")
 		, "Learnrate (alpha): "		+ params.get("alpha")
 		, "Hidden layers: "			+ params.get("hidden")
+		, "Window: "				+ window
+		, "Batch size: "			+ batchSize
+		, "Best epoch: "			+ (bestEpoch >= 0 ? bestEpoch + " (validation score " + bestScore + ")" : "none")
+		, "Time step: "				+ (f != null ? String.valueOf(f.step) : "none")
+		, "Cached forecast steps: "	+ (f != null ? f.size() : 0)
 		);
 	}
 	
-	private MultiLayerNetwork configureNetwork()
+	/* (non-Javadoc)
+	 * @see ml.MLModel#offHeapBytes()
+	 */
+	@Override
+	protected long offHeapBytes()
+	{
+		//The parameters and the state of the Nesterovs updater, which keeps one value per parameter, and the copy of the forecast
+		return (forecast != null ? 3L : 2L) * net.numParams() * Double.BYTES;
+	}
+	
+	/* (non-Javadoc)
+	 * @see ml.MLModel#trainedCost()
+	 */
+	@Override
+	protected double trainedCost()
+	{
+		return forecast != null ? cost : Double.NaN;
+	}
+	
+	/* (non-Javadoc)
+	 * @see ml.MLModel#trainingWork()
+	 */
+	@Override
+	protected long trainingWork()
+	{
+		//Every epoch runs every time step forward and backward through all parameters of every window
+		return getLong(params, "epochs", 1) * nRows.get() * window * net.numParams() * 2;
+	}
+	
+	/**
+	 * Prepares the tuning of the learning rate, the number of units and the number of epochs. The rows are split in time and scaled with the earlier part once,
+	 * every candidate trains a network of its own on the earlier part and is scored on the latest <tt>validation</tt> part.
+	 * 
+	 * @see ml.MLModel#evaluator(double, java.util.Random)
+	 */
+	@Override
+	protected HyperparameterSearch.Evaluator evaluator(double validation, Random random)
+	{
+		int n 			= rows.size();
+		int nValidation = (int) (n * validation);
+		if(nValidation < window + 1 || n - nValidation < window + 1) throw new IllegalArgumentException("Model "+name+" needs at least " + (window + 1) + " rows in the held out part and in the other one, it has " + n + " rows.");
+		
+		//The forecast keeps a copy of the scaling it has been computed with, so the scaling of the model can be changed here
+		int[] order 		= timeOrder();
+		fitScaling(order, 0, n - nValidation);
+		INDArray trainSeries 		= scaledSeries(order, 0, n - nValidation);
+		INDArray validationSeries 	= scaledSeries(order, n - nValidation, n);
+		
+		Set<String> integers = new HashSet<>(Arrays.asList("hidden", "epochs"));
+		return new HyperparameterSearch.Evaluator()
+		{
+			/* (non-Javadoc)
+			 * @see ml.HyperparameterSearch.Evaluator#tunable()
+			 */
+			@Override
+			public Set<String> tunable()
+			{
+				return new HashSet<>(Arrays.asList("alpha", "hidden", "epochs"));
+			}
+			
+			/* (non-Javadoc)
+			 * @see ml.HyperparameterSearch.Evaluator#evaluate(java.util.Map)
+			 */
+			@Override
+			public double evaluate(Map<String, Object> candidate) throws InterruptedException
+			{
+				Map<String, Object> p 	= HyperparameterSearch.merge(params, candidate, integers);
+				MultiLayerNetwork trial = configureNetwork(p, nFeatures+1);
+				long nEpochs 			= getLong(p, "epochs", 1);
+				AsyncDataSetIterator trainDataIter = new AsyncDataSetIterator(new WindowDataSetIterator(trainSeries, window, batchSize), PREFETCH);
+				try
+				{
+					for(long i = 0; i < nEpochs; i++)
+					{
+						if(Thread.interrupted()) throw new InterruptedException("Tuning of model " + name + " has been cancelled.");
+						trial.fit(trainDataIter);
+						trainDataIter.reset();
+					}
+				}
+				finally
+				{
+					trainDataIter.shutdown();
+				}
+				return validationScore(trial, validationSeries);
+			}
+			
+			/* (non-Javadoc)
+			 * @see ml.HyperparameterSearch.Evaluator#apply(java.util.Map)
+			 */
+			@Override
+			public void apply(Map<String, Object> candidate)
+			{
+				params 	= HyperparameterSearch.merge(params, candidate, integers);
+				net 	= configureNetwork(params, nFeatures+1);
+			}
+		};
+	}
+	
+	/**
+	 * Configures a network with the learning rate and the number of units from the hyperparameters.
+	 *
+	 * @param params the hyperparameters
+	 * @param numOfVariables the number of columns (label and features) of the model
+	 * @return the initialized network
+	 */
+	static MultiLayerNetwork configureNetwork(Map<String, Object> params, int numOfVariables)
 	{
 		double alpha 		= (double) params.get("alpha");
 		int nHidden  		= (int) (long) params.get("hidden");
-		int numOfVariables 	= nFeatures+1;
 		
 		MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
 	            .seed(140)
@@ -202,4 +628,193 @@ public class Dl4jRNN extends MLModel
 		
 		return net;
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * The forecast after the trained rows: a copy of the trained network with the scaling of the training, the predicted labels of the steps
+	 * computed so far and the hidden state of the network after them. A training publishes a new Forecast, so forecasts never wait for it.
+	 * The steps are computed while the monitor of the Forecast is held, its network keeps the state of one sequence.
+	 */
+	static final class Forecast
+	{
+		/** The copy of the trained network, only used while the monitor is held. */
+		private final MultiLayerNetwork net;
+		
+		/** The smallest value of every column of the trained rows. */
+		final double[] min;
+		
+		/** The largest value of every column of the trained rows. */
+		final double[] max;
+		
+		/** The date of the last trained row as epoch day. */
+		final double lastTime;
+		
+		/** The number of days between two rows. */
+		final double step;
+		
+		/** The hidden state of the LSTM layer after the trained rows and the computed steps. */
+		private Map<String, INDArray> state;
+		
+		/** The scaled output of the network after the last computed step, the prediction of the next step. */
+		private double[] next;
+		
+		/** The predicted labels of the computed steps, the first <tt>size</tt> values are used. */
+		private double[] labels = new double[0];
+		
+		/** The number of computed steps. */
+		private int size;
+		
+		/**
+		 * Instantiates a new Forecast without computed steps.
+		 *
+		 * @param net the copy of the trained network
+		 * @param min the smallest value of every column of the trained rows
+		 * @param max the largest value of every column of the trained rows
+		 * @param lastTime the date of the last trained row as epoch day
+		 * @param step the number of days between two rows
+		 * @param state the hidden state after the trained rows
+		 * @param next the scaled output after the trained rows
+		 */
+		Forecast(MultiLayerNetwork net, double[] min, double[] max, double lastTime, double step, Map<String, INDArray> state, double[] next)
+		{
+			this.net 		= net;
+			this.min 		= min;
+			this.max 		= max;
+			this.lastTime 	= lastTime;
+			this.step 		= step;
+			this.state 		= state;
+			this.next 		= next;
+		}
+		
+		/**
+		 * Gets the date of a step.
+		 *
+		 * @param k the index of the step
+		 * @return the epoch day
+		 */
+		double time(int k)
+		{
+			return lastTime + (k + 1) * step;
+		}
+		
+		/**
+		 * Gets the number of computed steps.
+		 *
+		 * @return the number of steps
+		 */
+		synchronized int size()
+		{
+			return size;
+		}
+		
+		/**
+		 * Gets the predicted labels of a range of steps, the steps that have not been computed yet are computed first.
+		 *
+		 * @param first the index of the first step, inclusive
+		 * @param last the index of the last step, inclusive
+		 * @return the labels
+		 */
+		synchronized double[] labels(int first, int last)
+		{
+			extend(last + 1);
+			return Arrays.copyOfRange(labels, first, last + 1);
+		}
+		
+		/**
+		 * Extends the forecast to the given number of steps. Every step feeds the output of the previous one back into the network,
+		 * only the time is set to the time of the step.
+		 *
+		 * @param steps the number of steps
+		 */
+		private void extend(int steps)
+		{
+			if(steps <= size) return;
+			if(labels.length < steps) labels = Arrays.copyOf(labels, Math.max(steps, labels.length * 2));
+			
+			int nColumns = next.length;
+			net.rnnSetPreviousState(0, state);
+			try
+			{
+				while(size < steps)
+				{
+					//The output predicts the row of this step, it is the input of the next step
+					labels[size] 	= unscale(min, max, 0, next[0]);
+					double[] input 	= next.clone();
+					input[1] 		= scale(min, max, 1, time(size));
+					
+					INDArray output = net.rnnTimeStep(Nd4j.create(input, new int[]{1, nColumns}));
+					for(int c = 0; c < nColumns; c++)
+					{
+						next[c] = output.getDouble(0, c);
+					}
+					size++;
+				}
+				state = copyState(net.rnnGetPreviousState(0));
+			}
+			finally
+			{
+				net.rnnClearPreviousState();
+			}
+		}
+		
+		/**
+		 * Writes the scaling and the computed steps with the hidden state to a snapshot.
+		 *
+		 * @param out the output
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		synchronized void write(DataOutputStream out) throws IOException
+		{
+			ModelSnapshots.writeDoubles(out, min);
+			ModelSnapshots.writeDoubles(out, max);
+			out.writeDouble(lastTime);
+			out.writeDouble(step);
+			ModelSnapshots.writeDoubles(out, next);
+			ModelSnapshots.writeDoubles(out, Arrays.copyOf(labels, size));
+			out.writeInt(state.size());
+			for(Map.Entry<String, INDArray> entry : state.entrySet())
+			{
+				ModelSnapshots.writeString(out, entry.getKey());
+				int[] shape = entry.getValue().shape();
+				out.writeInt(shape.length);
+				for(int dim : shape)
+				{
+					out.writeInt(dim);
+				}
+				ModelSnapshots.writeDoubles(out, entry.getValue().dup('c').data().asDouble());
+			}
+		}
+		
+		/**
+		 * Reads a forecast written by {@link #write(DataOutputStream)}.
+		 *
+		 * @param in the input
+		 * @param net the copy of the restored network
+		 * @return the Forecast
+		 */
+		static Forecast read(ByteBuffer in, MultiLayerNetwork net)
+		{
+			double[] min 		= ModelSnapshots.readDoubles(in);
+			double[] max 		= ModelSnapshots.readDoubles(in);
+			double lastTime 	= in.getDouble();
+			double step 		= in.getDouble();
+			double[] next 		= ModelSnapshots.readDoubles(in);
+			double[] labels 	= ModelSnapshots.readDoubles(in);
+			Map<String, INDArray> state = new LinkedHashMap<>();
+			int nState = in.getInt();
+			for(int e = 0; e < nState; e++)
+			{
+				String key 	= ModelSnapshots.readString(in);
+				int[] shape = new int[in.getInt()];
+				for(int d = 0; d < shape.length; d++)
+				{
+					shape[d] = in.getInt();
+				}
+				state.put(key, Nd4j.create(ModelSnapshots.readDoubles(in), shape, 'c'));
+			}
+			Forecast f 	= new Forecast(net, min, max, lastTime, step, state, next);
+			f.labels 	= labels;
+			f.size 		= labels.length;
+			return f;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package ml;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable dictionary from the values of a class attribute to their numeric representations.
+ * The keys are stored in an open-addressing table with linear probing, so a lookup needs no boxing and no locking
+ * and the dictionary can be read by any number of threads once it has been published.
+ *
+ * @author mwe
+ */
+public final class FrozenDictionary
+{
+	/** The numeric representation for values that are not in the dictionary. */
+	public static final int UNSEEN = -1;
+
+	/** The empty dictionary. */
+	static final FrozenDictionary EMPTY = new FrozenDictionary(Collections.emptyMap());
+
+	/** The keys, null for empty slots. */
+	private final String[] keys;
+
+	/** The numeric representations in the slots of their keys. */
+	private final int[] values;
+
+	/** The mask that maps a hash to a slot, the number of slots minus one. */
+	private final int mask;
+
+	/** The number of keys. */
+	private final int size;
+
+	/**
+	 * Instantiates a new FrozenDictionary with a copy of the entries.
+	 * The table has at least twice as many slots as entries, so the probe sequences stay short.
+	 *
+	 * @param entries the values and their numeric representations
+	 */
+	public FrozenDictionary(Map<String, Integer> entries)
+	{
+		int capacity = Integer.highestOneBit(Math.max(2, entries.size()) * 2 - 1) << 1;
+		this.keys 	= new String[capacity];
+		this.values = new int[capacity];
+		this.mask 	= capacity - 1;
+
+		int count = 0;
+		for(Map.Entry<String, Integer> entry : entries.entrySet())
+		{
+			int slot = slot(entry.getKey());
+			while(keys[slot] != null)
+			{
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] 		= entry.getKey();
+			values[slot] 	= entry.getValue();
+			count++;
+		}
+		this.size = count;
+	}
+
+	/**
+	 * Gets the numeric representation of a value.
+	 *
+	 * @param key the value of the class attribute
+	 * @return the numeric representation or {@link #UNSEEN}
+	 */
+	public int get(String key)
+	{
+		int slot = slot(key);
+		String current;
+		while((current = keys[slot]) != null)
+		{
+			if(current.equals(key)) return values[slot];
+			slot = (slot + 1) & mask;
+		}
+		return UNSEEN;
+	}
+
+	/**
+	 * Gets the number of values.
+	 *
+	 * @return the size
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Gets a copy of the entries, e.g. to write them to a snapshot.
+	 *
+	 * @return the values and their numeric representations
+	 */
+	public Map<String, Integer> entries()
+	{
+		Map<String, Integer> entries = new LinkedHashMap<>();
+		for(int slot = 0; slot < keys.length; slot++)
+		{
+			if(keys[slot] != null) entries.put(keys[slot], values[slot]);
+		}
+		return entries;
+	}
+
+	/**
+	 * Gets the first slot of a key. The high bits of the hash are mixed in, because the mask only keeps the low bits.
+	 *
+	 * @param key the key
+	 * @return the index of the slot
+	 */
+	private int slot(String key)
+	{
+		int hash = key.hashCode();
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+}
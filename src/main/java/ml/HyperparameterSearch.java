@@ -0,0 +1,312 @@
+package ml;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Searches the hyperparameters of a model. The rows of the model are materialized and normalized once and split into a training
+ * and a held out part, then every candidate is trained on the training part and scored on the held out part in parallel.
+ * The model keeps the candidate with the best score and is trained with it on all of its rows.
+ * <p>
+ * The search space maps the names of hyperparameters to a List of values or, for the strategy <tt>random</tt>, to a range
+ * <code>{min: 0.001, max: 1.0, log: true}</code>. Integer ranges sample integers, <tt>log</tt> samples uniformly on a logarithmic scale.
+ *
+ * @author mwe
+ */
+public final class HyperparameterSearch
+{
+	/** The default part of the rows that is held out to score the candidates. */
+	static final double DEFAULT_VALIDATION = 0.2;
+
+	/** The default number of candidates of the strategy <tt>random</tt>. */
+	static final int DEFAULT_TRIALS = 10;
+
+	/** The maximum number of candidates of a search. */
+	static final int MAX_TRIALS = 1000;
+
+	private HyperparameterSearch()
+	{
+	}
+
+	/**
+	 * Runs a search on the model.
+	 *
+	 * @param model the MLModel
+	 * @param space the Map of hyperparameter names and their values or ranges
+	 * @param strategy <tt>grid</tt> for every combination of the values, <tt>random</tt> for randomly sampled candidates
+	 * @param trials the number of candidates of the strategy <tt>random</tt>
+	 * @param concurrency the number of candidates that are evaluated at the same time
+	 * @param validation the part of the rows that is held out
+	 * @param seed the seed of the split and the sampling
+	 * @return the Trials in the order they have been generated
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws InterruptedException if the calling thread has been interrupted
+	 */
+	public static List<Trial> run(MLModel model, Map<String, Object> space, String strategy, int trials, int concurrency, double validation, long seed) throws IOException, InterruptedException
+	{
+		if(concurrency < 1) throw new IllegalArgumentException("The concurrency has to be at least 1, got " + concurrency + ".");
+		if(validation <= 0 || validation >= 1) throw new IllegalArgumentException("The validation part has to be greater than 0 and less than 1, got " + validation + ".");
+		if(space == null || space.isEmpty()) throw new IllegalArgumentException("The search space of model " + model.name + " is empty.");
+
+		Random random = new Random(seed);
+		List<Map<String, Object>> candidates = candidates(space, strategy, trials, random);
+		if(!model.trainLock.tryLock()) throw new IllegalArgumentException("Model "+model.name+" is already being trained, please wait for the training to finish.");
+		try
+		{
+			model.mergeStripes();
+			model.freezeDictionaries();
+			Evaluator evaluator = model.evaluator(validation, random);
+			for(String key : space.keySet())
+			{
+				if(!evaluator.tunable().contains(key)) throw new IllegalArgumentException("The hyperparameter " + key + " of model " + model.name + " can not be tuned, possible are " + evaluator.tunable() + ".");
+			}
+
+			List<Trial> results = evaluate(evaluator, candidates, concurrency);
+			Trial best = null;
+			for(Trial trial : results)
+			{
+				if(!Double.isNaN(trial.score) && (best == null || trial.score < best.score)) best = trial;
+			}
+			if(best == null) throw new IllegalArgumentException("No candidate of model " + model.name + " has a valid score, the first error was: " + results.get(0).error);
+			best.best = true;
+
+			//The lock is reentrant, the training runs with the best candidate before another thread can train
+			evaluator.apply(best.params);
+			model.trainExclusive();
+			return results;
+		}
+		finally
+		{
+			model.trainLock.unlock();
+		}
+	}
+
+	/**
+	 * Evaluates the candidates in parallel. A failed candidate gets the score NaN and its error.
+	 *
+	 * @param evaluator the Evaluator of the model
+	 * @param candidates the candidate hyperparameters
+	 * @param concurrency the number of candidates that are evaluated at the same time
+	 * @return the Trials
+	 * @throws InterruptedException if the calling thread has been interrupted
+	 */
+	private static List<Trial> evaluate(Evaluator evaluator, List<Map<String, Object>> candidates, int concurrency) throws InterruptedException
+	{
+		List<Trial> results = new ArrayList<>(candidates.size());
+		for(int i = 0; i < candidates.size(); i++)
+		{
+			results.add(new Trial(i, candidates.get(i)));
+		}
+		List<Callable<Void>> tasks = new ArrayList<>(results.size());
+		for(Trial trial : results)
+		{
+			tasks.add(() -> { trial.run(evaluator); return null; });
+		}
+		TrainingScheduler.invokeAll(tasks, concurrency);
+		return results;
+	}
+
+	/**
+	 * Generates the candidates of a search space.
+	 *
+	 * @param space the Map of hyperparameter names and their values or ranges
+	 * @param strategy <tt>grid</tt> or <tt>random</tt>
+	 * @param trials the number of candidates of the strategy <tt>random</tt>
+	 * @param random the Random that samples the candidates
+	 * @return the candidates
+	 */
+	static List<Map<String, Object>> candidates(Map<String, Object> space, String strategy, int trials, Random random)
+	{
+		List<Map<String, Object>> candidates = new ArrayList<>();
+		switch(strategy)
+		{
+			case "grid":
+				candidates.add(new LinkedHashMap<>());
+				for(Map.Entry<String, Object> entry : space.entrySet())
+				{
+					if(!(entry.getValue() instanceof List)) throw new IllegalArgumentException("The strategy grid needs a List of values for the hyperparameter " + entry.getKey() + ".");
+					List<Map<String, Object>> product = new ArrayList<>();
+					for(Map<String, Object> candidate : candidates)
+					{
+						for(Object value : (List<?>) entry.getValue())
+						{
+							Map<String, Object> extended = new LinkedHashMap<>(candidate);
+							extended.put(entry.getKey(), value);
+							product.add(extended);
+						}
+					}
+					candidates = product;
+					if(candidates.size() > MAX_TRIALS) throw new IllegalArgumentException("The grid has more than " + MAX_TRIALS + " candidates, please use the strategy random.");
+				}
+				break;
+			case "random":
+				if(trials < 1 || trials > MAX_TRIALS) throw new IllegalArgumentException("The number of trials has to be between 1 and " + MAX_TRIALS + ", got " + trials + ".");
+				for(int t = 0; t < trials; t++)
+				{
+					Map<String, Object> candidate = new LinkedHashMap<>();
+					for(Map.Entry<String, Object> entry : space.entrySet())
+					{
+						candidate.put(entry.getKey(), sample(entry.getKey(), entry.getValue(), random));
+					}
+					candidates.add(candidate);
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown strategy: " + strategy + ", possible are grid and random.");
+		}
+		if(candidates.isEmpty()) throw new IllegalArgumentException("The search space has no candidates.");
+		return candidates;
+	}
+
+	/**
+	 * Samples a value of a hyperparameter.
+	 *
+	 * @param key the name of the hyperparameter
+	 * @param values the List of values or the Map with the range
+	 * @param random the Random
+	 * @return the value
+	 */
+	static Object sample(String key, Object values, Random random)
+	{
+		if(values instanceof List)
+		{
+			List<?> list = (List<?>) values;
+			if(list.isEmpty()) throw new IllegalArgumentException("The hyperparameter " + key + " has no values.");
+			return list.get(random.nextInt(list.size()));
+		}
+		if(!(values instanceof Map)) throw new IllegalArgumentException("The hyperparameter " + key + " needs a List of values or a range like {min: 0.001, max: 1.0}.");
+
+		Map<?, ?> range = (Map<?, ?>) values;
+		Object min 		= range.get("min");
+		Object max 		= range.get("max");
+		if(!(min instanceof Number) || !(max instanceof Number)) throw new IllegalArgumentException("The range of the hyperparameter " + key + " needs the numbers min and max.");
+		boolean log 	= Boolean.TRUE.equals(range.get("log"));
+		double low 		= ((Number) min).doubleValue();
+		double high 	= ((Number) max).doubleValue();
+		if(high < low || log && low <= 0) throw new IllegalArgumentException("Illegal range of the hyperparameter " + key + ": " + range);
+
+		double u 		= random.nextDouble();
+		double value 	= log ? Math.exp(Math.log(low) + u * (Math.log(high) - Math.log(low))) : low + u * (high - low);
+		boolean integer = min instanceof Long && max instanceof Long;
+		return integer ? (Object) Math.min((long) high, Math.round(value)) : (Object) value;
+	}
+
+	/**
+	 * Merges candidate hyperparameters into the hyperparameters of a model. Numbers are converted to the types the models read,
+	 * so a candidate like <code>{iter: 300.0}</code> or <code>{alpha: 1}</code> can be used for training.
+	 *
+	 * @param params the hyperparameters of the model
+	 * @param candidate the candidate hyperparameters
+	 * @param integers the names of the hyperparameters with integer values
+	 * @return the merged copy
+	 */
+	static Map<String, Object> merge(Map<String, Object> params, Map<String, Object> candidate, Set<String> integers)
+	{
+		Map<String, Object> merged = new LinkedHashMap<>(params);
+		for(Map.Entry<String, Object> entry : candidate.entrySet())
+		{
+			Object value = entry.getValue();
+			if(value instanceof Number) value = integers.contains(entry.getKey()) ? (Object) ((Number) value).longValue() : (Object) ((Number) value).doubleValue();
+			merged.put(entry.getKey(), value);
+		}
+		return merged;
+	}
+
+	/**
+	 * The evaluation of candidate hyperparameters on the rows of one model, created while its <tt>trainLock</tt> is held.
+	 */
+	interface Evaluator
+	{
+		/**
+		 * Gets the names of the hyperparameters that can be tuned.
+		 *
+		 * @return the names
+		 */
+		Set<String> tunable();
+
+		/**
+		 * Trains on the training part with the hyperparameters of the model overridden by the candidate and scores the held out part.
+		 * Called by several threads at the same time.
+		 *
+		 * @param candidate the candidate hyperparameters
+		 * @return the score, lower is better
+		 * @throws InterruptedException if the search has been cancelled
+		 */
+		double evaluate(Map<String, Object> candidate) throws InterruptedException;
+
+		/**
+		 * Sets the hyperparameters of the model, called while its <tt>trainLock</tt> is held.
+		 *
+		 * @param candidate the candidate hyperparameters
+		 */
+		void apply(Map<String, Object> candidate);
+	}
+
+	/**
+	 * One candidate of a search and its score.
+	 */
+	public static final class Trial
+	{
+		/** The index of the candidate. */
+		final int index;
+
+		/** The candidate hyperparameters. */
+		final Map<String, Object> params;
+
+		/** The score of the held out rows, NaN if the evaluation has failed. */
+		volatile double score = Double.NaN;
+
+		/** The time of the evaluation in milliseconds. */
+		volatile long millis;
+
+		/** The message of the exception if the evaluation has failed. */
+		volatile String error;
+
+		/** The flag that indicates whether the model has been trained with this candidate. */
+		volatile boolean best;
+
+		/**
+		 * Instantiates a new Trial.
+		 *
+		 * @param index the index of the candidate
+		 * @param params the candidate hyperparameters
+		 */
+		Trial(int index, Map<String, Object> params)
+		{
+			this.index 	= index;
+			this.params = params;
+		}
+
+		/**
+		 * Evaluates the candidate and records the result.
+		 *
+		 * @param evaluator the Evaluator of the model
+		 */
+		private void run(Evaluator evaluator)
+		{
+			long start = System.nanoTime();
+			try
+			{
+				double value = evaluator.evaluate(params);
+				score = Double.isFinite(value) ? value : Double.NaN;
+				if(Double.isNaN(score)) error = "The score is not finite.";
+			}
+			catch(InterruptedException e)
+			{
+				error = "cancelled";
+				Thread.currentThread().interrupt();
+			}
+			catch(Exception e)
+			{
+				error = e.getMessage();
+			}
+			millis = (System.nanoTime() - start) / 1000000;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package ml;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds with logarithmic buckets.
+ * Every power of two is split into {@link #SUB_BUCKETS} linear buckets, so a percentile is off by at most 12.5%
+ * while the whole range of long values fits into a few hundred counters. Recording a value is one atomic increment.
+ *
+ * @author mwe
+ */
+public final class LatencyHistogram
+{
+	/** The number of bits of a value that select the linear bucket within its power of two. */
+	private static final int SUB_BITS = 3;
+
+	/** The number of linear buckets per power of two. */
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/** The number of recorded values per bucket. */
+	private final AtomicLongArray counts = new AtomicLongArray((Long.SIZE - SUB_BITS) * SUB_BUCKETS);
+
+	/** The number of recorded values. */
+	private final LongAdder count = new LongAdder();
+
+	/** The sum of the recorded values. */
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param nanos the latency in nanoseconds, negative values are recorded as 0
+	 */
+	public void record(long nanos)
+	{
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(value));
+		count.increment();
+		sum.add(value);
+	}
+
+	/**
+	 * Gets the number of recorded values.
+	 *
+	 * @return the count
+	 */
+	public long count()
+	{
+		return count.sum();
+	}
+
+	/**
+	 * Gets the mean of the recorded values.
+	 *
+	 * @return the mean in nanoseconds, 0 if no value has been recorded
+	 */
+	public double mean()
+	{
+		long n = count.sum();
+		return n == 0 ? 0.0d : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Gets a percentile of the recorded values. Values recorded while the buckets are read may or may not be part of it.
+	 *
+	 * @param percentile the percentile between 0 and 100
+	 * @return the upper bound of the bucket of the percentile in nanoseconds, 0 if no value has been recorded
+	 */
+	public long percentile(double percentile)
+	{
+		long[] snapshot = new long[counts.length()];
+		long total 		= 0;
+		for(int i = 0; i < snapshot.length; i++)
+		{
+			snapshot[i] = counts.get(i);
+			total 		+= snapshot[i];
+		}
+		if(total == 0) return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0d));
+		long seen = 0;
+		for(int i = 0; i < snapshot.length; i++)
+		{
+			seen += snapshot[i];
+			if(seen >= rank) return upperBound(i);
+		}
+		return upperBound(snapshot.length - 1);
+	}
+
+	/**
+	 * Gets the bucket of a value. Values below {@link #SUB_BUCKETS} have a bucket of their own,
+	 * larger values are put into the linear bucket of their power of two that their next bits select.
+	 *
+	 * @param value the non-negative value
+	 * @return the index of the bucket
+	 */
+	static int bucket(long value)
+	{
+		if(value < SUB_BUCKETS) return (int) value;
+		int exponent 	= 63 - Long.numberOfLeadingZeros(value);
+		int sub 		= (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Gets the largest value of a bucket.
+	 *
+	 * @param bucket the index of the bucket
+	 * @return the upper bound
+	 */
+	static long upperBound(int bucket)
+	{
+		if(bucket < SUB_BUCKETS) return bucket;
+		int shift 	= bucket / SUB_BUCKETS - 1;
+		long lower 	= (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+}
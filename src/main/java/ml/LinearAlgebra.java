@@ -0,0 +1,189 @@
+package ml;
+
+/**
+ * Small dense linear algebra routines on primitive arrays for the systems that come up in Linear Regression.
+ * The systems have one row and column per feature, so they are far too small to be worth a native call.
+ *
+ * @author mwe
+ */
+public final class LinearAlgebra
+{
+	private LinearAlgebra()
+	{
+	}
+
+	/**
+	 * Solves <tt>a * x = b</tt> for a symmetric positive definite matrix with the Cholesky decomposition.
+	 * If the matrix is not positive definite (e.g. linearly dependent features) a small ridge is added to the diagonal.
+	 *
+	 * @param a the symmetric matrix, it is not modified
+	 * @param b the right hand side
+	 * @return the solution x
+	 */
+	public static double[] choleskySolve(double[][] a, double[] b)
+	{
+		int n = b.length;
+		double[][] l = cholesky(a, 0.0d);
+		if(l == null)
+		{
+			double maxDiag = 0.0d;
+			for(int i = 0; i < n; i++)
+			{
+				maxDiag = Math.max(maxDiag, Math.abs(a[i][i]));
+			}
+			l = cholesky(a, Math.max(maxDiag, 1.0d) * 1e-10d);
+			if(l == null) throw new IllegalArgumentException("The normal equations can not be solved, please check the features for linear dependencies.");
+		}
+
+		//Forward substitution L * z = b
+		double[] z = new double[n];
+		for(int i = 0; i < n; i++)
+		{
+			double sum = b[i];
+			for(int k = 0; k < i; k++)
+			{
+				sum -= l[i][k] * z[k];
+			}
+			z[i] = sum / l[i][i];
+		}
+
+		//Back substitution L^T * x = z
+		double[] x = new double[n];
+		for(int i = n - 1; i >= 0; i--)
+		{
+			double sum = z[i];
+			for(int k = i + 1; k < n; k++)
+			{
+				sum -= l[k][i] * x[k];
+			}
+			x[i] = sum / l[i][i];
+		}
+		return x;
+	}
+
+	/**
+	 * Computes the lower triangular Cholesky factor of <tt>a + ridge * I</tt>.
+	 *
+	 * @param a the symmetric matrix
+	 * @param ridge the value added to the diagonal
+	 * @return the lower triangular factor or null if the matrix is not positive definite
+	 */
+	static double[][] cholesky(double[][] a, double ridge)
+	{
+		int n = a.length;
+		double[][] l = new double[n][n];
+		for(int i = 0; i < n; i++)
+		{
+			for(int j = 0; j <= i; j++)
+			{
+				double sum = a[i][j];
+				if(i == j) sum += ridge;
+				for(int k = 0; k < j; k++)
+				{
+					sum -= l[i][k] * l[j][k];
+				}
+				if(i == j)
+				{
+					if(sum <= 0.0d || Double.isNaN(sum)) return null;
+					l[i][i] = Math.sqrt(sum);
+				}
+				else
+				{
+					l[i][j] = sum / l[j][j];
+				}
+			}
+		}
+		return l;
+	}
+
+	/**
+	 * Solves the least squares problem <tt>min |a * x - b|</tt> with Householder reflections (QR decomposition).
+	 * Columns that are linearly dependent on the previous ones get the value zero.
+	 * Both arrays are overwritten.
+	 *
+	 * @param a the matrix in column-major order
+	 * @param m the number of rows
+	 * @param n the number of columns
+	 * @param b the right hand side with m values
+	 * @return the solution x with n values
+	 */
+	public static double[] qrSolve(double[] a, int m, int n, double[] b)
+	{
+		if(m < n) throw new IllegalArgumentException("The QR decomposition needs at least as many rows as columns. Got " + m + " rows and " + n + " columns.");
+
+		double[] diag 	= new double[n];
+		double[] v 		= new double[m];
+		double maxDiag 	= 0.0d;
+		for(int k = 0; k < n; k++)
+		{
+			int col = k * m;
+			double norm = 0.0d;
+			for(int i = k; i < m; i++)
+			{
+				norm += a[col + i] * a[col + i];
+			}
+			norm = Math.sqrt(norm);
+			if(norm == 0.0d) continue;
+
+			//Householder vector that reflects column k onto the k-th unit vector
+			double alpha = a[col + k] > 0.0d ? -norm : norm;
+			for(int i = k; i < m; i++)
+			{
+				v[i] = a[col + i];
+			}
+			v[k] -= alpha;
+			double vNorm = 0.0d;
+			for(int i = k; i < m; i++)
+			{
+				vNorm += v[i] * v[i];
+			}
+			diag[k] = alpha;
+			maxDiag = Math.max(maxDiag, Math.abs(alpha));
+
+			//Apply the reflection to the remaining columns and to b
+			for(int j = k + 1; j < n; j++)
+			{
+				reflect(v, a, j * m, k, m, vNorm);
+			}
+			reflect(v, b, 0, k, m, vNorm);
+		}
+
+		//Back substitution R * x = Q^T * b
+		double[] x = new double[n];
+		for(int k = n - 1; k >= 0; k--)
+		{
+			if(Math.abs(diag[k]) <= maxDiag * 1e-12d) continue; //dependent column
+			double sum = b[k];
+			for(int j = k + 1; j < n; j++)
+			{
+				sum -= a[j * m + k] * x[j];
+			}
+			x[k] = sum / diag[k];
+		}
+		return x;
+	}
+
+	/**
+	 * Applies the Householder reflection <tt>I - 2 v v^T / |v|^2</tt> to the rows from k to m of a column.
+	 *
+	 * @param v the Householder vector
+	 * @param target the array with the column
+	 * @param offset the index of the first element of the column
+	 * @param k the index of the first row
+	 * @param m the number of rows
+	 * @param vNorm the squared norm of v
+	 */
+	private static void reflect(double[] v, double[] target, int offset, int k, int m, double vNorm)
+	{
+		double dot = 0.0d;
+		for(int i = k; i < m; i++)
+		{
+			dot += v[i] * target[offset + i];
+		}
+		double f = 2.0d * dot / vNorm;
+		for(int i = k; i < m; i++)
+		{
+			target[offset + i] -= f * v[i];
+		}
+	}
+}
@@ -2,8 +2,9 @@ package ml;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Stream;
@@ -13,6 +14,10 @@ import org.neo4j.logging.Log;
 import org.neo4j.procedure.Context;
 import org.neo4j.procedure.Name;
 import org.neo4j.procedure.Procedure;
+import org.neo4j.procedure.UserAggregationFunction;
+import org.neo4j.procedure.UserAggregationResult;
+import org.neo4j.procedure.UserAggregationUpdate;
+import org.neo4j.procedure.UserFunction;
 
 /**
  * Provides stored procedures for machine learning on the Neo4j database.
@@ -75,8 +80,27 @@ public class ML
     public Stream<RowResult> add(@Name("model") String model, @Name("features") Map<String, Object> features, @Name("label") Object label) 
     {
     	MLModel mlModel = MLModel.getModel(model);
-    	mlModel.add(features, label);
-        return Stream.of(new RowResult(mlModel.getRows().get(mlModel.nRows-1).toString()));
+    	double[] row = mlModel.add(features, label);
+        return Stream.of(new RowResult(ColumnStore.rowToString(row)));
+    }
+    
+    /**
+     * Aggregation function that adds training data of all matched rows to the model at once.
+     * The rows are encoded and appended to the model in batches, which is a lot faster than calling <tt>ml.add</tt> for every row.
+     * <p>
+     * The keys of the Map <tt>features</tt> must be the same as the ones of Map <tt>types</tt> from the "create" call.
+     * <p>
+     * Example for one feature called "date":
+     * <code>
+     * MATCH (n:User) RETURN ml.collect('user', {date: n.date}, n.count) AS added
+     * </code>
+     *
+     * @return the RowCollector that collects the rows and returns the number of added rows
+     */
+    @UserAggregationFunction
+    public RowCollector collect()
+    {
+    	return new RowCollector();
     }
     
     /**
@@ -91,10 +115,124 @@ public class ML
     public Stream<RowResult> train(@Name("model") String model) throws IOException, InterruptedException 
     {
     	MLModel mlModel = MLModel.getModel(model);
-    	mlModel.train();
+    	mlModel.trainExclusive();
         return Stream.of(new RowResult("Model '"+model+"' trained."));
     }
     
+    /**
+     * Trains several models in one call. Small models are trained side by side on <tt>concurrency</tt> threads,
+     * large ones one after the other. A failed training does not stop the others.
+     * <p>
+     * Example: <code>CALL ml.trainAll(['user', 'vehicle'], {concurrency: 4})</code>
+     *
+     * @param models the names of the models
+     * @param config the Map with concurrency
+     * @return the stream of TrainResult
+     * @throws InterruptedException the interrupted exception
+     */
+    @Procedure
+    public Stream<TrainResult> trainAll(@Name("models") List<String> models, @Name(value = "config", defaultValue = "null") Map<String, Object> config) throws InterruptedException
+    {
+    	if(config == null) config = Collections.emptyMap();
+    	int concurrency = (int) MLModel.getLong(config, "concurrency", TrainingScheduler.CORES);
+    	
+    	List<MLModel> mlModels = new ArrayList<>();
+    	for(String model : new LinkedHashSet<>(models))
+    	{
+    		mlModels.add(MLModel.getModel(model));
+    	}
+    	return TrainingScheduler.trainAll(mlModels, concurrency).stream().map(TrainResult::new);
+    }
+    
+    /**
+     * Searches the hyperparameters of the model. The rows are materialized once and split into a training and a held out part,
+     * the candidates are trained on the training part and scored on the held out part in parallel.
+     * The model is trained with the best candidate on all rows.
+     * <p>
+     * Example: <code>CALL ml.tune('user', {alpha: [0.01, 0.1, 1.0], iter: [100, 300]}, {strategy: 'grid', concurrency: 4})</code>
+     *
+     * @param model the name of the model
+     * @param searchSpace the Map of hyperparameter names and their values or ranges
+     * @param config the Map with strategy, trials, concurrency, validation and seed
+     * @return the stream of TuneResult
+     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws InterruptedException the interrupted exception
+     */
+    @Procedure
+    public Stream<TuneResult> tune(@Name("model") String model, @Name("searchSpace") Map<String, Object> searchSpace, 
+    		@Name(value = "config", defaultValue = "null") Map<String, Object> config) throws IOException, InterruptedException
+    {
+    	if(config == null) config = Collections.emptyMap();
+    	String strategy 	= String.valueOf(config.getOrDefault("strategy", "grid"));
+    	int trials 			= (int) MLModel.getLong(config, "trials", HyperparameterSearch.DEFAULT_TRIALS);
+    	int concurrency 	= (int) MLModel.getLong(config, "concurrency", Runtime.getRuntime().availableProcessors());
+    	double validation 	= MLModel.getDouble(config, "validation", HyperparameterSearch.DEFAULT_VALIDATION);
+    	long seed 			= MLModel.getLong(config, "seed", System.nanoTime());
+    	
+    	MLModel mlModel = MLModel.getModel(model);
+    	return HyperparameterSearch.run(mlModel, searchSpace, strategy, trials, concurrency, validation, seed).stream().map(TuneResult::new);
+    }
+    
+    /**
+     * Measures the quality of the model with k-fold cross validation. Every fold is predicted by the model trained on the other folds,
+     * the folds are trained and scored at the same time. The trained state of the model is not changed.
+     * <p>
+     * Example: <code>CALL ml.evaluate('user', {folds: 5})</code>
+     *
+     * @param model the name of the model
+     * @param config the Map with folds, concurrency and seed
+     * @return the stream of EvaluateResult, one per fold and one for all folds
+     * @throws InterruptedException the interrupted exception
+     */
+    @Procedure
+    public Stream<EvaluateResult> evaluate(@Name("model") String model, @Name(value = "config", defaultValue = "null") Map<String, Object> config) throws InterruptedException
+    {
+    	if(config == null) config = Collections.emptyMap();
+    	int folds 		= (int) MLModel.getLong(config, "folds", CrossValidation.DEFAULT_FOLDS);
+    	int concurrency = (int) MLModel.getLong(config, "concurrency", Runtime.getRuntime().availableProcessors());
+    	long seed 		= MLModel.getLong(config, "seed", System.nanoTime());
+    	
+    	MLModel mlModel = MLModel.getModel(model);
+    	return CrossValidation.run(mlModel, folds, concurrency, seed).stream().map(EvaluateResult::new);
+    }
+    
+    /**
+     * Trains the model on the added data in the background and returns immediately.
+     * The progress can be followed with <tt>ml.jobs</tt>.
+     *
+     * @param model the name of the model
+     * @return the stream of JobResult
+     */
+    @Procedure
+    public Stream<JobResult> trainAsync(@Name("model") String model)
+    {
+    	MLModel mlModel = MLModel.getModel(model);
+    	return Stream.of(new JobResult(TrainingJobs.submit(mlModel)));
+    }
+    
+    /**
+     * Lists the background trainings with their state and progress.
+     *
+     * @return the stream of JobResult
+     */
+    @Procedure
+    public Stream<JobResult> jobs()
+    {
+    	return TrainingJobs.getJobs().stream().map(JobResult::new);
+    }
+    
+    /**
+     * Cancels a background training. A running training stops at its next iteration or epoch.
+     *
+     * @param jobId the id of the job
+     * @return the stream of JobResult
+     */
+    @Procedure
+    public Stream<JobResult> cancel(@Name("jobId") long jobId)
+    {
+    	return Stream.of(new JobResult(TrainingJobs.cancel(jobId)));
+    }
+    
     /**
      * Predicts values for the given features on the model.
      * Every key value pair in the features Map stands for one column of a feature.
@@ -114,18 +252,36 @@ public class ML
     @Procedure
     public Stream<PredictResult> predict(@Name("model") String model, @Name("features") Map<String, List<Object>> features) throws IOException, InterruptedException 
     {
-    	List<PredictResult> result = new ArrayList<>();
         MLModel mlModel = MLModel.getModel(model);
         
-        Collection<Map<String, Object>> predictions = mlModel.predict(features);
-        Iterator<Map<String, Object>> iter = predictions.iterator();
-        
-        while(iter.hasNext())
-        {
-            result.add(new PredictResult(iter.next()));
-        }
-        
-        return result.stream();
+        //The rows are created lazily, so they are counted as they are streamed
+        long start = System.nanoTime();
+        Stream<Map<String, Object>> predictions = mlModel.predict(features);
+        mlModel.stats.predicted(0, System.nanoTime() - start);
+        return predictions.peek(row -> mlModel.stats.rowPredicted()).map(PredictResult::new);
+    }
+    
+    /**
+     * Predicts a single value from the features of one row, e.g. of one node.
+     * Unlike <tt>ml.predict</tt> it is a function and does not create any arrays, so it can be called for every matched node.
+     * <p>
+     * Example for one feature called "date":
+     * <code>
+     * MATCH (n:User) RETURN n, ml.score('user', {date: n.date}) AS prediction
+     * </code>
+     *
+     * @param model the name of the model
+     * @param features the Map of feature names and their values
+     * @return the predicted value
+     */
+    @UserFunction
+    public Double score(@Name("model") String model, @Name("features") Map<String, Object> features)
+    {
+    	MLModel mlModel = MLModel.getModel(model);
+    	long start 		= System.nanoTime();
+    	double result 	= mlModel.score(features);
+    	mlModel.stats.predicted(1, System.nanoTime() - start);
+    	return result;
     }
     
     /**
@@ -172,6 +328,23 @@ public class ML
     }
     
     
+    /**
+     * Returns the runtime counters of the models that are in memory, or of one of them.
+     * Models that have only been written as snapshot are not restored for it.
+     * A prediction call is one call of <tt>ml.predict</tt> or <tt>ml.score</tt> or one batch of <tt>ml.predictAndWrite</tt>.
+     * The counters start when the model is created or restored.
+     *
+     * @param model the name of the model or null for all models
+     * @return the stream of StatsResult
+     */
+    @Procedure
+    public Stream<StatsResult> stats(@Name(value = "model", defaultValue = "null") String model) 
+    {
+    	if(model != null) return Stream.of(new StatsResult(MLModel.getModel(model)));
+    	return MLModel.models.values().stream().map(StatsResult::new);
+    }
+    
+    
     /**
      * Used as an object to be returned as a stream to Neo4j and displayed as the result of a stored procedure.
      * Represents a String.
@@ -211,6 +384,314 @@ public class ML
     		this.result = result;
     	}
     }
+    
+    /**
+     * Used as an object to be returned as a stream to Neo4j and displayed as the result of a stored procedure.
+     * Represents the training of one model by <tt>ml.trainAll</tt>.
+     */
+    public static class TrainResult
+    {
+    	/** The name of the model. */
+    	public String model;
+    	
+    	/** The state of the training. */
+    	public String status;
+    	
+    	/** The time of the training in milliseconds. */
+    	public long millis;
+    	
+    	/** The iterations or epochs of the training. */
+    	public long iterations;
+    	
+    	/** The cost of the trained model computed from its final values, the last cost the training has computed while it has not finished. */
+    	public double cost;
+    	
+    	/** The error message if the training has failed. */
+    	public String error;
+    	
+    	/**
+    	 * Instantiates a new TrainResult.
+    	 *
+    	 * @param outcome the Outcome of the training
+    	 */
+    	public TrainResult(TrainingScheduler.Outcome outcome)
+    	{
+    		this.model 		= outcome.model.name;
+    		this.status 	= outcome.status.toString();
+    		this.millis 	= outcome.millis;
+    		this.iterations = outcome.model.progress;
+    		this.cost 		= outcome.status == TrainingJobs.Status.finished ? outcome.cost : outcome.model.progressCost;
+    		this.error 		= outcome.error;
+    	}
+    }
+    
+    /**
+     * Used as an object to be returned as a stream to Neo4j and displayed as the result of a stored procedure.
+     * Represents one candidate of <tt>ml.tune</tt>.
+     */
+    public static class TuneResult
+    {
+    	/** The index of the candidate. */
+    	public long trial;
+    	
+    	/** The candidate hyperparameters. */
+    	public Map<String, Object> params;
+    	
+    	/** The score of the held out rows, lower is better. */
+    	public double score;
+    	
+    	/** The time of the evaluation in milliseconds. */
+    	public long millis;
+    	
+    	/** The flag that indicates whether the model has been trained with this candidate. */
+    	public boolean best;
+    	
+    	/** The error message if the evaluation has failed. */
+    	public String error;
+    	
+    	/**
+    	 * Instantiates a new TuneResult.
+    	 *
+    	 * @param trial the Trial
+    	 */
+    	public TuneResult(HyperparameterSearch.Trial trial)
+    	{
+    		this.trial 	= trial.index;
+    		this.params = trial.params;
+    		this.score 	= trial.score;
+    		this.millis = trial.millis;
+    		this.best 	= trial.best;
+    		this.error 	= trial.error;
+    	}
+    }
+    
+    /**
+     * Used as an object to be returned as a stream to Neo4j and displayed as the result of a stored procedure.
+     * Represents the errors of one fold of <tt>ml.evaluate</tt> or of all folds.
+     */
+    public static class EvaluateResult
+    {
+    	/** The number of the fold, "overall" for all folds. */
+    	public String fold;
+    	
+    	/** The number of predicted rows. */
+    	public long rows;
+    	
+    	/** The mean squared error. */
+    	public double mse;
+    	
+    	/** The mean absolute error. */
+    	public double mae;
+    	
+    	/** The coefficient of determination. */
+    	public double r2;
+    	
+    	/** The time of the fold in milliseconds. */
+    	public long millis;
+    	
+    	/**
+    	 * Instantiates a new EvaluateResult.
+    	 *
+    	 * @param fold the Fold
+    	 */
+    	public EvaluateResult(CrossValidation.Fold fold)
+    	{
+    		this.fold 	= fold.index > 0 ? String.valueOf(fold.index) : "overall";
+    		this.rows 	= fold.n;
+    		this.mse 	= fold.mse();
+    		this.mae 	= fold.mae();
+    		this.r2 	= fold.r2();
+    		this.millis = fold.millis;
+    	}
+    }
+    
+    /**
+     * Used as an object to be returned as a stream to Neo4j and displayed as the result of a stored procedure.
+     * Represents the runtime counters of a model.
+     */
+    public static class StatsResult
+    {
+    	/** The name of the model. */
+    	public String model;
+    	
+    	/** The state of the model. */
+    	public String status;
+    	
+    	/** The number of added rows. */
+    	public long rowsAdded;
+    	
+    	/** The average number of rows added per second since the first one. */
+    	public double addRate;
+    	
+    	/** The number of finished trainings. */
+    	public long trainings;
+    	
+    	/** The time of the last training in milliseconds. */
+    	public double lastTrainMillis;
+    	
+    	/** The time of all trainings in milliseconds. */
+    	public double totalTrainMillis;
+    	
+    	/** The iterations or epochs of the last training, 0 for closed form solutions. */
+    	public long iterations;
+    	
+    	/** The number of prediction calls. */
+    	public long predictCalls;
+    	
+    	/** The number of predicted rows. */
+    	public long rowsPredicted;
+    	
+    	/** The median latency of the prediction calls in milliseconds. */
+    	public double predictP50Millis;
+    	
+    	/** The 99th percentile of the latency of the prediction calls in milliseconds. */
+    	public double predictP99Millis;
+    	
+    	/** The estimated bytes of the rows on the heap. */
+    	public long heapBytes;
+    	
+    	/** The estimated bytes of the trained values outside of the heap. */
+    	public long offHeapBytes;
+    	
+    	/**
+    	 * Instantiates a new StatsResult.
+    	 *
+    	 * @param model the MLModel
+    	 */
+    	public StatsResult(MLModel model)
+    	{
+    		ModelStats stats 		= model.stats;
+    		this.model 				= model.name;
+    		this.status 			= model.state.toString();
+    		this.rowsAdded 			= stats.getRowsAdded();
+    		this.addRate 			= stats.getAddRate();
+    		this.trainings 			= stats.getTrainings();
+    		this.lastTrainMillis 	= stats.getLastTrainMillis();
+    		this.totalTrainMillis 	= stats.getTotalTrainMillis();
+    		this.iterations 		= stats.getLastIterations();
+    		this.predictCalls 		= stats.getPredictCalls();
+    		this.rowsPredicted 		= stats.getRowsPredicted();
+    		this.predictP50Millis 	= stats.getPredictMillis(50);
+    		this.predictP99Millis 	= stats.getPredictMillis(99);
+    		this.heapBytes 			= model.heapBytes();
+    		this.offHeapBytes 		= model.offHeapBytes();
+    	}
+    }
+    
+    /**
+     * Used as an object to be returned as a stream to Neo4j and displayed as the result of a stored procedure.
+     * Represents a background training job.
+     */
+    public static class JobResult
+    {
+    	/** The id of the job. */
+    	public long jobId;
+    	
+    	/** The name of the model. */
+    	public String model;
+    	
+    	/** The state of the job. */
+    	public String status;
+    	
+    	/** The iteration or epoch the training has reached. */
+    	public long progress;
+    	
+    	/** The cost of the trained model computed from its final values, the last cost the training has computed while it has not finished. */
+    	public double cost;
+    	
+    	/** The time the training has been running in milliseconds. */
+    	public long elapsed;
+    	
+    	/** The error message if the training has failed. */
+    	public String error;
+    	
+    	/**
+    	 * Instantiates a new JobResult.
+    	 *
+    	 * @param job the Job
+    	 */
+    	public JobResult(TrainingJobs.Job job)
+    	{
+    		this.jobId 		= job.id;
+    		this.model 		= job.model.name;
+    		this.status 	= job.status.toString();
+    		this.progress 	= job.model.progress;
+    		this.cost 		= job.status == TrainingJobs.Status.finished ? job.cost : job.model.progressCost;
+    		this.elapsed 	= job.elapsed();
+    		this.error 		= job.error;
+    	}
+    }
+    
+    /**
+     * The state of the aggregation function <tt>ml.collect</tt>.
+     * Encoded rows are buffered and appended to the model every <tt>BATCH_SIZE</tt> rows and when the aggregation ends,
+     * the memory budget is enforced when the aggregation ends.
+     */
+    public static class RowCollector
+    {
+    	/** The number of rows that are buffered before they are appended to the model. */
+    	private static final int BATCH_SIZE = 10000;
+    	
+    	/** The model the rows are added to. */
+    	private MLModel mlModel;
+    	
+    	/** The buffer with the encoded rows. */
+    	private ColumnStore batch;
+    	
+    	/** The number of collected rows. */
+    	private long count;
+    	
+    	/**
+    	 * Encodes one row and buffers it.
+    	 *
+    	 * @param model the name of the model
+    	 * @param features the Map of featureNames and their respective values
+    	 * @param label the label
+    	 */
+    	@UserAggregationUpdate
+    	public void update(@Name("model") String model, @Name("features") Map<String, Object> features, @Name("label") Object label)
+    	{
+    		if(mlModel == null || !mlModel.name.equals(model))
+    		{
+    			finish();
+    			mlModel = MLModel.getModel(model);
+    			batch 	= new ColumnStore(mlModel.nFeatures+1);
+    		}
+    		batch.add(mlModel.encode(features, label));
+    		count++;
+    		if(batch.size() >= BATCH_SIZE) flush();
+    	}
+    	
+    	/**
+    	 * Appends the remaining rows to the model.
+    	 *
+    	 * @return the number of added rows
+    	 */
+    	@UserAggregationResult
+    	public Long result()
+    	{
+    		finish();
+    		return count;
+    	}
+    	
+    	/**
+    	 * Appends the remaining rows to the model and enforces the memory budget once for all of its rows.
+    	 */
+    	private void finish()
+    	{
+    		if(batch == null) return;
+    		flush();
+    		MemoryBudget.enforce(mlModel);
+    	}
+    	
+    	/**
+    	 * Appends the buffered rows to the model and clears the buffer.
+    	 */
+    	private void flush()
+    	{
+    		if(batch == null) return;
+    		mlModel.addAll(batch);
+    		batch.clear();
+    	}
+    }
 }
-
-
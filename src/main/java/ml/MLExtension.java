@@ -0,0 +1,94 @@
+package ml;
+
+import java.io.File;
+
+import org.neo4j.io.fs.DefaultFileSystemAbstraction;
+import org.neo4j.kernel.configuration.Config;
+import org.neo4j.kernel.extension.KernelExtensionFactory;
+import org.neo4j.kernel.impl.logging.LogService;
+import org.neo4j.kernel.impl.spi.KernelContext;
+import org.neo4j.kernel.lifecycle.Lifecycle;
+import org.neo4j.kernel.lifecycle.LifecycleAdapter;
+import org.neo4j.logging.Log;
+
+/**
+ * Kernel extension that ties the model snapshots to the lifecycle of the database.
+ * When the database starts the snapshots in its store directory are indexed, so the models can be restored on first use.
+ * When it stops all trained models are written.
+ * It also reads the settings of the {@link MemoryBudget} from the configuration of the database
+ * and starts loading the Nd4j backend in the background, see {@link Nd4jBootstrap}.
+ * Databases on an in-memory file system (e.g. the test databases) do not store snapshots.
+ *
+ * @author mwe
+ */
+public class MLExtension extends KernelExtensionFactory<MLExtension.Dependencies>
+{
+	/** The name of the directory in the store directory that holds the snapshots. */
+	static final String SNAPSHOT_DIRECTORY = "ml-models";
+
+	/**
+	 * The services of the database the extension depends on.
+	 */
+	public interface Dependencies
+	{
+		/**
+		 * Gets the log service.
+		 *
+		 * @return the LogService
+		 */
+		LogService logService();
+		
+		/**
+		 * Gets the configuration of the database.
+		 *
+		 * @return the Config
+		 */
+		Config config();
+	}
+
+	/**
+	 * Instantiates a new MLExtension.
+	 */
+	public MLExtension()
+	{
+		super("ml-procedures");
+	}
+
+	/* (non-Javadoc)
+	 * @see org.neo4j.kernel.extension.KernelExtensionFactory#newInstance(org.neo4j.kernel.impl.spi.KernelContext, java.lang.Object)
+	 */
+	@Override
+	public Lifecycle newInstance(KernelContext context, Dependencies dependencies)
+	{
+		boolean persistent 	= context.fileSystem() instanceof DefaultFileSystemAbstraction;
+		File directory 		= new File(context.storeDir(), SNAPSHOT_DIRECTORY);
+		Log log 			= dependencies.logService().getUserLog(MLExtension.class);
+		Config config 		= dependencies.config();
+
+		return new LifecycleAdapter()
+		{
+			@Override
+			public void start() throws Throwable
+			{
+				Nd4jBootstrap.startInBackground(log);
+				MemoryBudget.configure(config.getRaw());
+				if(MemoryBudget.getBudget() > 0) log.info("Memory budget of the models: " + MemoryBudget.getBudget() + " bytes" + (persistent ? "" : ", models are not evicted without snapshots"));
+				if(!persistent) return;
+				ModelSnapshots.configure(directory, log);
+				log.info("Found " + ModelSnapshots.available.size() + " model snapshots in " + directory);
+			}
+
+			@Override
+			public void stop() throws Throwable
+			{
+				MemoryBudget.disable();
+				if(!persistent) return;
+				for(MLModel model : MLModel.models.values())
+				{
+					ModelSnapshots.save(model);
+				}
+				ModelSnapshots.disable();
+			}
+		};
+	}
+}
@@ -1,14 +1,18 @@
 package ml;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 /**
  * Abstract class that defines the models for Machine Learning.
@@ -23,28 +27,62 @@ public abstract class MLModel
 	/** The name of the model. */
 	final String name;	
 	
-	/** The names of features and their data types. */
-	final Map<String, Types> types = new HashMap<>();
+	/** The names of features and their data types in the order of the feature columns. */
+	final Map<String, Types> types = new LinkedHashMap<>();
 	
 	/** The number of features of the model. */
 	final int nFeatures;
 	
-	/** The rows that are added to the model and trained upon. */
-	List<List<String>> rows;
+	/** The dictionaries of the features in column order, null for numeric features. */
+	final ClassAttribute[] classAttributes;
+	
+	/** The number of stripes that buffer added rows, one per core so concurrent add calls rarely share a stripe. */
+	static final int N_STRIPES = Runtime.getRuntime().availableProcessors();
+	
+	/** The rows that are trained upon, stored column by column with the label in column 0. Only changed while <tt>trainLock</tt> is held. */
+	ColumnStore rows;
+	
+	/** The stripes that buffer added rows until they are merged into <tt>rows</tt>, each one guarded by the lock with the same index. */
+	final ColumnStore[] stripes;
+	
+	/** The locks of the stripes. */
+	final ReentrantLock[] stripeLocks;
 	
 	/** The number of added rows. */
-	int nRows;
+	final AtomicInteger nRows = new AtomicInteger();
 	
 	/** The state of the model. */
-	State state;
+	volatile State state;
+	
+	/** The encoder of the date feature with the reference day of the last training, null if the model has not been trained. */
+	volatile DateEncoder dateEncoder;
 	
 	/** The Map with extra attributes. */
 	Map<String, String> extra;
 	
+	/** The lock that prevents two trainings of the model at the same time. */
+	final ReentrantLock trainLock = new ReentrantLock();
+	
+	/** The iteration or epoch the running training has reached. */
+	volatile long progress;
+	
+	/** The last cost the running training has computed. */
+	volatile double progressCost = Double.NaN;
+	
+	/** The runtime counters of the model, listed by <tt>ml.stats</tt>. */
+	final ModelStats stats = new ModelStats();
+	
+	/** The time the model has been used the last time, the least recently used models are evicted first. */
+	volatile long lastUsed = System.nanoTime();
+	
+	/** The flag that indicates whether the model has been evicted to its snapshot, see {@link MemoryBudget}. */
+	volatile boolean evicted;
+	
 	/**
 	 * Instantiates a new MLModel.
-	 * Stores a new model in the ConcurrentHashMap <tt>models</tt>.
+	 * The model is not registered in <tt>models</tt> yet, see {@link #create(String, Map, Map, Map, boolean, String)}.
 	 * Sets the state of the model to "created".
+	 * Waits for the Nd4j backend if it is not loaded yet.
 	 *
 	 * @param name the name of the model
 	 * @param types the Map of attribute names and their respective data types
@@ -52,7 +90,8 @@ public abstract class MLModel
 	 */
 	public MLModel(String name, Map<String, String> types, Map<String, String> extra) 
 	{
-		if (models.containsKey(name)) throw new IllegalArgumentException("Model "+name+" already exists, please remove first");
+		if (models.containsKey(name) || ModelSnapshots.exists(name)) throw new IllegalArgumentException("Model "+name+" already exists, please remove first");
+		Nd4jBootstrap.ensureInitialized();
 		
         this.name = name;
         for (Map.Entry<String, String> entry : types.entrySet()) 
@@ -61,12 +100,23 @@ public abstract class MLModel
         }
         
         this.nFeatures  = types.size();
-        this.rows 		= new ArrayList<List<String>>();
-		this.nRows 		= 0;
+        this.classAttributes = new ClassAttribute[nFeatures];
+        int col = 0;
+        for (Map.Entry<String, Types> entry : this.types.entrySet())
+        {
+        	if (entry.getValue() == Types._Class) classAttributes[col] = new ClassAttribute(entry.getKey());
+        	col++;
+        }
+        this.rows 		= new ColumnStore(nFeatures+1);
+        this.stripes 	= new ColumnStore[N_STRIPES];
+        this.stripeLocks = new ReentrantLock[N_STRIPES];
+        for(int s = 0; s < N_STRIPES; s++)
+        {
+        	stripes[s] 		= new ColumnStore(nFeatures+1);
+        	stripeLocks[s] 	= new ReentrantLock();
+        }
 		this.state		= State.created;
 		this.extra 		= extra;
-		
-        models.put(name, this);
 	}
 	
 	/**
@@ -81,6 +131,24 @@ public abstract class MLModel
 	 * @return the MLModel that has been created
 	 */
 	public static MLModel create(String name, Map<String, String> types, Map<String, Object> params, Map<String, String> extra, boolean timePeriod, String implementation)
+	{
+		MLModel model = build(name, types, params, extra, timePeriod, implementation);
+		if(models.putIfAbsent(name, model) != null) throw new IllegalArgumentException("Model "+name+" already exists, please remove first");
+		return model;
+	}
+	
+	/**
+	 * Instantiates a new MLModel of an implementation without registering it in <tt>models</tt>.
+	 *
+	 * @param name the name of the model
+	 * @param types the Map of attribute names and their respective data types
+	 * @param params the hyperparameters for the specific Machine Learning implementation
+	 * @param extra the Map with extra attributes
+	 * @param timePeriod the boolean that indicates whether a time series shall be predicted or not
+	 * @param implementation the name of the implementation
+	 * @return the MLModel
+	 */
+	static MLModel build(String name, Map<String, String> types, Map<String, Object> params, Map<String, String> extra, boolean timePeriod, String implementation)
 	{
 		switch(Implementations.getImplementations(implementation))
 		{
@@ -96,40 +164,343 @@ public abstract class MLModel
 	/**
 	 * Constructs a row from the given features and the prediction value and adds it to the rows of the model.
 	 * Sets the state of the model to "filled".
+	 * Can be called from several threads at once, the row is appended to the stripe of the calling thread.
 	 *
 	 * @param features the features
 	 * @param value the prediction value (label)
+	 * @return the row that has been added, label in column 0
 	 */
-	public void add(Map<String, Object> features, Object value)
+	public double[] add(Map<String, Object> features, Object value)
 	{
-		List<String> row = new ArrayList<>();
+		//An evicted instance may have been restored meanwhile, the row goes to the one that is registered
+		if(evicted)
+		{
+			MLModel registered = ModelSnapshots.reinstate(this);
+			if(registered != this) return registered.add(features, value);
+		}
 		
-		//Add the label to the first column of the row
-		row.add(value.toString());
+		double[] row = encode(features, value);
+		int stripe = stripe();
+		stripeLocks[stripe].lock();
+		int before = stripes[stripe].size();
+		try
+		{
+			stripes[stripe].add(row);
+			rowAdded(stripe, row);
+		}
+		catch(RuntimeException | Error e)
+		{
+			//The stripe must not keep a row the running statistics and nRows do not know about
+			stripes[stripe].truncate(before);
+			throw e;
+		}
+		finally
+		{
+			stripeLocks[stripe].unlock();
+		}
+		int added = nRows.incrementAndGet();
+		stats.added(1);
+		this.state = State.filled;
+		checkRegistered();
+		if(added % MemoryBudget.CHECK_EVERY == 0) MemoryBudget.enforce(this);
+		return row;
+	}
+	
+	/**
+	 * Adds all rows of a batch that has been built with {@link #encode(Map, Object)}.
+	 * Sets the state of the model to "filled".
+	 * Can be called from several threads at once, the rows are appended to the stripe of the calling thread.
+	 * The memory budget is not enforced per batch, the caller enforces it once all batches of a load have been added.
+	 *
+	 * @param batch the ColumnStore with the encoded rows
+	 */
+	public void addAll(ColumnStore batch)
+	{
+		if(batch.size() == 0) return;
 		
-		//Add the features 
+		int stripe = stripe();
+		stripeLocks[stripe].lock();
+		int before = stripes[stripe].size();
+		try
+		{
+			stripes[stripe].addAll(batch);
+			rowsAdded(stripe, batch);
+		}
+		catch(RuntimeException | Error e)
+		{
+			stripes[stripe].truncate(before);
+			throw e;
+		}
+		finally
+		{
+			stripeLocks[stripe].unlock();
+		}
+		nRows.addAndGet(batch.size());
+		stats.added(batch.size());
+		this.state = State.filled;
+		checkRegistered();
+	}
+	
+	/**
+	 * Puts the model back into memory if it has been evicted to its snapshot.
+	 * Rows that have been appended to an evicted instance after another one has been restored would be lost,
+	 * so the add fails and can be repeated on the restored instance.
+	 */
+	private void checkRegistered()
+	{
+		if(evicted && ModelSnapshots.reinstate(this) != this) throw new IllegalArgumentException("Model "+name+" has been restored from its snapshot while rows were added, please add them again.");
+	}
+	
+	/**
+	 * Gets the stripe of the calling thread.
+	 *
+	 * @return the index of the stripe
+	 */
+	private int stripe()
+	{
+		return (int) (Thread.currentThread().getId() % stripes.length);
+	}
+	
+	/**
+	 * Moves the rows of all stripes to <tt>rows</tt>. 
+	 * Has to be called while <tt>trainLock</tt> is held, rows can be added meanwhile.
+	 */
+	void mergeStripes()
+	{
+		for(int s = 0; s < stripes.length; s++)
+		{
+			stripeLocks[s].lock();
+			try
+			{
+				if(stripes[s].size() == 0) continue;
+				rows.addAll(stripes[s]);
+				stripeMerged(s);
+				
+				//A new stripe instead of clear(), so a large load does not keep its memory twice
+				stripes[s] = new ColumnStore(nFeatures+1);
+			}
+			finally
+			{
+				stripeLocks[s].unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Freezes the dictionaries of all class features, so predictions use exactly the values that have been trained upon.
+	 */
+	void freezeDictionaries()
+	{
+		for(ClassAttribute classAttribute : classAttributes)
+		{
+			if(classAttribute != null) classAttribute.freeze();
+		}
+	}
+	
+	/**
+	 * Gets the numeric representation of a class value for a prediction. 
+	 * Does not change the dictionary, values that have not been trained upon get {@link FrozenDictionary#UNSEEN}.
+	 *
+	 * @param col the index of the feature column
+	 * @param value the value of the feature
+	 * @return the numeric representation
+	 */
+	int lookup(int col, Object value)
+	{
+		return classAttributes[col].frozen.get(String.valueOf(value));
+	}
+	
+	/**
+	 * Checks an encoded row before it is added to the model, so a row the model cannot train on is rejected before it is stored.
+	 * Implementations override this for features with a format of their own, the default accepts every row.
+	 *
+	 * @param row the encoded row, label in column 0
+	 */
+	protected void checkRow(double[] row)
+	{
+	}
+	
+	/**
+	 * Called for every single row that has been added to the model, while the lock of its stripe is held. 
+	 * Implementations can override this to keep running statistics per stripe, the default does nothing.
+	 * If it throws, the row is removed from the stripe again, so an implementation has to change its statistics last.
+	 *
+	 * @param stripe the index of the stripe
+	 * @param row the added row, label in column 0
+	 */
+	protected void rowAdded(int stripe, double[] row)
+	{
+	}
+	
+	/**
+	 * Called for every batch of rows that has been added to the model, while the lock of its stripe is held. 
+	 * Implementations that override {@link #rowAdded(int, double[])} have to override this as well, the default does nothing.
+	 * If it throws, the rows are removed from the stripe again, so the statistics of the batch have to be changed at once.
+	 *
+	 * @param stripe the index of the stripe
+	 * @param batch the added rows
+	 */
+	protected void rowsAdded(int stripe, ColumnStore batch)
+	{
+	}
+	
+	/**
+	 * Called when the rows of a stripe have been merged into <tt>rows</tt>, while the lock of the stripe is held.
+	 * Implementations that keep statistics per stripe merge them here, the default does nothing.
+	 *
+	 * @param stripe the index of the stripe
+	 */
+	protected void stripeMerged(int stripe)
+	{
+	}
+	
+	/**
+	 * Constructs a row from the given features and the prediction value without adding it to the model.
+	 * Numeric values are parsed and class values are replaced by their numeric representation.
+	 * The row is checked with {@link #checkRow(double[])}.
+	 *
+	 * @param features the features
+	 * @param value the prediction value (label)
+	 * @return the row, label in column 0 followed by the features
+	 */
+	double[] encode(Map<String, Object> features, Object value)
+	{
+		Object[] values = new Object[nFeatures];
+		int colIter = 0;
 		for(String key : types.keySet())
 		{
 			if(features.get(key) == null) throw new IllegalArgumentException("The featurename '"+key+"' specified for this model is not given in this add call. Call ml.info.");
-						
-			String val = features.get(key).toString();
-			if(types.get(key) == Types._Numeric)
+			values[colIter++] = features.get(key);
+		}
+		return encode(values, value);
+	}
+	
+	/**
+	 * Constructs a row from the given feature values and the prediction value without adding it to the model.
+	 * The feature values have to be in the order of {@link #getFeatureNames()}.
+	 * Can be called from several threads at once.
+	 *
+	 * @param values the feature values
+	 * @param value the prediction value (label)
+	 * @return the row, label in column 0 followed by the features
+	 */
+	double[] encode(Object[] values, Object value)
+	{
+		double[] row = new double[nFeatures+1];
+		
+		//Add the label to the first column of the row
+		row[0] = toDouble(value);
+		
+		//Add the features 
+		int colIter = 1;
+		for(Map.Entry<String, Types> entry : types.entrySet())
+		{
+			Object val = values[colIter-1];
+			if(entry.getValue() == Types._Numeric)
 			{
-				row.add(val);
+				row[colIter] = toDouble(val);
 			}
 			else //for Types.Class
 			{
-				if(ClassAttribute.classAttributes.get(key) == null) //if attribute has not been added (only for the first row that gets added to the model)
-				{
-					new ClassAttribute(key);
-				}
-				ClassAttribute classAttribute = ClassAttribute.classAttributes.get(key); //get the instance of the attribute
-				row.add(classAttribute.getValue(val));
+				row[colIter] = classAttributes[colIter-1].getValue(val.toString());
 			}
+			colIter++;
 		}
-		rows.add(row);
-		nRows++;
-		this.state = State.filled;
+		checkRow(row);
+		return row;
+	}
+	
+	/**
+	 * Gets a numeric hyperparameter as double.
+	 *
+	 * @param params the hyperparameters
+	 * @param key the name of the hyperparameter
+	 * @param defaultValue the value if the hyperparameter is not given
+	 * @return the value
+	 */
+	static double getDouble(Map<String, Object> params, String key, double defaultValue)
+	{
+		Object value = params.get(key);
+		return value == null ? defaultValue : toDouble(value);
+	}
+	
+	/**
+	 * Gets a numeric hyperparameter as long.
+	 *
+	 * @param params the hyperparameters
+	 * @param key the name of the hyperparameter
+	 * @param defaultValue the value if the hyperparameter is not given
+	 * @return the value
+	 */
+	static long getLong(Map<String, Object> params, String key, long defaultValue)
+	{
+		Object value = params.get(key);
+		return value == null ? defaultValue : (long) toDouble(value);
+	}
+	
+	/**
+	 * Gets the names of the features in the order of the feature columns.
+	 *
+	 * @return the List of feature names
+	 */
+	public List<String> getFeatureNames()
+	{
+		return new ArrayList<>(types.keySet());
+	}
+	
+	/**
+	 * Converts a numeric value given by Cypher to a double. 
+	 * Numbers are converted directly, everything else is parsed from its String representation.
+	 *
+	 * @param value the value
+	 * @return the double value
+	 */
+	static double toDouble(Object value)
+	{
+		if(value instanceof Number) return ((Number) value).doubleValue();
+		return Double.parseDouble(value.toString());
+	}
+	
+	/**
+	 * Trains the model unless another training of it is running.
+	 * Used by the procedures instead of calling {@link #train()} directly.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws InterruptedException if the training has been cancelled
+	 */
+	public void trainExclusive() throws IOException, InterruptedException
+	{
+		if(!trainLock.tryLock()) throw new IllegalArgumentException("Model "+name+" is already being trained, please wait for the training to finish.");
+		try
+		{
+			long start 		= System.nanoTime();
+			progress 		= 0;
+			progressCost 	= Double.NaN;
+			mergeStripes();
+			freezeDictionaries();
+			train();
+			stats.trained(System.nanoTime() - start, progress);
+			
+			//Rows that have been added during the training are not part of it
+			if(state == State.trained && nRows.get() != rows.size()) state = State.filled;
+			ModelSnapshots.save(this);
+			if(MemoryBudget.dropRows && state != State.created) dropRows();
+		}
+		finally
+		{
+			trainLock.unlock();
+		}
+		MemoryBudget.enforce(this);
+	}
+	
+	/**
+	 * Drops the rows the model has been trained on, a new training only uses the rows that are added after it.
+	 * Has to be called while <tt>trainLock</tt> is held.
+	 */
+	void dropRows()
+	{
+		nRows.addAndGet(-rows.size());
+		rows = new ColumnStore(nFeatures+1);
 	}
 	
 	/**
@@ -145,27 +516,91 @@ public abstract class MLModel
 	 * Predicts values from the given features on a trained model.
 	 *
 	 * @param features the features
-	 * @return the Collection of different features and their predicted values
+	 * @return the lazily created rows of different features and their predicted values
 	 * @throws InterruptedException 
 	 * @throws IOException 
 	 */
-	protected abstract Collection<Map<String, Object>> predict(Map<String, List<Object>> features) throws IOException, InterruptedException;
+	protected abstract Stream<Map<String, Object>> predict(Map<String, List<Object>> features) throws IOException, InterruptedException;
+	
+	/**
+	 * Predicts a single value without creating any arrays.
+	 * Only supported by implementations that can compute a prediction inline, the default throws an IllegalArgumentException.
+	 *
+	 * @param features the Map of feature names and their values
+	 * @return the predicted value
+	 */
+	public double score(Map<String, Object> features)
+	{
+		throw new IllegalArgumentException("Model "+name+" does not support ml.score, please use ml.predict.");
+	}
+	
+	/**
+	 * Predicts the values for a batch of rows at once.
+	 * Only supported by implementations that can predict rows without a time series, the default throws an IllegalArgumentException.
+	 *
+	 * @param rows the feature values of every row in the order of {@link #getFeatureNames()}
+	 * @return the predicted values in the order of the rows
+	 */
+	public double[] predictBatch(List<Object[]> rows)
+	{
+		throw new IllegalArgumentException("Model "+name+" does not support batch predictions, please use ml.predict.");
+	}
+	
+	/**
+	 * Gets the implementation of the model.
+	 *
+	 * @return the Implementation
+	 */
+	protected abstract Implementations getImplementation();
+	
+	/**
+	 * Gets the boolean that indicates whether a time series shall be predicted or not.
+	 *
+	 * @return true for a time series
+	 */
+	protected abstract boolean isTimePeriod();
+	
+	/**
+	 * Gets the hyperparameters the model has been created with.
+	 *
+	 * @return the hyperparameters
+	 */
+	protected abstract Map<String, Object> getParams();
+	
+	/**
+	 * Writes the trained state of the implementation to a snapshot.
+	 *
+	 * @param out the output
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected abstract void writeSnapshot(DataOutputStream out) throws IOException;
+	
+	/**
+	 * Reads the trained state of the implementation written by {@link #writeSnapshot(DataOutputStream)}.
+	 * The <tt>dateEncoder</tt> has already been restored.
+	 *
+	 * @param in the input
+	 */
+	protected abstract void readSnapshot(ByteBuffer in);
 
 	/**
-	 * Removes the model from <tt>models</tt>.
+	 * Removes the model from <tt>models</tt> and deletes its snapshot.
 	 *
 	 * @param name the name of the model
 	 * @return the RowResult 
 	 */
 	public static ML.RowResult remove(String name) 
 	{
-        MLModel existing = models.remove(name);
-        if (existing != null) return new ML.RowResult("Removed Model: '"+name+"'");
+		boolean stored 		= ModelSnapshots.exists(name);
+        MLModel existing 	= models.remove(name);
+        ModelSnapshots.delete(name);
+        if (existing != null || stored) return new ML.RowResult("Removed Model: '"+name+"'");
         throw new IllegalArgumentException("No valid ML-Model " + name);
     }
 	
 	/**
 	 * Gets the instance of the model.
+	 * A model that is only stored as snapshot is restored on first use.
 	 *
 	 * @param name the name of the model
 	 * @return the MLModel
@@ -173,7 +608,27 @@ public abstract class MLModel
 	public static MLModel getModel(String name) 
 	{
         MLModel model = models.get(name);
-        if (model != null) return model;
+        if (model != null)
+        {
+        	model.lastUsed = System.nanoTime();
+        	return model;
+        }
+        if (ModelSnapshots.exists(name))
+        {
+        	try
+        	{
+        		model = ModelSnapshots.restore(name);
+        	}
+        	catch(IOException e)
+        	{
+        		throw new IllegalArgumentException("The snapshot of ML-Model " + name + " can not be read: " + e.getMessage());
+        	}
+        	if (model != null) 
+        	{
+        		MemoryBudget.enforce(model);
+        		return model;
+        	}
+        }
         throw new IllegalArgumentException("No valid ML-Model " + name);
     }
 
@@ -186,12 +641,19 @@ public abstract class MLModel
 	public List<String> getRows()
 	{
 		List<String> result = new ArrayList<>();
-		Iterator<List<String>> rowIter = rows.iterator();
-		while(rowIter.hasNext())
+		trainLock.lock();
+		try
 		{
-			result.add(rowIter.next().toString());
+			mergeStripes();
+			for(int i = 0; i < rows.size(); i++)
+			{
+				result.add(ColumnStore.rowToString(rows.getRow(i)));
+			}
+		}
+		finally
+		{
+			trainLock.unlock();
 		}
-		
 		return result;
 	}
 	
@@ -202,15 +664,84 @@ public abstract class MLModel
 	 */
 	protected abstract List<Object> getSpecials();
 	
+	/**
+	 * Estimates the bytes the rows of the model take on the heap, including the allocated but unused capacity.
+	 * The stripes are read without their locks, so rows that are added meanwhile may or may not be counted.
+	 *
+	 * @return the estimated bytes
+	 */
+	long heapBytes()
+	{
+		long bytes = rows.allocatedBytes();
+		for(ColumnStore stripe : stripes)
+		{
+			bytes += stripe.allocatedBytes();
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Estimates the bytes the trained values of the model take outside of the heap, in the buffers of the Nd4j arrays.
+	 *
+	 * @return the estimated bytes
+	 */
+	protected abstract long offHeapBytes();
 	
 	/**
-	 * Returns a List of names of all Models that have been created.
+	 * Gets the cost of the published training, computed from its final trained values.
+	 *
+	 * @return the cost, NaN if the model has not been trained
+	 */
+	protected abstract double trainedCost();
+	
+	/**
+	 * Estimates the work of a training of the model on its added rows, used to decide which models are trained side by side.
+	 *
+	 * @return the estimated number of floating point operations
+	 */
+	protected abstract long trainingWork();
+	
+	/**
+	 * Prepares the evaluation of candidate hyperparameters on the added rows for <tt>ml.tune</tt>. Called while <tt>trainLock</tt> is held.
+	 * The default throws an IllegalArgumentException.
+	 *
+	 * @param validation the part of the rows that is held out to score the candidates
+	 * @param random the Random for the split of the rows
+	 * @return the Evaluator
+	 */
+	protected HyperparameterSearch.Evaluator evaluator(double validation, Random random)
+	{
+		throw new IllegalArgumentException("Model " + name + " does not support the tuning of its hyperparameters.");
+	}
+	
+	/**
+	 * Cross validates the model on the added rows for <tt>ml.evaluate</tt> without changing its trained state. Called while <tt>trainLock</tt> is held.
+	 * The default throws an IllegalArgumentException.
+	 *
+	 * @param folds the number of folds
+	 * @param concurrency the number of folds that are trained and scored at the same time
+	 * @param random the Random for the split of the rows
+	 * @return the Folds in the order of their numbers
+	 * @throws InterruptedException if the evaluation has been cancelled
+	 */
+	protected List<CrossValidation.Fold> crossValidate(int folds, int concurrency, Random random) throws InterruptedException
+	{
+		throw new IllegalArgumentException("Model " + name + " does not support cross validation.");
+	}
+	
+	
+	/**
+	 * Returns a List of names of all Models that have been created or can be restored from a snapshot.
 	 * 
 	 * @return the List of Model names
 	 */
 	public static List<String> getAllModels()
 	{
 		List<String> modelNames = Collections.list(models.keys());
+		for(String stored : ModelSnapshots.available)
+		{
+			if(!modelNames.contains(stored)) modelNames.add(stored);
+		}
 		Collections.sort(modelNames);
 		if(modelNames.isEmpty())
 		{
@@ -283,22 +814,23 @@ public abstract class MLModel
 	}
 	
 	/**
-	 * Stores the possible values for attributes of type <tt>Class</tt> and a numeric representation.
+	 * Stores the possible values for an attribute of type <tt>Class</tt> of one model and a numeric representation.
 	 * The latter can be used for training and prediction.
+	 * New values are added while rows are added, predictions only read the dictionary that has been frozen for the last training.
 	 */
 	protected static class ClassAttribute
 	{
-		/** The Map that stores the different attributes of type class. */
-		static ConcurrentHashMap<String,ClassAttribute> classAttributes = new ConcurrentHashMap<>();
-		
 		/** The Map with the original values of the attribute and their numeric representations. */
-		Map<String, Integer> valuesMap;
+		final Map<String, Integer> valuesMap;
 		
 		/** The numeric representation for the next new attribute value. */
-		Integer newNumValue;
+		final AtomicInteger newNumValue;
 		
 		/** The name of the attribute. */
-		String name;
+		final String name;
+		
+		/** The values of the last training, replaced as a whole so it can be read without locking. */
+		volatile FrozenDictionary frozen = FrozenDictionary.EMPTY;
 		
 		/**
 		 * Instantiates a new class attribute.
@@ -308,29 +840,29 @@ public abstract class MLModel
 		public ClassAttribute(String name)
 		{
 			this.name = name;
-			this.newNumValue = 0;
-			valuesMap = new HashMap<>();
-			classAttributes.put(name, this);
+			this.newNumValue = new AtomicInteger();
+			valuesMap = new ConcurrentHashMap<>();
 		}
 		
 		/**
-		 * Gets the numeric value for a class attribute as String.
+		 * Gets the numeric value for a class attribute and adds it if it is new.
+		 * Can be called from several threads at once.
 		 *
 		 * @param val the name of the attribute
 		 * @return the numeric value
 		 */
-		protected String getValue(String val)
+		protected int getValue(String val)
 		{
 			//if this is the first time this value gets passed, store it and its numeric representation in the "valuesMap"
-			if(valuesMap.get(val) == null)
-			{
-				valuesMap.put(val, newNumValue);
-				newNumValue++; //set every value to zero so it will be ignored for prediction
-			}
-			return valuesMap.get(val).toString(); //return the numeric representation (as String)
+			return valuesMap.computeIfAbsent(val, v -> newNumValue.getAndIncrement()); //return the numeric representation
+		}
+		
+		/**
+		 * Replaces the frozen dictionary with the current values.
+		 */
+		void freeze()
+		{
+			frozen = new FrozenDictionary(valuesMap);
 		}
 	}
 }
-
-
-	
\ No newline at end of file
@@ -0,0 +1,115 @@
+package ml;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.procedure.Context;
+import org.neo4j.procedure.Mode;
+import org.neo4j.procedure.Name;
+import org.neo4j.procedure.Procedure;
+
+/**
+ * Provides the stored procedures that read or write all nodes of a label.
+ * They are kept apart from {@link ML}, so only the public API is injected into the procedure classes and the plugin loads
+ * without <tt>dbms.security.procedures.unrestricted</tt>. The {@link NodeLoader} resolves the kernel components it needs from the database.
+ *
+ * @author mwe
+ */
+public class MLNodes 
+{
+	/** The database service. */
+	@Context
+    public GraphDatabaseService db;
+       
+    /**
+     * Adds training data from all nodes with the given label to the model.
+     * The nodes are read with the kernel API and encoded in parallel, which avoids the per row overhead of <tt>ml.add</tt>.
+     * Nodes that do not have all of the given properties are skipped.
+     * <p>
+     * The keys of the Map <tt>featureProps</tt> must be the same as the ones of Map <tt>types</tt> from the "create" call.
+     * <p>
+     * Example for one feature called "date":
+     * <code>
+     * CALL ml.addFromLabel('user', 'User', {date: 'date'}, 'count')
+     * </code>
+     *
+     * @param model the name of the model
+     * @param label the name of the label
+     * @param featureProps the Map of featureNames and the names of their respective node properties
+     * @param labelProp the name of the node property with the label values
+     * @return the stream of RowResult
+     */
+    @Procedure
+    public Stream<ML.RowResult> addFromLabel(@Name("model") String model, @Name("label") String label, @Name("featureProps") Map<String, String> featureProps, @Name("labelProp") String labelProp)
+    {
+    	MLModel mlModel = MLModel.getModel(model);
+    	long[] counts 	= new NodeLoader(db).addFromLabel(mlModel, label, featureProps, labelProp);
+        return Stream.of(new ML.RowResult("Added "+counts[0]+" rows to Model '"+model+"', skipped "+counts[1]+" nodes without the given properties."));
+    }
+    
+    /**
+     * Predicts a value for every node with the given label and writes it to a property of the node.
+     * The nodes are predicted in batches by several threads and every batch is committed in its own transaction.
+     * Nodes that do not have all of the given feature properties are skipped.
+     * <p>
+     * Possible keys of the Map <tt>config</tt> are <tt>batchSize</tt> (nodes per transaction, default 10000) 
+     * and <tt>concurrency</tt> (number of threads, default number of cores).
+     * <p>
+     * Example for one feature called "date":
+     * <code>
+     * CALL ml.predictAndWrite('user', 'User', {date: 'date'}, 'predictedCount', {batchSize: 5000})
+     * </code>
+     *
+     * @param model the name of the model
+     * @param label the name of the label
+     * @param featureProps the Map of featureNames and the names of their respective node properties
+     * @param targetProp the name of the node property the predictions are written to
+     * @param config the Map with batchSize and concurrency
+     * @return the stream of WriteResult
+     */
+    @Procedure(mode = Mode.WRITE)
+    public Stream<WriteResult> predictAndWrite(@Name("model") String model, @Name("label") String label, @Name("featureProps") Map<String, String> featureProps, 
+    		@Name("targetProp") String targetProp, @Name(value = "config", defaultValue = "null") Map<String, Object> config)
+    {
+    	if(config == null) config = Collections.emptyMap();
+    	int batchSize 	= (int) MLModel.getLong(config, "batchSize", NodeLoader.DEFAULT_BATCH_SIZE);
+    	int concurrency = (int) MLModel.getLong(config, "concurrency", Runtime.getRuntime().availableProcessors());
+    	
+    	MLModel mlModel = MLModel.getModel(model);
+    	long start 		= System.currentTimeMillis();
+    	long[] counts 	= new NodeLoader(db).predictAndWrite(mlModel, label, featureProps, targetProp, batchSize, concurrency);
+    	return Stream.of(new WriteResult(counts[0], counts[1], System.currentTimeMillis() - start));
+    }
+    
+    /**
+     * Used as an object to be returned as a stream to Neo4j and displayed as the result of a stored procedure.
+     * Represents the outcome of writing predictions to nodes.
+     */
+    public static class WriteResult
+    {
+    	/** The number of nodes the prediction has been written to. */
+    	public long written;
+    	
+    	/** The number of nodes without all feature properties. */
+    	public long skipped;
+    	
+    	/** The time it took in milliseconds. */
+    	public long elapsed;
+    	
+    	/**
+    	 * Instantiates a new WriteResult.
+    	 *
+    	 * @param written the number of written nodes
+    	 * @param skipped the number of skipped nodes
+    	 * @param elapsed the time in milliseconds
+    	 */
+    	public WriteResult(long written, long skipped, long elapsed)
+    	{
+    		this.written = written;
+    		this.skipped = skipped;
+    		this.elapsed = elapsed;
+    	}
+    }
+}
@@ -0,0 +1,191 @@
+package ml;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the memory of all models within a budget that is set in the configuration of the database.
+ * The footprint of a model is the memory of its rows on the heap plus its trained values outside of the heap.
+ * When the budget is exceeded the rows of trained models are first compacted to their size and then the least recently used
+ * trained models are evicted to their snapshot, from which they are restored transparently the next time they are used.
+ * <p>
+ * Settings in neo4j.conf:
+ * <ul>
+ * <li><tt>ml.memory.budget</tt>: the budget in bytes, with the optional suffix k, m or g (default: no budget)</li>
+ * <li><tt>ml.memory.drop_rows_after_training</tt>: true to drop the rows of a model after every successful training (default: false)</li>
+ * </ul>
+ *
+ * @author mwe
+ */
+public final class MemoryBudget
+{
+	/** The setting of the budget. */
+	static final String BUDGET_SETTING = "ml.memory.budget";
+
+	/** The setting that drops the rows after training. */
+	static final String DROP_ROWS_SETTING = "ml.memory.drop_rows_after_training";
+
+	/** The number of rows added one by one to a model between two checks of the budget. */
+	static final int CHECK_EVERY = 10000;
+
+	/** The budget in bytes, 0 for no budget. */
+	private static volatile long budget = 0;
+
+	/** The flag that indicates whether the rows of a model are dropped after its training. */
+	static volatile boolean dropRows = false;
+
+	/** The flag that is set while a thread enforces the budget, the others do not wait for it. */
+	private static final AtomicBoolean enforcing = new AtomicBoolean();
+
+	private MemoryBudget()
+	{
+	}
+
+	/**
+	 * Reads the settings from the raw configuration of the database.
+	 *
+	 * @param config the raw settings
+	 */
+	public static void configure(Map<String, String> config)
+	{
+		String value 	= config.get(BUDGET_SETTING);
+		budget 			= value != null ? parseBytes(value) : 0;
+		dropRows 		= Boolean.parseBoolean(config.get(DROP_ROWS_SETTING));
+	}
+
+	/**
+	 * Removes the budget and keeps the rows after training.
+	 */
+	public static void disable()
+	{
+		budget 		= 0;
+		dropRows 	= false;
+	}
+
+	/**
+	 * Gets the budget.
+	 *
+	 * @return the budget in bytes, 0 for no budget
+	 */
+	public static long getBudget()
+	{
+		return budget;
+	}
+
+	/**
+	 * Parses a number of bytes with the optional suffix k, m or g.
+	 *
+	 * @param value the number of bytes, e.g. <tt>512m</tt>
+	 * @return the bytes
+	 */
+	static long parseBytes(String value)
+	{
+		String trimmed = value.trim().toLowerCase();
+		if(trimmed.isEmpty()) throw new IllegalArgumentException("Illegal value for " + BUDGET_SETTING + ": '" + value + "'");
+
+		long unit = 1;
+		switch(trimmed.charAt(trimmed.length() - 1))
+		{
+			case 'k':
+				unit = 1L << 10;
+				break;
+			case 'm':
+				unit = 1L << 20;
+				break;
+			case 'g':
+				unit = 1L << 30;
+				break;
+			default:
+				break;
+		}
+		try
+		{
+			long bytes = Long.parseLong(unit == 1 ? trimmed : trimmed.substring(0, trimmed.length() - 1).trim()) * unit;
+			if(bytes < 0) throw new NumberFormatException();
+			return bytes;
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Illegal value for " + BUDGET_SETTING + ": '" + value + "', please use a number of bytes like 512m or 2g.");
+		}
+	}
+
+	/**
+	 * Estimates the memory a model takes.
+	 *
+	 * @param model the MLModel
+	 * @return the estimated bytes
+	 */
+	static long footprint(MLModel model)
+	{
+		return model.heapBytes() + model.offHeapBytes();
+	}
+
+	/**
+	 * Estimates the memory of all models in memory.
+	 *
+	 * @return the estimated bytes
+	 */
+	public static long usedBytes()
+	{
+		long used = 0;
+		for(MLModel model : MLModel.models.values())
+		{
+			used += footprint(model);
+		}
+		return used;
+	}
+
+	/**
+	 * Brings the models back within the budget if it is exceeded.
+	 * Compacts the rows of the trained models first, then evicts the least recently used trained models that are not being trained
+	 * and have no rows that have been added after their training. Models can only be evicted if snapshots are enabled.
+	 * Returns at once if another thread is enforcing the budget.
+	 *
+	 * @param current the model that is being used and is not evicted, may be null
+	 */
+	static void enforce(MLModel current)
+	{
+		long limit = budget;
+		if(limit <= 0 || !enforcing.compareAndSet(false, true)) return;
+		try
+		{
+			long used = usedBytes();
+			if(used <= limit) return;
+
+			//Compacting keeps every model in memory
+			List<SimpleImmutableEntry<Long, MLModel>> trained = new ArrayList<>();
+			for(MLModel model : MLModel.models.values())
+			{
+				if(model.state != MLModel.State.trained || !model.trainLock.tryLock()) continue;
+				try
+				{
+					long before = model.rows.allocatedBytes();
+					model.rows.trimToSize();
+					used -= before - model.rows.allocatedBytes();
+				}
+				finally
+				{
+					model.trainLock.unlock();
+				}
+				if(model != current) trained.add(new SimpleImmutableEntry<>(model.lastUsed, model));
+			}
+
+			//Evict the models that have not been used for the longest time, sorted by the times read above as they change meanwhile
+			trained.sort(Map.Entry.comparingByKey());
+			for(Map.Entry<Long, MLModel> entry : trained)
+			{
+				if(used <= limit || !ModelSnapshots.isEnabled()) break;
+				long bytes = footprint(entry.getValue());
+				if(ModelSnapshots.evict(entry.getValue())) used -= bytes;
+			}
+		}
+		finally
+		{
+			enforcing.set(false);
+		}
+	}
+}
@@ -0,0 +1,570 @@
+package ml;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.neo4j.logging.Log;
+
+/**
+ * Writes trained models to binary snapshot files and restores them.
+ * The snapshots are stored in a directory of the database, one file per model.
+ * They are indexed when the database starts and a model is only read (memory-mapped) when it is used for the first time.
+ * <p>
+ * The raw rows are not part of a snapshot. A restored model can predict right away,
+ * but a new training only uses the rows that have been added after the restore.
+ *
+ * @author mwe
+ */
+public class ModelSnapshots
+{
+	/** The first bytes of every snapshot file ("MLMS"). */
+	static final int MAGIC = 0x4D4C4D53;
+
+	/** The version of the snapshot format, snapshots of other versions are rejected. */
+	static final int VERSION = 1;
+
+	/** The file extension of the snapshot files. */
+	static final String EXTENSION = ".model";
+
+	/** The directory of the snapshots, null if snapshots are disabled. */
+	private static volatile File directory;
+
+	/** The log for failed snapshots, may be null. */
+	private static volatile Log log;
+
+	/** The names of the models with a snapshot that has not been restored yet. */
+	static Set<String> available = ConcurrentHashMap.newKeySet();
+
+	private ModelSnapshots()
+	{
+	}
+
+	/**
+	 * Enables snapshots in the directory and indexes the existing snapshot files.
+	 *
+	 * @param dir the directory of the snapshots
+	 * @param logger the log for failed snapshots, may be null
+	 * @throws IOException if the directory can not be created
+	 */
+	public static synchronized void configure(File dir, Log logger) throws IOException
+	{
+		Files.createDirectories(dir.toPath());
+		directory 	= dir;
+		log 		= logger;
+		available.clear();
+
+		File[] files = dir.listFiles((d, fileName) -> fileName.endsWith(EXTENSION));
+		if(files == null) return;
+		for(File file : files)
+		{
+			String fileName = file.getName();
+			String name = URLDecoder.decode(fileName.substring(0, fileName.length() - EXTENSION.length()), "UTF-8");
+			if(!MLModel.models.containsKey(name)) available.add(name);
+		}
+	}
+
+	/**
+	 * Disables snapshots.
+	 */
+	public static synchronized void disable()
+	{
+		directory = null;
+		available.clear();
+	}
+
+	/**
+	 * Checks whether snapshots are enabled.
+	 *
+	 * @return true if snapshots are written
+	 */
+	public static boolean isEnabled()
+	{
+		return directory != null;
+	}
+
+	/**
+	 * Checks whether there is a snapshot of a model that has not been restored yet.
+	 *
+	 * @param name the name of the model
+	 * @return true if the model can be restored
+	 */
+	public static boolean exists(String name)
+	{
+		return available.contains(name);
+	}
+
+	/**
+	 * Writes the snapshot of a trained model.
+	 * The file is written next to the old one and moved over it, so a crash never leaves a broken snapshot.
+	 * Failures are logged and do not affect the model.
+	 *
+	 * @param model the MLModel
+	 * @return true if the snapshot has been written
+	 */
+	public static boolean save(MLModel model)
+	{
+		File dir = directory;
+		if(dir == null || model.state != MLModel.State.trained) return false;
+
+		try
+		{
+			File file 	= file(dir, model.name);
+			File tmp 	= new File(dir, file.getName() + ".tmp");
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp.toPath()))))
+			{
+				write(model, out);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		}
+		catch(IOException | RuntimeException e)
+		{
+			Log logger = log;
+			if(logger != null) logger.warn("Snapshot of model '" + model.name + "' could not be written", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the snapshot of a trained model and removes the model from memory, it is restored the next time it is used.
+	 * Models that are being trained or have rows that have been added after their training are not evicted.
+	 * A row that is added to the instance while it is evicted brings it back with {@link #reinstate(MLModel)}.
+	 *
+	 * @param model the MLModel
+	 * @return true if the model has been evicted
+	 */
+	static synchronized boolean evict(MLModel model)
+	{
+		if(!model.trainLock.tryLock()) return false;
+		try
+		{
+			if(model.state != MLModel.State.trained || model.nRows.get() != model.rows.size() || !save(model)) return false;
+
+			//The snapshot is available before the model is removed, so a lookup always finds one of them
+			available.add(model.name);
+			model.evicted = true;
+			if(MLModel.models.remove(model.name, model)) return true;
+
+			available.remove(model.name);
+			model.evicted = false;
+			return false;
+		}
+		finally
+		{
+			model.trainLock.unlock();
+		}
+	}
+
+	/**
+	 * Puts an evicted model back into memory because rows are added to it, unless it has been restored meanwhile.
+	 * Runs under the same lock as {@link #restore(String)}, so exactly one of the instances is registered.
+	 *
+	 * @param model the evicted MLModel
+	 * @return the instance that is registered under the name of the model, the restored one if it has been restored meanwhile
+	 */
+	static synchronized MLModel reinstate(MLModel model)
+	{
+		if(model.evicted && MLModel.models.putIfAbsent(model.name, model) == null)
+		{
+			available.remove(model.name);
+			model.evicted = false;
+		}
+		MLModel registered = MLModel.models.get(model.name);
+		return registered != null ? registered : model;
+	}
+
+	/**
+	 * Restores a model from its snapshot and registers it in <tt>models</tt>.
+	 *
+	 * @param name the name of the model
+	 * @return the MLModel or null if there is no snapshot
+	 * @throws IOException if the snapshot can not be read
+	 */
+	public static synchronized MLModel restore(String name) throws IOException
+	{
+		MLModel model = MLModel.models.get(name);
+		if(model != null) return model;
+
+		File dir = directory;
+		if(dir == null || !available.remove(name)) return null;
+
+		try(FileChannel channel = FileChannel.open(file(dir, name).toPath(), StandardOpenOption.READ))
+		{
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return read(in);
+		}
+		catch(IOException | RuntimeException e)
+		{
+			available.add(name);
+			throw e;
+		}
+	}
+
+	/**
+	 * Deletes the snapshot of a model.
+	 *
+	 * @param name the name of the model
+	 */
+	public static void delete(String name)
+	{
+		available.remove(name);
+		File dir = directory;
+		if(dir == null) return;
+
+		try
+		{
+			Files.deleteIfExists(file(dir, name).toPath());
+		}
+		catch(IOException e)
+		{
+			Log logger = log;
+			if(logger != null) logger.warn("Snapshot of model '" + name + "' could not be deleted", e);
+		}
+	}
+
+	/**
+	 * Writes a model in the snapshot format.
+	 *
+	 * @param model the MLModel
+	 * @param out the output
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static void write(MLModel model, DataOutputStream out) throws IOException
+	{
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		writeString(out, model.getImplementation().name());
+		writeString(out, model.name);
+		out.writeBoolean(model.isTimePeriod());
+
+		//Features in column order with their data types
+		out.writeInt(model.nFeatures);
+		for(Map.Entry<String, MLModel.Types> entry : model.types.entrySet())
+		{
+			writeString(out, entry.getKey());
+			writeString(out, entry.getValue() == MLModel.Types._Numeric ? "numeric" : "class");
+		}
+
+		//Extra attributes, -1 for none
+		out.writeInt(model.extra == null ? -1 : model.extra.size());
+		if(model.extra != null)
+		{
+			//Cypher does not check the value types of the Map, so they are written as Strings
+			for(Map.Entry<?, ?> entry : ((Map<?, ?>) model.extra).entrySet())
+			{
+				writeString(out, String.valueOf(entry.getKey()));
+				writeString(out, String.valueOf(entry.getValue()));
+			}
+		}
+
+		writeValue(out, model.getParams());
+
+		//Dictionaries of the class attributes
+		List<MLModel.ClassAttribute> classAttributes = new ArrayList<>();
+		for(MLModel.ClassAttribute classAttribute : model.classAttributes)
+		{
+			if(classAttribute != null) classAttributes.add(classAttribute);
+		}
+		out.writeInt(classAttributes.size());
+		for(MLModel.ClassAttribute classAttribute : classAttributes)
+		{
+			Map<String, Integer> values = new LinkedHashMap<>(classAttribute.valuesMap);
+			writeString(out, classAttribute.name);
+			out.writeInt(classAttribute.newNumValue.get());
+			writeEntries(out, values);
+			
+			//Values that have been added after the training stay unseen for the predictions
+			writeEntries(out, classAttribute.frozen.entries());
+		}
+
+		model.writeSnapshot(out);
+		out.writeLong(model.dateEncoder != null ? model.dateEncoder.referenceDay : Long.MIN_VALUE);
+	}
+
+	/**
+	 * Reads a model in the snapshot format and registers it in <tt>models</tt>.
+	 * The model is only registered once it has been restored completely, so no lookup finds a half restored model.
+	 *
+	 * @param in the input
+	 * @return the registered MLModel, the one that has been registered meanwhile if there is one
+	 */
+	static MLModel read(ByteBuffer in)
+	{
+		if(in.getInt() != MAGIC) throw new IllegalArgumentException("Not a model snapshot");
+		int version = in.getInt();
+		if(version != VERSION) throw new IllegalArgumentException("Unknown snapshot version " + version);
+
+		String implementation 	= readString(in);
+		String name 			= readString(in);
+		boolean timePeriod 		= in.get() != 0;
+
+		Map<String, String> types = new LinkedHashMap<>();
+		int nFeatures = in.getInt();
+		for(int j = 0; j < nFeatures; j++)
+		{
+			String key = readString(in);
+			types.put(key, readString(in));
+		}
+
+		Map<String, String> extra = null;
+		int nExtra = in.getInt();
+		if(nExtra >= 0)
+		{
+			extra = new LinkedHashMap<>();
+			for(int j = 0; j < nExtra; j++)
+			{
+				String key = readString(in);
+				extra.put(key, readString(in));
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		Map<String, Object> params = (Map<String, Object>) readValue(in);
+
+		MLModel model = MLModel.build(name, types, params, extra, timePeriod, implementation);
+
+		//Dictionaries of the class attributes
+		List<String> featureNames = model.getFeatureNames();
+		int nClasses = in.getInt();
+		for(int c = 0; c < nClasses; c++)
+		{
+			String className 	= readString(in);
+			int newNumValue 	= in.getInt();
+			MLModel.ClassAttribute classAttribute = model.classAttributes[featureNames.indexOf(className)];
+			classAttribute.valuesMap.putAll(readEntries(in));
+			classAttribute.newNumValue.set(newNumValue);
+			classAttribute.frozen = new FrozenDictionary(readEntries(in));
+		}
+
+		//The reference day is the last value of the snapshot, the model publishes it with its trained values
+		long referenceDay 	= in.getLong(in.limit() - Long.BYTES);
+		model.dateEncoder 	= referenceDay != Long.MIN_VALUE ? new DateEncoder(referenceDay) : null;
+		model.readSnapshot(in);
+		model.state = MLModel.State.trained;
+
+		MLModel registered = MLModel.models.putIfAbsent(name, model);
+		return registered != null ? registered : model;
+	}
+
+	/**
+	 * Writes the values of a class attribute and their numeric representations.
+	 *
+	 * @param out the output
+	 * @param entries the values and their numeric representations
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static void writeEntries(DataOutputStream out, Map<String, Integer> entries) throws IOException
+	{
+		out.writeInt(entries.size());
+		for(Map.Entry<String, Integer> entry : entries.entrySet())
+		{
+			writeString(out, entry.getKey());
+			out.writeInt(entry.getValue());
+		}
+	}
+
+	/**
+	 * Reads entries written by {@link #writeEntries(DataOutputStream, Map)}.
+	 *
+	 * @param in the input
+	 * @return the values and their numeric representations
+	 */
+	static Map<String, Integer> readEntries(ByteBuffer in)
+	{
+		Map<String, Integer> entries = new LinkedHashMap<>();
+		int nValues = in.getInt();
+		for(int v = 0; v < nValues; v++)
+		{
+			String value = readString(in);
+			entries.put(value, in.getInt());
+		}
+		return entries;
+	}
+
+	/**
+	 * Gets the snapshot file of a model.
+	 *
+	 * @param dir the directory of the snapshots
+	 * @param name the name of the model
+	 * @return the File
+	 * @throws UnsupportedEncodingException never, UTF-8 is always supported
+	 */
+	private static File file(File dir, String name) throws UnsupportedEncodingException
+	{
+		return new File(dir, URLEncoder.encode(name, "UTF-8") + EXTENSION);
+	}
+
+	/**
+	 * Writes a String as length and UTF-8 bytes.
+	 *
+	 * @param out the output
+	 * @param value the String
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a String written by {@link #writeString(DataOutputStream, String)}.
+	 *
+	 * @param in the input
+	 * @return the String
+	 */
+	static String readString(ByteBuffer in)
+	{
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes an array of doubles as length and values.
+	 *
+	 * @param out the output
+	 * @param values the values
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static void writeDoubles(DataOutputStream out, double[] values) throws IOException
+	{
+		out.writeInt(values.length);
+		for(double value : values)
+		{
+			out.writeDouble(value);
+		}
+	}
+
+	/**
+	 * Reads an array of doubles written by {@link #writeDoubles(DataOutputStream, double[])}.
+	 *
+	 * @param in the input
+	 * @return the values
+	 */
+	static double[] readDoubles(ByteBuffer in)
+	{
+		double[] values = new double[in.getInt()];
+		in.asDoubleBuffer().get(values);
+		in.position(in.position() + values.length * Double.BYTES);
+		return values;
+	}
+
+	/**
+	 * Writes a hyperparameter value. Supported are null, Numbers, Booleans, Strings, Lists and Maps with String keys.
+	 *
+	 * @param out the output
+	 * @param value the value
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static void writeValue(DataOutputStream out, Object value) throws IOException
+	{
+		if(value == null)
+		{
+			out.writeByte('N');
+		}
+		else if(value instanceof Double || value instanceof Float)
+		{
+			out.writeByte('D');
+			out.writeDouble(((Number) value).doubleValue());
+		}
+		else if(value instanceof Number)
+		{
+			out.writeByte('L');
+			out.writeLong(((Number) value).longValue());
+		}
+		else if(value instanceof Boolean)
+		{
+			out.writeByte('Z');
+			out.writeBoolean((Boolean) value);
+		}
+		else if(value instanceof List)
+		{
+			List<?> list = (List<?>) value;
+			out.writeByte('A');
+			out.writeInt(list.size());
+			for(Object element : list)
+			{
+				writeValue(out, element);
+			}
+		}
+		else if(value instanceof Map)
+		{
+			Map<?, ?> map = (Map<?, ?>) value;
+			out.writeByte('M');
+			out.writeInt(map.size());
+			for(Map.Entry<?, ?> entry : map.entrySet())
+			{
+				writeString(out, entry.getKey().toString());
+				writeValue(out, entry.getValue());
+			}
+		}
+		else
+		{
+			out.writeByte('S');
+			writeString(out, value.toString());
+		}
+	}
+
+	/**
+	 * Reads a value written by {@link #writeValue(DataOutputStream, Object)}.
+	 *
+	 * @param in the input
+	 * @return the value
+	 */
+	static Object readValue(ByteBuffer in)
+	{
+		byte tag = in.get();
+		switch(tag)
+		{
+			case 'N':
+				return null;
+			case 'D':
+				return in.getDouble();
+			case 'L':
+				return in.getLong();
+			case 'Z':
+				return in.get() != 0;
+			case 'S':
+				return readString(in);
+			case 'A':
+				int size = in.getInt();
+				List<Object> list = new ArrayList<>(size);
+				for(int i = 0; i < size; i++)
+				{
+					list.add(readValue(in));
+				}
+				return list;
+			case 'M':
+				int entries = in.getInt();
+				Map<String, Object> map = new LinkedHashMap<>();
+				for(int i = 0; i < entries; i++)
+				{
+					String key = readString(in);
+					map.put(key, readValue(in));
+				}
+				return map;
+			default:
+				throw new IllegalArgumentException("Unknown value type " + (char) tag + " in snapshot");
+		}
+	}
+}
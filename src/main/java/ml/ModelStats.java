@@ -0,0 +1,177 @@
+package ml;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime counters of one model: added rows, trainings and predictions.
+ * The counters of the hot paths are striped (LongAdder) or lock-free histograms, so recording costs no lock and
+ * concurrent add and predict calls do not contend for a shared field. The training counters are only written while
+ * the training lock of the model is held.
+ *
+ * @author mwe
+ */
+public final class ModelStats
+{
+	/** The number of added rows. */
+	private final LongAdder rowsAdded = new LongAdder();
+
+	/** The time the first row has been added, 0 if no row has been added. */
+	private volatile long firstAddNanos;
+
+	/** The number of finished trainings. */
+	private volatile long trainings;
+
+	/** The time of all finished trainings in nanoseconds. */
+	private volatile long trainNanos;
+
+	/** The time of the last training in nanoseconds. */
+	private volatile long lastTrainNanos;
+
+	/** The iterations or epochs of the last training, 0 for closed form solutions. */
+	private volatile long lastIterations;
+
+	/** The latencies of the prediction calls. */
+	private final LatencyHistogram predictLatency = new LatencyHistogram();
+
+	/** The number of predicted rows. */
+	private final LongAdder rowsPredicted = new LongAdder();
+
+	/**
+	 * Records added rows.
+	 *
+	 * @param n the number of rows
+	 */
+	void added(long n)
+	{
+		if(firstAddNanos == 0) firstAddNanos = System.nanoTime();
+		rowsAdded.add(n);
+	}
+
+	/**
+	 * Records a finished training. Called while the training lock of the model is held.
+	 *
+	 * @param nanos the time of the training in nanoseconds
+	 * @param iterations the iterations or epochs of the training
+	 */
+	void trained(long nanos, long iterations)
+	{
+		trainNanos 		+= nanos;
+		lastTrainNanos 	= nanos;
+		lastIterations 	= iterations;
+		trainings++;
+	}
+
+	/**
+	 * Records a prediction call.
+	 *
+	 * @param rows the number of predicted rows
+	 * @param nanos the latency of the call in nanoseconds
+	 */
+	void predicted(long rows, long nanos)
+	{
+		predictLatency.record(nanos);
+		rowsPredicted.add(rows);
+	}
+
+	/**
+	 * Records a row of a prediction call whose number of rows is not known in advance, when the row is streamed.
+	 */
+	void rowPredicted()
+	{
+		rowsPredicted.increment();
+	}
+
+	/**
+	 * Gets the number of added rows.
+	 *
+	 * @return the rows
+	 */
+	public long getRowsAdded()
+	{
+		return rowsAdded.sum();
+	}
+
+	/**
+	 * Gets the average number of rows added per second since the first row has been added.
+	 *
+	 * @return the rows per second, 0 if no row has been added
+	 */
+	public double getAddRate()
+	{
+		long first = firstAddNanos;
+		if(first == 0) return 0.0d;
+		double seconds = (System.nanoTime() - first) / 1e9d;
+		return seconds > 0 ? rowsAdded.sum() / seconds : 0.0d;
+	}
+
+	/**
+	 * Gets the number of finished trainings.
+	 *
+	 * @return the trainings
+	 */
+	public long getTrainings()
+	{
+		return trainings;
+	}
+
+	/**
+	 * Gets the time of the last training.
+	 *
+	 * @return the time in milliseconds
+	 */
+	public double getLastTrainMillis()
+	{
+		return lastTrainNanos / 1e6d;
+	}
+
+	/**
+	 * Gets the time of all finished trainings.
+	 *
+	 * @return the time in milliseconds
+	 */
+	public double getTotalTrainMillis()
+	{
+		return trainNanos / 1e6d;
+	}
+
+	/**
+	 * Gets the iterations or epochs of the last training.
+	 *
+	 * @return the iterations, 0 for closed form solutions
+	 */
+	public long getLastIterations()
+	{
+		return lastIterations;
+	}
+
+	/**
+	 * Gets the number of prediction calls.
+	 *
+	 * @return the calls
+	 */
+	public long getPredictCalls()
+	{
+		return predictLatency.count();
+	}
+
+	/**
+	 * Gets the number of predicted rows.
+	 *
+	 * @return the rows
+	 */
+	public long getRowsPredicted()
+	{
+		return rowsPredicted.sum();
+	}
+
+	/**
+	 * Gets a percentile of the latencies of the prediction calls.
+	 *
+	 * @param percentile the percentile between 0 and 100
+	 * @return the latency in milliseconds
+	 */
+	public double getPredictMillis(double percentile)
+	{
+		return predictLatency.percentile(percentile) / 1e6d;
+	}
+}
@@ -0,0 +1,100 @@
+package ml;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.neo4j.logging.Log;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.buffer.util.DataTypeUtil;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Loads the native backend of Nd4j and sets its data type to double once for all models.
+ * The kernel extension starts this in the background when the database starts and runs the operations of training and prediction
+ * on small arrays, so the first call of a procedure does not pay for loading the backend and the classes of Dl4j.
+ * A model that is created before the background thread has finished waits for the backend, but not for the warm up.
+ *
+ * @author mwe
+ */
+public final class Nd4jBootstrap
+{
+	/** The flag that indicates whether the data type has been set and the backend is loaded. */
+	private static volatile boolean initialized = false;
+
+	private Nd4jBootstrap()
+	{
+	}
+
+	/**
+	 * Sets the data type of Nd4j to double and loads the backend, if that has not happened yet.
+	 * Has to be called before the first array of a model is created.
+	 */
+	static void ensureInitialized()
+	{
+		if(initialized) return;
+		synchronized(Nd4jBootstrap.class)
+		{
+			if(initialized) return;
+
+			//Set Nd4j to use double values, the data type is global and has to be set before any array exists
+			DataTypeUtil.setDTypeForContext(DataBuffer.Type.DOUBLE);
+			Nd4j.zeros(1);
+			initialized = true;
+		}
+	}
+
+	/**
+	 * Initializes the backend and warms up the code paths in a daemon thread.
+	 *
+	 * @param log the log for the time it took or the error
+	 */
+	public static void startInBackground(Log log)
+	{
+		Thread thread = new Thread(() ->
+		{
+			long start = System.currentTimeMillis();
+			try
+			{
+				ensureInitialized();
+				warmUp();
+				log.info("Nd4j backend initialized in " + (System.currentTimeMillis() - start) + " ms");
+			}
+			catch(Throwable e)
+			{
+				log.warn("Nd4j backend could not be initialized, the models will fail when they are used", e);
+			}
+		}, "ml-nd4j-bootstrap");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Runs the operations of Linear Regression and of the recurrent network on small arrays.
+	 */
+	static void warmUp()
+	{
+		//Normalization, bias column, Gradient Descent step and cost like Nd4jLinReg
+		INDArray features 	= Nd4j.create(new double[]{1, 2, 3, 4, 5, 6, 7, 8}, new int[]{4, 2});
+		INDArray labels 	= Nd4j.create(new double[]{1, 2, 3, 4}, new int[]{4, 1});
+		INDArray sigma 		= features.std(true, 0);
+		features 			= Nd4j.hstack(Nd4j.ones(4, 1), features.subRowVector(features.mean(0)).divRowVector(sigma));
+		INDArray theta 		= Nd4j.zeros(3, 1);
+		INDArray residual 	= features.mmul(theta).subi(labels);
+		theta 				= theta.sub(features.transpose().mmul(residual).muli(0.1d / 4));
+		Nd4jLinReg.squaredError(features.mmul(theta).subi(labels));
+		LinearAlgebra.choleskySolve(new double[][]{{2, 1}, {1, 2}}, new double[]{1, 1});
+
+		//A recurrent network with one unit trained on one window and stepped once
+		Map<String, Object> params = new HashMap<>();
+		params.put("alpha", 0.1d);
+		params.put("hidden", 1L);
+		MultiLayerNetwork net 	= Dl4jRNN.configureNetwork(params, 2);
+		INDArray series 		= Nd4j.create(new double[]{0.1, 0.2, 0.3, 0.4, 0.5, 0.6}, new int[]{2, 3}, 'c');
+		net.fit(new WindowDataSetIterator(series, 2, 1));
+		net.rnnTimeStep(series.reshape(1, 2, 3));
+		net.rnnClearPreviousState();
+	}
+}
@@ -1,29 +1,26 @@
 package ml;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoUnit;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
-import org.datavec.api.records.reader.impl.collection.ListStringRecordReader;
-import org.datavec.api.split.ListStringSplit;
-import org.deeplearning4j.datasets.datavec.RecordReaderDataSetIterator;
-import org.nd4j.linalg.api.buffer.DataBuffer;
-import org.nd4j.linalg.api.buffer.util.DataTypeUtil;
 import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.DataSet;
-import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.inverse.InvertMatrix;
-import org.nd4j.linalg.ops.transforms.Transforms;
+import org.nd4j.linalg.indexing.NDArrayIndex;
 
 
 /**
@@ -33,26 +30,56 @@ import org.nd4j.linalg.ops.transforms.Transforms;
  */
 public class Nd4jLinReg extends MLModel 
 {	
-	/** The formatter of the date values. */
-	private DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd");
-		
 	/** The boolean that indicates whether a time series shall be predicted or not. */
 	final boolean timePeriod;
 	
-	/** The array with theta values for Linear Regression. */
-	INDArray theta; 
+	/**  The hyperparameters for Linear Regression. */
+	Map<String, Object> params;
+	
+	/**  The cost of the trained model, computed from the published coefficients. */
+	volatile double cost;
 	
-	/** The array with mean values. */
-	INDArray mean;
+	/** The solver that computes the theta values. */
+	final Solvers solver;
 	
-	/** The array with standard deviation values. */
-	INDArray sigma;
+	/** The solver that has been used for the last training, differs from <tt>solver</tt> for <tt>auto</tt>. */
+	Solvers usedSolver;
 	
-	/**  The hyperparameters for Linear Regression. */
-	Map<String, Object> params;
+	/** The time the last training took in milliseconds. */
+	double solveTime;
+	
+	/** The number of Gradient Descent iterations of the last training. */
+	long iterations;
+	
+	/** The boolean that indicates whether the next training starts from the initial theta values instead of the trained ones, set by <tt>ml.tune</tt>. */
+	boolean restart;
+	
+	/** The last costs evaluated by Gradient Descent, oldest first. */
+	final Deque<Double> costHistory = new ConcurrentLinkedDeque<>();
+	
+	/** The default relative change of the cost below which Gradient Descent stops. */
+	static final double DEFAULT_TOLERANCE = 1e-9d;
+	
+	/** The default number of iterations between two cost evaluations of Gradient Descent. */
+	static final long DEFAULT_COST_EVERY = 10;
+	
+	/** The default number of costs that are kept in <tt>costHistory</tt>. */
+	static final long DEFAULT_COST_HISTORY = 100;
+	
+	/** The default number of rows per step of Stochastic Gradient Descent. */
+	static final long DEFAULT_BATCH_SIZE = 256;
 	
-	/**  The cost of the trained model. */
-	double cost;
+	/** The maximum number of columns (features plus bias) the solver <tt>auto</tt> uses a closed form solution for. */
+	static final int AUTO_MAX_CLOSED_FORM = 100;
+	
+	/** The running statistics of the merged rows, only kept if the hyperparameter <tt>incremental</tt> is set to true. */
+	SufficientStatistics statistics;
+	
+	/** The running statistics of the rows in every stripe, merged into <tt>statistics</tt> with the rows. */
+	SufficientStatistics[] stripeStatistics;
+	
+	/** The theta values, mean, standard deviation and date encoder of the last training, published as a whole so a prediction never mixes two trainings. */
+	volatile Coefficients coefficients;
 		
 	/**
 	 * Instantiates a new MLModel.
@@ -67,30 +94,52 @@ public class Nd4jLinReg extends MLModel
 	{
 		super(name, types, extra);
 		
-		//Set Nd4j to use double values
-		DataTypeUtil.setDTypeForContext(DataBuffer.Type.DOUBLE);
-		
-		this.mean		= Nd4j.zeros(1);
-		this.sigma 		= Nd4j.zeros(1);
 		this.cost 		= 0.0d;
 		this.params		= params;
 		this.timePeriod = timePeriod;
 		
-		//Initialize theta
-		@SuppressWarnings("unchecked")
-		List<Double> thetaStart = (List<Double>) params.get("theta");
-		this.theta = Nd4j.zeros(thetaStart.size(), 1);
-		for(int j = 0; j < thetaStart.size(); j++)
+		//Keep running statistics of the added rows to train without touching them
+		if(Boolean.TRUE.equals(params.get("incremental")))
 		{
-			this.theta.put(j, 0, thetaStart.get(j));
+			this.statistics 		= new SufficientStatistics(nFeatures);
+			this.stripeStatistics 	= new SufficientStatistics[stripes.length];
+			for(int s = 0; s < stripes.length; s++)
+			{
+				stripeStatistics[s] = new SufficientStatistics(nFeatures);
+			}
 		}
 		
+		//Incremental models solve the normal equations on their statistics by default
+		if(nFeatures == 0 || classAttributes[0] != null) throw new IllegalArgumentException("The first feature of model " + name + " is the date in the format yyyyMMdd and has to be numeric. Model '"+name+"' has not been created.");
+		this.solver = Solvers.getSolvers(String.valueOf(params.getOrDefault("solver", statistics != null ? "cholesky" : "gd")));
+		
+		//Initialize theta
+		INDArray theta = initialTheta();
+		
 		//Check if the right number of theta values is given (number of feature columns plus one bias column)
 		if(nFeatures+1 != theta.rows())
 		{
-			models.remove(name);
 			throw new IllegalArgumentException("Illegal number of theta values. Expected " + (nFeatures+1) + " values got " + theta.rows() + ". Model '"+name+"' has not been created.");
 		}
+		this.coefficients = new Coefficients(getFeatureNames().toArray(new String[0]), theta, Nd4j.zeros(1), Nd4j.zeros(1), null);
+	}
+	
+	/**
+	 * Gets the theta values of the hyperparameter <tt>theta</tt> the model has been created with.
+	 * The evaluations start from them, not from a training that has seen the held out rows.
+	 *
+	 * @return the initial theta values
+	 */
+	INDArray initialTheta()
+	{
+		@SuppressWarnings("unchecked")
+		List<Double> thetaStart = (List<Double>) params.get("theta");
+		INDArray theta = Nd4j.zeros(thetaStart.size(), 1);
+		for(int j = 0; j < thetaStart.size(); j++)
+		{
+			theta.put(j, 0, thetaStart.get(j));
+		}
+		return theta;
 	}
 		
 	/* (non-Javadoc)
@@ -101,52 +150,177 @@ public class Nd4jLinReg extends MLModel
 	{		
 		if (this.state == State.created) throw new IllegalArgumentException("Model "+name+" has no training data, please add some before training.");
 		
-		//Initialize hyperparameters
-		double alpha = (double) params.get("alpha");
-		long iter 	 = (long) params.get("iter");
-			
-        //Load Data in arrays
-		ListStringSplit input = new ListStringSplit(rows);
-		ListStringRecordReader lsrr = new ListStringRecordReader();
-        lsrr.initialize(input);
-        //Parameters: data as ListStringRecordReader, number of rows, index of label column, number of possible label columns, boolean regression 
-        DataSetIterator dataIter = new RecordReaderDataSetIterator(lsrr, nRows, 0, 0, true);
-	      
-        DataSet dataSet 	= dataIter.next();
-        INDArray features 	= dataSet.getFeatureMatrix();
-        INDArray labels 	= dataSet.getLabels();
-          
-		//Shape dates
-		features = calcDateDiff(features, nRows, 0);
-				
-		//Feature Normalization
-		mean	= features.mean(0);
-		sigma 	= features.std(true, 0);	
-		for(int j = 0; j < sigma.columns(); j++)
+		//Choose the solver, closed form solutions are only worth it for narrow models
+		usedSolver = solver;
+		if(solver == Solvers.auto) usedSolver = (nFeatures+1 <= AUTO_MAX_CLOSED_FORM) ? Solvers.cholesky : Solvers.gd;
+		
+		long start = System.nanoTime();
+		if(statistics != null && usedSolver == Solvers.cholesky)
 		{
-			if(sigma.getDouble(0, j) == 0.0d) sigma.put(0, j, 1.0d);
+			trainFromStatistics();
+		}
+		else
+		{
+			trainFromRows();
 		}
-		features = normalizeFeatures(features, mean, sigma);
+		solveTime = (System.nanoTime() - start) / 1000000.0d;
+		this.state = State.trained;
+	}
+	
+	/**
+	 * Computes the optimal theta values from the added rows with the chosen solver.
+	 * The fields of the model are only changed when the solver has finished, so a cancelled training leaves the last trained state intact.
+	 *
+	 * @throws InterruptedException if the training has been cancelled
+	 */
+	void trainFromRows() throws InterruptedException
+	{
+		//The dates of the first feature are encoded as days to the current day, the day is kept for the predictions
+		DateEncoder encoder = DateEncoder.today();
+		int m 				= rows.size();
+		
+        //Load Data in arrays (label in column 0, features in the following columns)
+        INDArray features 	= rows.toMatrix(1, nFeatures+1, 1, encoder);
+        INDArray labels 	= rows.toMatrix(0, 1);
+				
+		//Feature Normalization
+		INDArray newMean	= features.mean(0);
+		INDArray newSigma 	= featureSigma(features);
+		features = normalizeFeatures(features, newMean, newSigma);
 				
 		//Add bias values
-		features = addBiasValues(features, nRows);
-								
-		//Run Gradient Descent to compute optimal theta values
-		theta 	= gradientDescent(features, labels, theta, alpha, iter, nRows);
-		//theta = normalEquations(features, labels);
-		cost	= Nd4j.sum(Transforms.pow((features.mmul(theta)).sub(labels), 2)).mul((1 / (2*nRows))).getDouble(0); //compute cost
-		System.out.println("Theta found by Gradient Descent: " + theta);
-		this.state = State.trained;
-		return;
+		features = addBiasValues(features, m);
+		
+		//Gradient Descent continues from the theta values of the last training, after a tuning from the ones the candidates started from
+		INDArray theta 	= restart ? initialTheta() : coefficients.theta;
+		restart 		= false;
+		INDArray newTheta;
+		switch(usedSolver)
+		{
+			case cholesky:
+				newTheta = normalEquations(features, labels);
+				break;
+			case qr:
+				newTheta = qrDecomposition(features, labels);
+				break;
+			case sgd:
+				newTheta = stochasticGradientDescent(features, labels, theta, (double) params.get("alpha"), (long) params.get("iter"));
+				break;
+			default:
+				//Run Gradient Descent to compute optimal theta values
+				double alpha = (double) params.get("alpha");
+				long iter 	 = (long) params.get("iter");
+				newTheta = gradientDescent(features, labels, theta, alpha, iter, m);
+		}
+		double newCost = computeCost(features, labels, newTheta, m);
+		
+		//The closed form solvers do not look at the interrupt, a cancelled training must not publish its result
+		if(Thread.interrupted()) throw new InterruptedException("Training of model " + name + " has been cancelled.");
+		cost 			= newCost;
+		dateEncoder 	= encoder;
+		coefficients 	= new Coefficients(coefficients.featureNames, newTheta, newMean, newSigma, encoder);
+	}
+	
+	/**
+	 * Computes the optimal theta values from the running statistics instead of the added rows.
+	 * The cost does only depend on the number of features, not on the number of added rows.
+	 *
+	 * @throws InterruptedException if the training has been cancelled
+	 */
+	void trainFromStatistics() throws InterruptedException
+	{
+		//The statistics are kept on epoch days, the features are the difference to the current day
+		DateEncoder encoder 	= DateEncoder.today();
+		double[] featureMean 	= statistics.mean.clone();
+		double[] featureSigma 	= statistics.sigma();
+		featureMean[0] 			= encoder.referenceDay - featureMean[0];
+		
+		double[] thetaArr 		= statistics.solve();
+		double newCost 			= statistics.cost(thetaArr);
+		thetaArr[1] 			= -thetaArr[1]; //the date difference is mirrored at the current day
+		
+		if(Thread.interrupted()) throw new InterruptedException("Training of model " + name + " has been cancelled.");
+		cost 			= newCost;
+		dateEncoder 	= encoder;
+		coefficients 	= new Coefficients(coefficients.featureNames, Nd4j.create(thetaArr, new int[]{nFeatures+1, 1}), Nd4j.create(featureMean), Nd4j.create(featureSigma), encoder);
+	}
+	
+	/**
+	 * Checks that the first feature is a valid date, the training and the running statistics encode it.
+	 * 
+	 * @see ml.MLModel#checkRow(double[])
+	 */
+	@Override
+	protected void checkRow(double[] row)
+	{
+		DateEncoder.toEpochDay(row[1]);
+	}
+	
+	/* (non-Javadoc)
+	 * @see ml.MLModel#rowAdded(int, double[])
+	 */
+	@Override
+	protected void rowAdded(int stripe, double[] row)
+	{
+		if(statistics == null) return;
+		
+		double[] x = features(row);
+		stripeStatistics[stripe].add(x, row[0]);
+	}
+	
+	/**
+	 * The statistics of the whole batch are computed before they are merged, so a row with an invalid date changes none of them.
+	 * 
+	 * @see ml.MLModel#rowsAdded(int, ml.ColumnStore)
+	 */
+	@Override
+	protected void rowsAdded(int stripe, ColumnStore batch)
+	{
+		if(statistics == null) return;
+		
+		SufficientStatistics added = new SufficientStatistics(nFeatures);
+		for(int i = 0; i < batch.size(); i++)
+		{
+			double[] row = batch.getRow(i);
+			added.add(features(row), row[0]);
+		}
+		stripeStatistics[stripe].merge(added);
+	}
+	
+	/**
+	 * Gets the features of a row for the running statistics, the date as epoch day.
+	 *
+	 * @param row the row, label in column 0
+	 * @return the features
+	 */
+	private double[] features(double[] row)
+	{
+		double[] x = new double[nFeatures];
+		System.arraycopy(row, 1, x, 0, nFeatures);
+		x[0] = DateEncoder.toEpochDay(x[0]);
+		return x;
+	}
+	
+	/* (non-Javadoc)
+	 * @see ml.MLModel#stripeMerged(int)
+	 */
+	@Override
+	protected void stripeMerged(int stripe)
+	{
+		if(statistics == null) return;
+		
+		statistics.merge(stripeStatistics[stripe]);
+		stripeStatistics[stripe] = new SufficientStatistics(nFeatures);
 	}
 	
 	/* (non-Javadoc)
 	 * @see ml.MLModel#predict(java.util.List)
 	 */
 	@Override
-	protected Collection<Map<String, Object>> predict(Map<String, List<Object>> features)
+	protected Stream<Map<String, Object>> predict(Map<String, List<Object>> features)
 	{
 		if (this.state != State.trained) throw new IllegalArgumentException("Model "+name+" is not trained, please train first. If you have added some new data after the last training, train the model again before predicting.");
+		Coefficients c = coefficients;
 		
 		//Number of values to predict (number of rows of "featuresArr")
 		int nPredictions = 1;
@@ -155,19 +329,15 @@ public class Nd4jLinReg extends MLModel
 		if(timePeriod) //if values for a time period shall be predicted
 		{
 			if(features.keySet().size() != 2) throw new IllegalArgumentException("Illegal number of feature values. Parameter for predicting a period is set to true, please provide exactly one start and end date as features.");
-			LocalDate startDate = LocalDate.parse(String.valueOf(features.get("start")), formatter);
-			LocalDate endDate 	= LocalDate.parse(String.valueOf(features.get("end")), formatter);
+			Map<String, ?> period 	= features;
+			long startDay 			= DateEncoder.toEpochDay(toDouble(period.get("start")));
+			long endDay 			= DateEncoder.toEpochDay(toDouble(period.get("end")));
 			
-			List<String> dates = new ArrayList<>();
-			for(LocalDate date = startDate; !date.isAfter(endDate); date = date.plusDays(1))
-			{
-				dates.add(date.toString().replaceAll("-", ""));
-			}
-			nPredictions = dates.size();
+			nPredictions = (int) Math.max(0, endDay - startDay + 1);
 			featuresArr = Nd4j.zeros(nPredictions, 1);
 			for(int i = 0; i < nPredictions; i++)
 			{
-				featuresArr.put(i, 0, Double.parseDouble(dates.get(i)));
+				featuresArr.put(i, 0, DateEncoder.toDate(startDay + i));
 			}
 		}	
 		else if(!(features.get(types.keySet().iterator().next()) instanceof List<?>)) //Checks whether the value of "features" is a single value and not a List
@@ -178,11 +348,11 @@ public class Nd4jLinReg extends MLModel
 			{
 				if(entry.getValue() == Types._Class) //for attributes of data type class load the numeric value in the feature array
 				{
-					featuresArr.put(0, colIter, Double.parseDouble(String.valueOf(ClassAttribute.classAttributes.get(entry.getKey()).getValue(String.valueOf(features.get(entry.getKey()))))));
+					featuresArr.put(0, colIter, classValue(colIter, features.get(entry.getKey()), c));
 				}
 				else
 				{
-					featuresArr.put(0, colIter, Double.parseDouble(String.valueOf(features.get(entry.getKey()))));
+					featuresArr.put(0, colIter, toDouble(features.get(entry.getKey())));
 				}
 				colIter++;
 			}
@@ -198,75 +368,148 @@ public class Nd4jLinReg extends MLModel
 				{
 					for(int j = 0; j < nPredictions; j++) //iterate through rows
 					{
-						featuresArr.put(j, colIter, Double.parseDouble(String.valueOf(ClassAttribute.classAttributes.get(entry.getKey()).getValue(String.valueOf(features.get(entry.getKey()).get(j))))));
+						featuresArr.put(j, colIter, classValue(colIter, features.get(entry.getKey()).get(j), c));
 					}
 				}
 				else
 				{
 					for(int j = 0; j < nPredictions; j++) //iterate through rows
 					{
-						featuresArr.put(j, colIter, Double.parseDouble(String.valueOf(features.get(entry.getKey()).get(j))));
+						featuresArr.put(j, colIter, toDouble(features.get(entry.getKey()).get(j)));
 					}
 				}
 				colIter++;
 			}
 		}	
 		
-		//Duplicate of featuresArr 
-		INDArray foo = featuresArr.dup();
-		
-		System.out.println(featuresArr);
+		//The feature values as given, shown with the predictions
+		INDArray inputs = featuresArr.dup();
 		
 		//Shape features for prediction
-		featuresArr = calcDateDiff(featuresArr, nPredictions, 0);
-		featuresArr = normalizeFeatures(featuresArr, mean, sigma);
+		featuresArr = encodeDates(featuresArr, c.dates);
+		featuresArr = normalizeFeatures(featuresArr, c.mean, c.sigma);
 		featuresArr = addBiasValues(featuresArr, nPredictions);
 		
 		//Predict values
-		INDArray prediction = featuresArr.mmul(theta);		
+		INDArray prediction = featuresArr.mmul(c.theta);		
 		
-		//Load the features and their predicted results in a Map. The result collection is a list of this maps.		
-		Collection<Map<String, Object>> result = new ArrayList<>();	
-		Map<String, Object> rowResult = new HashMap<>();
+		//Every row is a view on the arrays that is created when the stream reaches it
+		String[] featureNames = getFeatureNames().subList(0, inputs.columns()).toArray(new String[0]);
+		return IntStream.range(0, nPredictions).mapToObj(j -> new PredictionMap(featureNames, inputs, prediction, j, extra));
+	}
+	
+	/* (non-Javadoc)
+	 * @see ml.MLModel#score(java.util.Map)
+	 */
+	@Override
+	public double score(Map<String, Object> features)
+	{
+		if (this.state != State.trained) throw new IllegalArgumentException("Model "+name+" is not trained, please train first. If you have added some new data after the last training, train the model again before predicting.");
 		
-		for(int j = 0; j < nPredictions; j++) //iterate through rows (prediction sets)
+		//The primitive copies are made once per training, not per call
+		Coefficients c = coefficients;
+		double result = c.thetaValues[0];
+		for(int j = 0; j < nFeatures; j++)
 		{
-			rowResult = new HashMap<>();
-			Iterator<String> keyIter = types.keySet().iterator();
-			for(int i = 0; i < foo.columns(); i++) //iterate through columns (different features)
+			Object value = features.get(c.featureNames[j]);
+			if(value == null) throw new IllegalArgumentException("The featurename '"+c.featureNames[j]+"' specified for this model is not given in this score call. Call ml.info.");
+			
+			//The first feature is always a date, like in the training and in predictBatch
+			double x;
+			if(j == 0)
 			{
-				rowResult.put(keyIter.next(), Math.round(foo.getDouble(j, i)));
+				x = c.dates.encode(toDouble(value));
 			}
-			rowResult.put("prediction", Math.round(prediction.getDouble(j, 0)));
-			if(extra != null)
+			else if(classAttributes[j] != null)
 			{
-				for (Map.Entry<String, String> entry : extra.entrySet())
-				{
-					rowResult.put(entry.getKey(), entry.getValue());
-				}
+				int code = lookup(j, value);
+				x = code == FrozenDictionary.UNSEEN ? c.meanValues[j] : code;
+			}
+			else
+			{
+				x = toDouble(value);
 			}
-			result.add(rowResult);
+			result += c.thetaValues[j+1] * (x - c.meanValues[j]) / c.sigmaValues[j];
 		}
 		return result;
 	}
 	
+	/* (non-Javadoc)
+	 * @see ml.MLModel#predictBatch(java.util.List)
+	 */
+	@Override
+	public double[] predictBatch(List<Object[]> rows)
+	{
+		if (this.state != State.trained) throw new IllegalArgumentException("Model "+name+" is not trained, please train first. If you have added some new data after the last training, train the model again before predicting.");
+		
+		int n = rows.size();
+		if(n == 0) return new double[0];
+		Coefficients c = coefficients;
+		
+		//Fill the features column by column, so the dates can be encoded in one pass
+		double[] data = new double[n * nFeatures];
+		for(int j = 0; j < nFeatures; j++)
+		{
+			for(int i = 0; i < n; i++)
+			{
+				Object value = rows.get(i)[j];
+				data[j * n + i] = classAttributes[j] != null ? classValue(j, value, c) : toDouble(value);
+			}
+		}
+		c.dates.encode(data, 0, n);
+		
+		INDArray featuresArr = Nd4j.create(data, new int[]{n, nFeatures}, 'f');
+		featuresArr = normalizeFeatures(featuresArr, c.mean, c.sigma);
+		featuresArr = addBiasValues(featuresArr, n);
+		return featuresArr.mmul(c.theta).dup().data().asDouble();
+	}
+	
+	/**
+	 * Gets the numeric representation of a class value for a prediction.
+	 * Values that have not been trained upon get the mean of the column, so they are neutral after the normalization.
+	 *
+	 * @param col the index of the feature column
+	 * @param value the value of the feature
+	 * @param c the Coefficients of the prediction
+	 * @return the numeric representation
+	 */
+	double classValue(int col, Object value, Coefficients c)
+	{
+		int code = lookup(col, value);
+		return code == FrozenDictionary.UNSEEN ? c.meanValues[col] : code;
+	}
+	
 	/**
-	 * Gets an array of dates and returns an array of their difference in days to the current day.
+	 * Replaces the dates in the first column of an array by their difference in days to the reference day of the encoder.
 	 *
-	 * @param arr the INDArray of dates
-	 * @param length the number of dates
-	 * @param pos the index of the column with date values
+	 * @param arr the INDArray with dates in the format yyyyMMdd in the first column
+	 * @param encoder the DateEncoder
 	 * @return the INDArray of date differences
 	 */
-	INDArray calcDateDiff(INDArray arr, double length, int pos)
+	INDArray encodeDates(INDArray arr, DateEncoder encoder)
 	{
-		for(int i = 0; i < length; i++)
-		{		
-			arr.put(i, pos, ChronoUnit.DAYS.between(LocalDate.parse(String.valueOf(arr.getInt(i, pos)), formatter), LocalDate.now()));
-		}
+		double[] dates = arr.getColumn(0).dup().data().asDouble();
+		encoder.encode(dates, 0, dates.length);
+		arr.putColumn(0, Nd4j.create(dates, new int[]{dates.length, 1}));
 		return arr;
 	}
 	
+	/**
+	 * Computes the standard deviation of every feature. A constant feature gets 1, so the normalization only shifts it.
+	 *
+	 * @param features the INDArray of features
+	 * @return the standard deviations as row vector
+	 */
+	static INDArray featureSigma(INDArray features)
+	{
+		INDArray sigma = features.std(true, 0);
+		for(int j = 0; j < sigma.columns(); j++)
+		{
+			if(sigma.getDouble(0, j) == 0.0d) sigma.put(0, j, 1.0d);
+		}
+		return sigma;
+	}
+	
 	/**
 	 * Normalizes features.
 	 *
@@ -293,45 +536,151 @@ public class Nd4jLinReg extends MLModel
 	}
 	
 	/**
-	 * Prints the cost for these theta values.
+	 * Computes the cost for these theta values.
 	 * Loss function 'mean squared error'.
 	 *
 	 * @param features the INDArray of features
 	 * @param labels the INDArray of respective true values
 	 * @param theta the parameters for the linear regression line
 	 * @param length the number of features/values
+	 * @return the cost
 	 */
-	void computeCost(INDArray features, INDArray labels, INDArray theta, double length)
+	double computeCost(INDArray features, INDArray labels, INDArray theta, double length)
 	{
-		System.out.println("Cost for theta" + theta + ": " + Nd4j.sum(Transforms.pow((features.mmul(theta)).sub(labels), 2)).mul((1 / (2*length))));
+		return squaredError(features.mmul(theta).subi(labels)) / (2.0d * length);
 	}
 	
 	/**
-	 * Gradient Descent algorithm that computes optimal theta values.
+	 * Computes the sum of the squared residuals.
+	 *
+	 * @param residual the INDArray of differences between predicted and true values
+	 * @return the sum of squares
+	 */
+	static double squaredError(INDArray residual)
+	{
+		double norm = residual.norm2Number().doubleValue();
+		return norm * norm;
+	}
+	
+	/**
+	 * Gradient Descent algorithm that computes optimal theta values, see {@link #descend}.
+	 * The cost is evaluated from the residuals of the gradient, so it needs no extra matrix multiplication.
 	 *
 	 * @param features the INDArray of features
 	 * @param labels the INDArray of respective true values
 	 * @param theta the parameters for the linear regression line
 	 * @param alpha the step size
-	 * @param iter the number of iterations
+	 * @param iter the maximum number of iterations
 	 * @param length the number of features/values
 	 * @return the INDArray of computed theta values
+	 * @throws InterruptedException if the training has been cancelled
+	 */
+	INDArray gradientDescent(INDArray features, INDArray labels, INDArray theta, double alpha, long iter, double length) throws InterruptedException
+	{
+		return descend(new RowDescent(features, labels, alpha, length), theta, params, iter, true);
+	}
+	
+	/**
+	 * Parallel mini-batch Stochastic Gradient Descent that computes optimal theta values.
+	 * The rows are split in shards that are processed by a ForkJoinPool, see {@link ParallelSgd}.
+	 * Every iteration is one epoch over all rows, the stopping criteria are the same as for Gradient Descent.
+	 *
+	 * @param features the INDArray of features
+	 * @param labels the INDArray of respective true values
+	 * @param theta the parameters for the linear regression line
+	 * @param alpha the step size
+	 * @param iter the maximum number of epochs
+	 * @return the INDArray of computed theta values
+	 * @throws InterruptedException if the training has been cancelled
+	 */
+	INDArray stochasticGradientDescent(INDArray features, INDArray labels, INDArray theta, double alpha, long iter) throws InterruptedException
+	{
+		int batchSize 		= (int) getLong(params, "batchSize", DEFAULT_BATCH_SIZE);
+		int parallelism 	= (int) getLong(params, "parallelism", Runtime.getRuntime().availableProcessors());
+		boolean hogwild 	= Boolean.TRUE.equals(params.get("hogwild"));
+		
+		ParallelSgd sgd 	= new ParallelSgd(features.dup('f').data().asDouble(), labels.dup('f').data().asDouble(), features.rows(), features.columns(), alpha, batchSize, parallelism, hogwild, getLong(params, "seed", 0));
+		double[] thetaArr 	= descend(new SgdDescent(sgd), theta.dup('f').data().asDouble(), params, iter, true);
+		return Nd4j.create(thetaArr, new int[]{thetaArr.length, 1});
+	}
+	
+	/**
+	 * Moves theta values step by step until <tt>iter</tt> steps are done or the relative change of the cost 
+	 * between two cost evaluations is not larger than the hyperparameter <tt>tolerance</tt>. The cost is evaluated 
+	 * every <tt>costEvery</tt> steps. All descent solvers of the training, the tuning and the cross validation run here.
+	 *
+	 * @param <T> the type of the theta values
+	 * @param descent the cost and the step of the solver
+	 * @param theta the theta values to start with
+	 * @param p the hyperparameters
+	 * @param iter the maximum number of steps
+	 * @param train the boolean that indicates whether the model is trained, only a training updates the progress, 
+	 * <tt>iterations</tt> and <tt>costHistory</tt> of the model
+	 * @return the computed theta values
+	 * @throws InterruptedException if the training or the evaluation has been cancelled
 	 */
-	INDArray gradientDescent(INDArray features, INDArray labels, INDArray theta, double alpha, long iter, double length)
+	<T> T descend(Descent<T> descent, T theta, Map<String, Object> p, long iter, boolean train) throws InterruptedException
 	{
-		INDArray foo;
-		System.out.println("Running Gradient Descent:");
-		for(int i = 1; i <= iter; i++)
+		double tolerance 	= getDouble(p, "tolerance", DEFAULT_TOLERANCE);
+		long costEvery 		= Math.max(1, getLong(p, "costEvery", DEFAULT_COST_EVERY));
+		int historySize 	= (int) getLong(p, "costHistory", DEFAULT_COST_HISTORY);
+		
+		double lastCost 	= Double.NaN;
+		if(train)
 		{
-			foo = features.mulColumnVector((features.mmul(theta)).sub(labels));
-			theta = theta.sub(((Nd4j.sum(foo, 0)).mul(1/length).transpose()).mul(alpha));
-			computeCost(features, labels, theta, length);
+			costHistory.clear();
+			iterations = 0;
+		}
+		
+		long i = 0;
+		for(; i < iter; i++)
+		{
+			if(Thread.interrupted()) throw new InterruptedException((train ? "Training" : "Evaluation") + " of model " + name + " has been cancelled.");
+			
+			//The cost belongs to the theta values before this step
+			if(i % costEvery == 0)
+			{
+				double currentCost = descent.cost(theta);
+				if(train) record(currentCost, historySize);
+				if(converged(lastCost, currentCost, tolerance)) break;
+				lastCost = currentCost;
+			}
+			
+			theta = descent.step(theta);
+			if(train) progress = iterations = i + 1;
 		}
 		return theta;
 	}
 	
+	/**
+	 * Stores the cost of a training in <tt>costHistory</tt>.
+	 *
+	 * @param currentCost the cost of this evaluation
+	 * @param historySize the number of costs that are kept
+	 */
+	void record(double currentCost, int historySize)
+	{
+		progressCost = currentCost;
+		costHistory.addLast(currentCost);
+		if(costHistory.size() > historySize) costHistory.removeFirst();
+	}
+	
+	/**
+	 * Checks whether a descent has converged.
+	 *
+	 * @param lastCost the cost of the last evaluation
+	 * @param currentCost the cost of this evaluation
+	 * @param tolerance the relative change of the cost below which the descent stops
+	 * @return true if the relative change of the cost is not larger than the tolerance
+	 */
+	static boolean converged(double lastCost, double currentCost, double tolerance)
+	{
+		return Math.abs(lastCost - currentCost) <= tolerance * Math.abs(lastCost);
+	}
+	
 	/**
 	 * Normal Equations algorithm: alternative to compute optimal theta values.
+	 * Solves <tt>X^T X theta = X^T y</tt> with the Cholesky decomposition.
 	 *
 	 * @param features the INDArray of features
 	 * @param labels the INDArray of respective true values
@@ -339,10 +688,139 @@ public class Nd4jLinReg extends MLModel
 	 */
 	INDArray normalEquations(INDArray features, INDArray labels)
 	{
-		return ((InvertMatrix.invert(features.transpose().mmul(features), false)).mmul(features.transpose())).mmul(labels);
+		INDArray gram 	= features.transpose().mmul(features);
+		INDArray moment = features.transpose().mmul(labels);
+		
+		int n = gram.rows();
+		double[][] a 	= new double[n][n];
+		double[] b 		= new double[n];
+		for(int i = 0; i < n; i++)
+		{
+			for(int j = 0; j < n; j++)
+			{
+				a[i][j] = gram.getDouble(i, j);
+			}
+			b[i] = moment.getDouble(i, 0);
+		}
+		return Nd4j.create(LinearAlgebra.choleskySolve(a, b), new int[]{n, 1});
+	}
+	
+	/**
+	 * QR decomposition algorithm: alternative to compute optimal theta values.
+	 * Solves the least squares problem directly on the features, which is numerically more stable than the normal equations.
+	 *
+	 * @param features the INDArray of features
+	 * @param labels the INDArray of respective true values
+	 * @return the INDArray of computed theta values
+	 */
+	INDArray qrDecomposition(INDArray features, INDArray labels)
+	{
+		double[] a = features.dup('f').data().asDouble();
+		double[] b = labels.dup('f').data().asDouble();
+		return Nd4j.create(LinearAlgebra.qrSolve(a, features.rows(), features.columns(), b), new int[]{features.columns(), 1});
 	}
 	
 	
+	/* (non-Javadoc)
+	 * @see ml.MLModel#getImplementation()
+	 */
+	@Override
+	protected Implementations getImplementation()
+	{
+		return Implementations.Nd4j;
+	}
+	
+	/* (non-Javadoc)
+	 * @see ml.MLModel#isTimePeriod()
+	 */
+	@Override
+	protected boolean isTimePeriod()
+	{
+		return timePeriod;
+	}
+	
+	/* (non-Javadoc)
+	 * @see ml.MLModel#getParams()
+	 */
+	@Override
+	protected Map<String, Object> getParams()
+	{
+		return params;
+	}
+	
+	/* (non-Javadoc)
+	 * @see ml.MLModel#writeSnapshot(java.io.DataOutputStream)
+	 */
+	@Override
+	protected void writeSnapshot(DataOutputStream out) throws IOException
+	{
+		Coefficients c = coefficients;
+		ModelSnapshots.writeDoubles(out, c.thetaValues);
+		ModelSnapshots.writeDoubles(out, c.meanValues);
+		ModelSnapshots.writeDoubles(out, c.sigmaValues);
+		out.writeDouble(cost);
+		ModelSnapshots.writeString(out, usedSolver != null ? usedSolver.name() : "");
+		out.writeDouble(solveTime);
+		out.writeLong(iterations);
+		double[] history = new double[costHistory.size()];
+		int h = 0;
+		for(Iterator<Double> iter = costHistory.iterator(); iter.hasNext() && h < history.length; )
+		{
+			history[h++] = iter.next();
+		}
+		ModelSnapshots.writeDoubles(out, Arrays.copyOf(history, h));
+		
+		//The statistics let an incremental model continue after a restore
+		out.writeBoolean(statistics != null);
+		if(statistics != null)
+		{
+			out.writeLong(statistics.n);
+			ModelSnapshots.writeDoubles(out, statistics.mean);
+			out.writeDouble(statistics.labelMean);
+			for(double[] comomentRow : statistics.comoment)
+			{
+				ModelSnapshots.writeDoubles(out, comomentRow);
+			}
+			ModelSnapshots.writeDoubles(out, statistics.labelComoment);
+			out.writeDouble(statistics.labelMoment);
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see ml.MLModel#readSnapshot(java.nio.ByteBuffer)
+	 */
+	@Override
+	protected void readSnapshot(ByteBuffer in)
+	{
+		double[] thetaArr 	= ModelSnapshots.readDoubles(in);
+		INDArray theta 		= Nd4j.create(thetaArr, new int[]{thetaArr.length, 1});
+		INDArray mean 		= Nd4j.create(ModelSnapshots.readDoubles(in));
+		INDArray sigma 		= Nd4j.create(ModelSnapshots.readDoubles(in));
+		coefficients 		= new Coefficients(coefficients.featureNames, theta, mean, sigma, dateEncoder);
+		cost 				= in.getDouble();
+		String used 		= ModelSnapshots.readString(in);
+		usedSolver 			= used.isEmpty() ? null : Solvers.getSolvers(used);
+		solveTime 			= in.getDouble();
+		iterations 			= in.getLong();
+		for(double value : ModelSnapshots.readDoubles(in))
+		{
+			costHistory.add(value);
+		}
+		
+		if(in.get() != 0 && statistics != null)
+		{
+			statistics.n = in.getLong();
+			System.arraycopy(ModelSnapshots.readDoubles(in), 0, statistics.mean, 0, nFeatures);
+			statistics.labelMean = in.getDouble();
+			for(double[] comomentRow : statistics.comoment)
+			{
+				System.arraycopy(ModelSnapshots.readDoubles(in), 0, comomentRow, 0, nFeatures);
+			}
+			System.arraycopy(ModelSnapshots.readDoubles(in), 0, statistics.labelComoment, 0, nFeatures);
+			statistics.labelMoment = in.getDouble();
+		}
+	}
+	
 	/* (non-Javadoc)
 	 * @see ml.MLModel#getParamsAsString()
 	 */
@@ -351,17 +829,714 @@ public class Nd4jLinReg extends MLModel
 	{
 		String extraString = "none";
 		if(extra != null) extraString = extra.toString();
+		Coefficients c = coefficients;
 		
 		return Arrays.asList(
 		  "Status: " 				+ state
 		, "Time series given: " 	+ timePeriod
 		, "Feature names: " 		+ types.toString() + " (total: "+nFeatures+")"
 		, "Extra attributes: " 		+ extraString
-		, "Number of added rows: " 	+ nRows
-		, "Theta: " 				+ theta.toString()
+		, "Number of added rows: " 	+ nRows.get()
+		, "Incremental: " 			+ (statistics != null)
+		, "Solver: " 				+ solver + (usedSolver != null ? " (used: " + usedSolver + ")" : "")
+		, "Reference date: " 		+ (dateEncoder != null ? String.valueOf(DateEncoder.toDate(dateEncoder.referenceDay)) : "none")
+		, "Solve time (ms): " 		+ solveTime
+		, "Iterations: " 			+ iterations
+		, "Cost history: " 			+ costHistory.toString()
+		, "Theta: " 				+ c.theta.toString()
 		, "Cost: " 					+ String.valueOf(cost)
-		, "Mean: " 					+ mean.toString()
-		, "Sigma: " 				+ sigma.toString()
+		, "Mean: " 					+ c.mean.toString()
+		, "Sigma: " 				+ c.sigma.toString()
 		);
 	}
-}
\ No newline at end of file
+	
+	/* (non-Javadoc)
+	 * @see ml.MLModel#offHeapBytes()
+	 */
+	@Override
+	protected long offHeapBytes()
+	{
+		Coefficients c = coefficients;
+		return (c.theta.length() + c.mean.length() + c.sigma.length()) * (long) Double.BYTES;
+	}
+	
+	/* (non-Javadoc)
+	 * @see ml.MLModel#trainedCost()
+	 */
+	@Override
+	protected double trainedCost()
+	{
+		return coefficients.dates != null ? cost : Double.NaN;
+	}
+	
+	/* (non-Javadoc)
+	 * @see ml.MLModel#trainingWork()
+	 */
+	@Override
+	protected long trainingWork()
+	{
+		long n 		= nFeatures+1;
+		long m 		= nRows.get();
+		Solvers used = solver;
+		if(solver == Solvers.auto) used = (n <= AUTO_MAX_CLOSED_FORM) ? Solvers.cholesky : Solvers.gd;
+		
+		//Incremental models only solve the normal equations on their statistics
+		if(statistics != null && used == Solvers.cholesky) return n * n * n;
+		switch(used)
+		{
+			case gd:
+			case sgd:
+				return getLong(params, "iter", 1) * m * n;
+			default:
+				return m * n * n + n * n * n;
+		}
+	}
+	
+	/**
+	 * Prepares the tuning of the hyperparameters of Gradient Descent. The features are encoded, normalized and given the bias column once,
+	 * the candidates only read the shared arrays. The held out rows are drawn at random, so every candidate is scored on the same rows.
+	 * Both parts are normalized with the mean and standard deviation of the training part, the held out rows do not take part in it.
+	 * 
+	 * @see ml.MLModel#evaluator(double, java.util.Random)
+	 */
+	@Override
+	protected HyperparameterSearch.Evaluator evaluator(double validation, Random random)
+	{
+		if(this.state == State.created) throw new IllegalArgumentException("Model "+name+" has no training data, please add some before tuning.");
+		Solvers used = solver;
+		if(solver == Solvers.auto) used = (nFeatures+1 <= AUTO_MAX_CLOSED_FORM) ? Solvers.cholesky : Solvers.gd;
+		if(used != Solvers.gd && used != Solvers.sgd) throw new IllegalArgumentException("The solver " + used + " of model " + name + " has no hyperparameters to tune, please create it with the solver 'gd' or 'sgd'.");
+		
+		int m 				= rows.size();
+		int nValidation 	= (int) Math.round(m * validation);
+		if(nValidation < 1 || m - nValidation < 2) throw new IllegalArgumentException("Model "+name+" has " + m + " rows, that is too few to hold out a part of " + validation + ".");
+		
+		INDArray features 	= rows.toMatrix(1, nFeatures+1, 1, DateEncoder.today());
+		INDArray labels 	= rows.toMatrix(0, 1);
+		int[] shuffled 		= shuffle(m, random);
+		int[] validationRows 	= Arrays.copyOf(shuffled, nValidation);
+		int[] trainRows 		= Arrays.copyOfRange(shuffled, nValidation, m);
+		INDArray trainFeatures 	= features.getRows(trainRows);
+		INDArray trainMean 		= trainFeatures.mean(0);
+		INDArray trainSigma 	= featureSigma(trainFeatures);
+		return new Tuning(designMatrix(trainFeatures, trainMean, trainSigma), labels.getRows(trainRows), 
+				designMatrix(features.getRows(validationRows), trainMean, trainSigma), labels.getRows(validationRows), used);
+	}
+	
+	/**
+	 * Normalizes encoded features with a given mean and standard deviation and adds the bias column.
+	 * The model is not changed.
+	 *
+	 * @param features the encoded features
+	 * @param mean the mean to normalize with
+	 * @param sigma the standard deviation to normalize with
+	 * @return the normalized features with the bias column
+	 */
+	INDArray designMatrix(INDArray features, INDArray mean, INDArray sigma)
+	{
+		return addBiasValues(normalizeFeatures(features, mean, sigma), features.rows());
+	}
+	
+	/**
+	 * Shuffles the indices of the rows.
+	 *
+	 * @param m the number of rows
+	 * @param random the Random
+	 * @return the indices in random order
+	 */
+	static int[] shuffle(int m, Random random)
+	{
+		int[] shuffled = IntStream.range(0, m).toArray();
+		for(int i = m - 1; i > 0; i--)
+		{
+			int j 		= random.nextInt(i + 1);
+			int swap 	= shuffled[i];
+			shuffled[i] = shuffled[j];
+			shuffled[j] = swap;
+		}
+		return shuffled;
+	}
+	
+	/**
+	 * Cross validates the model with its solver. The rows are encoded and shuffled into one matrix, every fold is a view on a block of its rows.
+	 * The Gram matrix of every fold is computed once, the training rows of a fold are then the Gram matrix of all rows minus the one of the fold,
+	 * so the closed form solvers and Gradient Descent do not read the rows again. Only 'sgd' copies the training rows of every fold.
+	 * Every fold is normalized with the mean and standard deviation of its training rows, they are read from the training Gram matrix too.
+	 * The closed form solvers both solve the normal equations here, they compute the same least squares solution.
+	 * 
+	 * @see ml.MLModel#crossValidate(int, int, java.util.Random)
+	 */
+	@Override
+	protected List<CrossValidation.Fold> crossValidate(int folds, int concurrency, Random random) throws InterruptedException
+	{
+		int m = rows.size();
+		if(m < 2 * folds) throw new IllegalArgumentException("Model "+name+" has " + m + " rows, it needs at least " + (2 * folds) + " for " + folds + " folds.");
+		Solvers used = solver;
+		if(solver == Solvers.auto) used = (nFeatures+1 <= AUTO_MAX_CLOSED_FORM) ? Solvers.cholesky : Solvers.gd;
+		
+		//The features keep their encoded values, the bias column lets the Gram matrix carry the sums for the normalization
+		int[] shuffled 		= shuffle(m, random);
+		INDArray features 	= addBiasValues(rows.toMatrix(1, nFeatures+1, 1, DateEncoder.today()), m).getRows(shuffled);
+		INDArray labels 	= rows.toMatrix(0, 1).getRows(shuffled);
+		int[] bounds 		= new int[folds + 1];
+		for(int k = 0; k <= folds; k++)
+		{
+			bounds[k] = (int) ((long) k * m / folds);
+		}
+		
+		//The Gram matrix and the moments of every fold
+		List<Callable<INDArray[]>> sums = new ArrayList<>();
+		double[] foldLabels = new double[folds];
+		double squaredLabels = 0;
+		for(int k = 0; k < folds; k++)
+		{
+			INDArray x = features.get(NDArrayIndex.interval(bounds[k], bounds[k + 1]), NDArrayIndex.all());
+			INDArray y = labels.get(NDArrayIndex.interval(bounds[k], bounds[k + 1]), NDArrayIndex.all());
+			sums.add(() -> new INDArray[]{x.transpose().mmul(x), x.transpose().mmul(y)});
+			foldLabels[k] 	= squaredError(y);
+			squaredLabels 	+= foldLabels[k];
+		}
+		List<INDArray[]> foldSums 	= TrainingScheduler.invokeAll(sums, concurrency);
+		INDArray gram 				= foldSums.get(0)[0].dup();
+		INDArray moment 			= foldSums.get(0)[1].dup();
+		for(int k = 1; k < folds; k++)
+		{
+			gram.addi(foldSums.get(k)[0]);
+			moment.addi(foldSums.get(k)[1]);
+		}
+		double allLabels = squaredLabels;
+		
+		//Every fold is trained on the others and predicted, starting from the theta values the model has been created with
+		Solvers foldSolver 	= used;
+		INDArray start 		= initialTheta();
+		List<Callable<CrossValidation.Fold>> tasks = new ArrayList<>();
+		for(int k = 0; k < folds; k++)
+		{
+			int index = k;
+			tasks.add(() -> 
+			{
+				long begin 			= System.nanoTime();
+				int from 			= bounds[index];
+				int to 				= bounds[index + 1];
+				INDArray y 			= labels.get(NDArrayIndex.interval(from, to), NDArrayIndex.all());
+				INDArray rawGram 	= gram.sub(foldSums.get(index)[0]);
+				INDArray scaling 	= normalization(rawGram);
+				INDArray x 			= features.get(NDArrayIndex.interval(from, to), NDArrayIndex.all()).mmul(scaling);
+				INDArray trainGram 	= scaling.transpose().mmul(rawGram).mmul(scaling);
+				INDArray trainMoment = scaling.transpose().mmul(moment.sub(foldSums.get(index)[1]));
+				double trainLabels 	= allLabels - foldLabels[index];
+				int trainRows 		= m - (to - from);
+				
+				INDArray foldTheta;
+				switch(foldSolver)
+				{
+					case gd:
+						foldTheta = gramDescent(trainGram, trainMoment, trainLabels, trainRows, start.dup());
+						break;
+					case sgd:
+						INDArray trainFeatures 	= Nd4j.vstack(features.get(NDArrayIndex.interval(0, from), NDArrayIndex.all()), features.get(NDArrayIndex.interval(to, m), NDArrayIndex.all())).mmul(scaling);
+						INDArray trainLabelsArr = Nd4j.vstack(labels.get(NDArrayIndex.interval(0, from), NDArrayIndex.all()), labels.get(NDArrayIndex.interval(to, m), NDArrayIndex.all()));
+						foldTheta = foldSgd(trainFeatures, trainLabelsArr, start.dup());
+						break;
+					default:
+						int n 			= trainGram.rows();
+						double[][] a 	= new double[n][n];
+						double[] b 		= new double[n];
+						for(int i = 0; i < n; i++)
+						{
+							for(int j = 0; j < n; j++)
+							{
+								a[i][j] = trainGram.getDouble(i, j);
+							}
+							b[i] = trainMoment.getDouble(i, 0);
+						}
+						foldTheta = Nd4j.create(LinearAlgebra.choleskySolve(a, b), new int[]{n, 1});
+				}
+				
+				INDArray residual 			= x.mmul(foldTheta).subi(y);
+				CrossValidation.Fold fold 	= new CrossValidation.Fold(index + 1);
+				fold.n 					= to - from;
+				fold.squaredError 		= squaredError(residual);
+				fold.absoluteError 		= residual.norm1Number().doubleValue();
+				fold.sumLabels 			= y.sumNumber().doubleValue();
+				fold.sumSquaredLabels 	= foldLabels[index];
+				fold.millis 			= (System.nanoTime() - begin) / 1000000;
+				return fold;
+			});
+		}
+		return new ArrayList<>(TrainingScheduler.invokeAll(tasks, concurrency));
+	}
+	
+	/**
+	 * Computes the matrix that normalizes features with the bias column by the mean and standard deviation of the training rows.
+	 * The first row of their Gram matrix holds the number of rows and the sums of the features, the diagonal the sums of the squares.
+	 * The normalized features are <tt>X A</tt> and their Gram matrix is <tt>A^T G A</tt>.
+	 *
+	 * @param gram the Gram matrix <tt>X^T X</tt> of the training rows with the bias column
+	 * @return the normalization matrix <tt>A</tt>
+	 */
+	static INDArray normalization(INDArray gram)
+	{
+		int n 				= gram.rows();
+		double m 			= gram.getDouble(0, 0);
+		INDArray scaling 	= Nd4j.zeros(n, n);
+		scaling.put(0, 0, 1.0d);
+		for(int j = 1; j < n; j++)
+		{
+			double mean 	= gram.getDouble(0, j) / m;
+			double squares 	= gram.getDouble(j, j);
+			double variance = (squares - m * mean * mean) / (m - 1);
+			
+			//A constant feature leaves only rounding errors of the squares, it is only shifted like in the training
+			double sigma 	= variance > 1e-12d * squares / m ? Math.sqrt(variance) : 1.0d;
+			scaling.put(0, j, -mean / sigma);
+			scaling.put(j, j, 1.0d / sigma);
+		}
+		return scaling;
+	}
+	
+	/**
+	 * Gradient Descent on the Gram matrix of the training rows instead of the rows themselves, see {@link GramDescent}. Does not change the model.
+	 *
+	 * @param gram the Gram matrix <tt>X^T X</tt> of the training rows
+	 * @param moment the moments <tt>X^T y</tt> of the training rows
+	 * @param squaredLabels the sum of the squared labels of the training rows
+	 * @param m the number of training rows
+	 * @param theta the theta values to start with
+	 * @return the computed theta values
+	 * @throws InterruptedException if the evaluation has been cancelled
+	 */
+	INDArray gramDescent(INDArray gram, INDArray moment, double squaredLabels, int m, INDArray theta) throws InterruptedException
+	{
+		return descend(new GramDescent(gram, moment, squaredLabels, (double) params.get("alpha"), m), theta, params, (long) params.get("iter"), false);
+	}
+	
+	/**
+	 * Stochastic Gradient Descent on the training rows of a fold with the hyperparameters of the model on a single thread,
+	 * the folds run in parallel. Does not change the model.
+	 *
+	 * @param features the features of the training rows
+	 * @param labels the labels of the training rows
+	 * @param theta the theta values to start with
+	 * @return the computed theta values
+	 * @throws InterruptedException if the evaluation has been cancelled
+	 */
+	INDArray foldSgd(INDArray features, INDArray labels, INDArray theta) throws InterruptedException
+	{
+		ParallelSgd sgd 	= new ParallelSgd(features.dup('f').data().asDouble(), labels.dup('f').data().asDouble(), features.rows(), features.columns(), 
+				(double) params.get("alpha"), (int) getLong(params, "batchSize", DEFAULT_BATCH_SIZE), 1, false, getLong(params, "seed", 0));
+		double[] thetaArr 	= descend(new SgdDescent(sgd), theta.dup('f').data().asDouble(), params, (long) params.get("iter"), false);
+		return Nd4j.create(thetaArr, new int[]{thetaArr.length, 1});
+	}
+	
+	/**
+	 * The evaluation of Gradient Descent hyperparameters on a shared split of the normalized rows.
+	 */
+	final class Tuning implements HyperparameterSearch.Evaluator
+	{
+		/** The hyperparameters with integer values. */
+		private final Set<String> integers = new HashSet<>(Arrays.asList("iter", "costEvery", "batchSize"));
+		
+		/** The features of the training part with the bias column. */
+		private final INDArray trainFeatures;
+		
+		/** The labels of the training part. */
+		private final INDArray trainLabels;
+		
+		/** The features of the held out part with the bias column. */
+		private final INDArray validationFeatures;
+		
+		/** The labels of the held out part. */
+		private final INDArray validationLabels;
+		
+		/** The solver the candidates are trained with, <tt>gd</tt> or <tt>sgd</tt>. */
+		private final Solvers used;
+		
+		/** The theta values every candidate starts from, the ones the model has been created with. */
+		private final INDArray start;
+		
+		/**
+		 * Instantiates a new Tuning.
+		 *
+		 * @param trainFeatures the features of the training part
+		 * @param trainLabels the labels of the training part
+		 * @param validationFeatures the features of the held out part
+		 * @param validationLabels the labels of the held out part
+		 * @param used the solver
+		 */
+		Tuning(INDArray trainFeatures, INDArray trainLabels, INDArray validationFeatures, INDArray validationLabels, Solvers used)
+		{
+			this.trainFeatures 		= trainFeatures;
+			this.trainLabels 		= trainLabels;
+			this.validationFeatures = validationFeatures;
+			this.validationLabels 	= validationLabels;
+			this.used 				= used;
+			this.start 				= initialTheta();
+		}
+		
+		/* (non-Javadoc)
+		 * @see ml.HyperparameterSearch.Evaluator#tunable()
+		 */
+		@Override
+		public Set<String> tunable()
+		{
+			Set<String> tunable = new HashSet<>(Arrays.asList("alpha", "iter", "tolerance", "costEvery"));
+			if(used == Solvers.sgd) tunable.add("batchSize");
+			return tunable;
+		}
+		
+		/**
+		 * Runs the solver on the training part without changing the model and computes the mean squared error of the held out part.
+		 * 
+		 * @see ml.HyperparameterSearch.Evaluator#evaluate(java.util.Map)
+		 */
+		@Override
+		public double evaluate(Map<String, Object> candidate) throws InterruptedException
+		{
+			Map<String, Object> p 	= HyperparameterSearch.merge(params, candidate, integers);
+			double alpha 			= getDouble(p, "alpha", Double.NaN);
+			long iter 				= getLong(p, "iter", 0);
+			if(Double.isNaN(alpha) || iter < 1) throw new IllegalArgumentException("The candidate " + candidate + " needs alpha and iter.");
+			
+			INDArray t;
+			if(used == Solvers.sgd)
+			{
+				ParallelSgd sgd = new ParallelSgd(trainFeatures.dup('f').data().asDouble(), trainLabels.dup('f').data().asDouble(), trainFeatures.rows(), trainFeatures.columns(), 
+						alpha, (int) getLong(p, "batchSize", DEFAULT_BATCH_SIZE), 1, false, getLong(p, "seed", 0));
+				double[] thetaArr = descend(new SgdDescent(sgd), start.dup('f').data().asDouble(), p, iter, false);
+				t = Nd4j.create(thetaArr, new int[]{thetaArr.length, 1});
+			}
+			else
+			{
+				t = descend(new RowDescent(trainFeatures, trainLabels, alpha, trainFeatures.rows()), start, p, iter, false);
+			}
+			return squaredError(validationFeatures.mmul(t).subi(validationLabels)) / validationFeatures.rows();
+		}
+		
+		/* (non-Javadoc)
+		 * @see ml.HyperparameterSearch.Evaluator#apply(java.util.Map)
+		 */
+		@Override
+		public void apply(Map<String, Object> candidate)
+		{
+			params 	= HyperparameterSearch.merge(params, candidate, integers);
+			restart = true;
+		}
+	}
+	
+	/**
+	 * The cost and the step of a descent solver, see {@link Nd4jLinReg#descend}.
+	 *
+	 * @param <T> the type of the theta values
+	 */
+	interface Descent<T>
+	{
+		/**
+		 * Computes the cost of theta values.
+		 *
+		 * @param theta the theta values
+		 * @return the cost
+		 */
+		double cost(T theta);
+		
+		/**
+		 * Moves theta values one step against the gradient, the given theta values are not changed.
+		 *
+		 * @param theta the theta values before the step
+		 * @return the theta values after the step
+		 * @throws InterruptedException if the descent has been cancelled
+		 */
+		T step(T theta) throws InterruptedException;
+	}
+	
+	/**
+	 * Gradient Descent on the rows. The residuals of the last theta values are kept, 
+	 * so the cost and the step of the same theta values share one matrix multiplication.
+	 */
+	static final class RowDescent implements Descent<INDArray>
+	{
+		/** The features with the bias column. */
+		private final INDArray features;
+		
+		/** The transposed features. */
+		private final INDArray transposed;
+		
+		/** The labels. */
+		private final INDArray labels;
+		
+		/** The step size. */
+		private final double alpha;
+		
+		/** The number of rows. */
+		private final double length;
+		
+		/** The theta values the residuals belong to. */
+		private INDArray residualTheta;
+		
+		/** The residuals of <tt>residualTheta</tt>. */
+		private INDArray residual;
+		
+		/**
+		 * Instantiates a new RowDescent.
+		 *
+		 * @param features the features with the bias column
+		 * @param labels the labels
+		 * @param alpha the step size
+		 * @param length the number of rows
+		 */
+		RowDescent(INDArray features, INDArray labels, double alpha, double length)
+		{
+			this.features 	= features;
+			this.transposed = features.transpose();
+			this.labels 	= labels;
+			this.alpha 		= alpha;
+			this.length 	= length;
+		}
+		
+		/**
+		 * Computes the residuals of theta values unless they are the last ones.
+		 *
+		 * @param theta the theta values
+		 * @return the residuals
+		 */
+		private INDArray residual(INDArray theta)
+		{
+			if(theta != residualTheta)
+			{
+				residual 		= features.mmul(theta).subi(labels);
+				residualTheta 	= theta;
+			}
+			return residual;
+		}
+		
+		/* (non-Javadoc)
+		 * @see ml.Nd4jLinReg.Descent#cost(java.lang.Object)
+		 */
+		@Override
+		public double cost(INDArray theta)
+		{
+			return squaredError(residual(theta)) / (2.0d * length);
+		}
+		
+		/* (non-Javadoc)
+		 * @see ml.Nd4jLinReg.Descent#step(java.lang.Object)
+		 */
+		@Override
+		public INDArray step(INDArray theta)
+		{
+			return theta.sub(transposed.mmul(residual(theta)).muli(alpha / length));
+		}
+	}
+	
+	/**
+	 * Gradient Descent on the Gram matrix of the rows. The gradient <tt>X^T (X theta - y)</tt> equals <tt>G theta - X^T y</tt>, 
+	 * so every step only depends on the number of features. The gradient of the last theta values is kept for the step.
+	 */
+	static final class GramDescent implements Descent<INDArray>
+	{
+		/** The Gram matrix <tt>X^T X</tt>. */
+		private final INDArray gram;
+		
+		/** The moments <tt>X^T y</tt>. */
+		private final INDArray moment;
+		
+		/** The sum of the squared labels. */
+		private final double squaredLabels;
+		
+		/** The step size. */
+		private final double alpha;
+		
+		/** The number of rows. */
+		private final double length;
+		
+		/** The theta values the gradient belongs to. */
+		private INDArray gradientTheta;
+		
+		/** The gradient of <tt>gradientTheta</tt>. */
+		private INDArray gradient;
+		
+		/**
+		 * Instantiates a new GramDescent.
+		 *
+		 * @param gram the Gram matrix <tt>X^T X</tt>
+		 * @param moment the moments <tt>X^T y</tt>
+		 * @param squaredLabels the sum of the squared labels
+		 * @param alpha the step size
+		 * @param length the number of rows
+		 */
+		GramDescent(INDArray gram, INDArray moment, double squaredLabels, double alpha, double length)
+		{
+			this.gram 			= gram;
+			this.moment 		= moment;
+			this.squaredLabels 	= squaredLabels;
+			this.alpha 			= alpha;
+			this.length 		= length;
+		}
+		
+		/**
+		 * Computes the gradient of theta values unless they are the last ones.
+		 *
+		 * @param theta the theta values
+		 * @return the gradient, not scaled by the number of rows
+		 */
+		private INDArray gradient(INDArray theta)
+		{
+			if(theta != gradientTheta)
+			{
+				gradient 		= gram.mmul(theta).subi(moment);
+				gradientTheta 	= theta;
+			}
+			return gradient;
+		}
+		
+		/* (non-Javadoc)
+		 * @see ml.Nd4jLinReg.Descent#cost(java.lang.Object)
+		 */
+		@Override
+		public double cost(INDArray theta)
+		{
+			//theta^T G theta - 2 theta^T X^T y + y^T y
+			return (theta.transpose().mmul(gradient(theta).sub(moment)).getDouble(0) + squaredLabels) / (2.0d * length);
+		}
+		
+		/* (non-Javadoc)
+		 * @see ml.Nd4jLinReg.Descent#step(java.lang.Object)
+		 */
+		@Override
+		public INDArray step(INDArray theta)
+		{
+			return theta.sub(gradient(theta).mul(alpha / length));
+		}
+	}
+	
+	/**
+	 * Stochastic Gradient Descent, every step is one epoch of a {@link ParallelSgd}.
+	 */
+	static final class SgdDescent implements Descent<double[]>
+	{
+		/** The epochs over the rows. */
+		private final ParallelSgd sgd;
+		
+		/**
+		 * Instantiates a new SgdDescent.
+		 *
+		 * @param sgd the epochs over the rows
+		 */
+		SgdDescent(ParallelSgd sgd)
+		{
+			this.sgd = sgd;
+		}
+		
+		/* (non-Javadoc)
+		 * @see ml.Nd4jLinReg.Descent#cost(java.lang.Object)
+		 */
+		@Override
+		public double cost(double[] theta)
+		{
+			return sgd.cost(theta);
+		}
+		
+		/* (non-Javadoc)
+		 * @see ml.Nd4jLinReg.Descent#step(java.lang.Object)
+		 */
+		@Override
+		public double[] step(double[] theta) throws InterruptedException
+		{
+			return sgd.epoch(theta);
+		}
+	}
+	
+	/**
+	 * The trained values of a model. They are never changed, a training publishes new Coefficients as a whole.
+	 * The primitive copies let a single prediction go without any INDArray.
+	 */
+	static final class Coefficients
+	{
+		/** The names of the features in column order. */
+		final String[] featureNames;
+		
+		/** The theta values, bias first. */
+		final INDArray theta;
+		
+		/** The mean of every feature. */
+		final INDArray mean;
+		
+		/** The standard deviation of every feature. */
+		final INDArray sigma;
+		
+		/** The theta values as primitive copy. */
+		final double[] thetaValues;
+		
+		/** The mean values as primitive copy. */
+		final double[] meanValues;
+		
+		/** The standard deviation values as primitive copy. */
+		final double[] sigmaValues;
+		
+		/** The encoder of the date feature, null before the first training. */
+		final DateEncoder dates;
+		
+		/**
+		 * Instantiates new Coefficients.
+		 *
+		 * @param featureNames the names of the features in column order
+		 * @param theta the theta values, not changed afterwards
+		 * @param mean the mean values, not changed afterwards
+		 * @param sigma the standard deviation values, not changed afterwards
+		 * @param dates the encoder of the date feature
+		 */
+		Coefficients(String[] featureNames, INDArray theta, INDArray mean, INDArray sigma, DateEncoder dates)
+		{
+			this.featureNames 	= featureNames;
+			this.theta 			= theta;
+			this.mean 			= mean;
+			this.sigma 			= sigma;
+			this.thetaValues 	= theta.dup().data().asDouble();
+			this.meanValues 	= mean.dup().data().asDouble();
+			this.sigmaValues 	= sigma.dup().data().asDouble();
+			this.dates 			= dates;
+		}
+	}
+	
+	/**
+	 * The Enum Solvers defines the possible algorithms to compute the theta values.
+	 */
+	public enum Solvers
+	{
+		/** Gradient Descent with the hyperparameters alpha and iter. */
+		gd,
+		/** Parallel mini-batch Stochastic Gradient Descent with the hyperparameters alpha, iter (epochs), batchSize, parallelism and hogwild. */
+		sgd,
+		/** Normal equations solved with the Cholesky decomposition. */
+		cholesky,
+		/** Least squares solved with the QR decomposition of the features. */
+		qr,
+		/** Cholesky for models with few features, Gradient Descent otherwise. */
+		auto;
+		
+		/**
+		 * Gets the solver.
+		 *
+		 * @param solver the name of the solver
+		 * @return the solver
+		 */
+		public static Solvers getSolvers(String solver)
+		{
+			switch (solver.toUpperCase())
+			{
+				case "GD":
+					return Solvers.gd;
+				case "SGD":
+					return Solvers.sgd;
+				case "CHOLESKY":
+					return Solvers.cholesky;
+				case "QR":
+					return Solvers.qr;
+				case "AUTO":
+					return Solvers.auto;
+				default:
+					throw new IllegalArgumentException("Unknown solver: " + solver);
+			}
+		}
+	}
+}
@@ -0,0 +1,358 @@
+package ml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import org.neo4j.collection.primitive.PrimitiveLongIterator;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.api.ReadOperations;
+import org.neo4j.kernel.api.Statement;
+import org.neo4j.kernel.api.StatementConstants;
+import org.neo4j.kernel.api.exceptions.EntityNotFoundException;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+/**
+ * Reads the nodes of a label directly with the kernel API and adds them to a model or writes predictions back to them.
+ * The node ids are partitioned and every partition is processed in its own thread and transactions.
+ *
+ * @author mwe
+ */
+public class NodeLoader
+{
+	/** The minimum number of nodes per partition. Smaller label scans are not worth another thread. */
+	static final int MIN_PARTITION_SIZE = 10000;
+
+	/** The default number of nodes that are predicted and written in one transaction. */
+	static final int DEFAULT_BATCH_SIZE = 10000;
+
+	/** The database service. */
+	private final GraphDatabaseService db;
+
+	/** The bridge to the kernel statement of the transaction that is bound to the current thread. */
+	private final ThreadToStatementContextBridge bridge;
+
+	/**
+	 * Instantiates a new NodeLoader.
+	 *
+	 * @param db the database service
+	 */
+	public NodeLoader(GraphDatabaseService db)
+	{
+		this.db 	= db;
+		this.bridge = ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(ThreadToStatementContextBridge.class);
+	}
+
+	/**
+	 * Reads all nodes with the label and adds their feature and label properties to the model.
+	 * Nodes that do not have all properties are skipped.
+	 *
+	 * @param model the MLModel the rows are added to
+	 * @param label the name of the label
+	 * @param featureProps the Map of feature names of the model and the respective property names
+	 * @param labelProp the name of the property with the label values
+	 * @return the number of added rows and the number of skipped nodes
+	 */
+	public long[] addFromLabel(MLModel model, String label, Map<String, String> featureProps, String labelProp)
+	{
+		long[] nodeIds;
+		int[] featureKeys;
+		int labelKey;
+
+		//The transaction of the procedure call is bound to the calling thread
+		try(Statement statement = bridge.get())
+		{
+			ReadOperations ops = statement.readOperations();
+			nodeIds 	= nodeIds(ops, label);
+			featureKeys = featureKeys(ops, model, featureProps);
+			labelKey 	= ops.propertyKeyGetForName(labelProp);
+		}
+
+		List<ColumnStore> batches = runPartitions(partition(nodeIds), ids -> encodePartition(model, ids, featureKeys, labelKey));
+
+		long added = 0;
+		for(ColumnStore batch : batches)
+		{
+			model.addAll(batch);
+			added += batch.size();
+		}
+		MemoryBudget.enforce(model);
+		return new long[]{added, nodeIds.length - added};
+	}
+
+	/**
+	 * Predicts a value for every node with the label and writes it to a property of the node.
+	 * Every partition is predicted in batches and every batch is written in its own transaction, so no transaction grows with the label.
+	 * Nodes that do not have all feature properties are skipped.
+	 *
+	 * @param model the trained MLModel
+	 * @param label the name of the label
+	 * @param featureProps the Map of feature names of the model and the respective property names
+	 * @param targetProp the name of the property the predictions are written to
+	 * @param batchSize the number of nodes per transaction
+	 * @param concurrency the maximum number of threads
+	 * @return the number of written nodes and the number of skipped nodes
+	 */
+	public long[] predictAndWrite(MLModel model, String label, Map<String, String> featureProps, String targetProp, int batchSize, int concurrency)
+	{
+		if(batchSize < 1) throw new IllegalArgumentException("Illegal batch size " + batchSize + ". Please use at least one node per batch.");
+		if(concurrency < 1) throw new IllegalArgumentException("Illegal concurrency " + concurrency + ". Please use at least one thread.");
+
+		long[] nodeIds;
+		int[] featureKeys;
+
+		try(Statement statement = bridge.get())
+		{
+			ReadOperations ops = statement.readOperations();
+			nodeIds 	= nodeIds(ops, label);
+			featureKeys = featureKeys(ops, model, featureProps);
+		}
+
+		long written = 0;
+		for(long count : runPartitions(partition(nodeIds, concurrency), ids -> writePartition(model, ids, featureKeys, targetProp, batchSize)))
+		{
+			written += count;
+		}
+		return new long[]{written, nodeIds.length - written};
+	}
+
+	/**
+	 * Predicts and writes one partition of nodes, one transaction per batch.
+	 *
+	 * @param model the trained MLModel
+	 * @param ids the ids of the nodes
+	 * @param featureKeys the property key ids of the features in column order
+	 * @param targetProp the name of the property the predictions are written to
+	 * @param batchSize the number of nodes per transaction
+	 * @return the number of written nodes
+	 */
+	private long writePartition(MLModel model, long[] ids, int[] featureKeys, String targetProp, int batchSize)
+	{
+		long written 		= 0;
+		long[] targets 		= new long[batchSize];
+		List<Object[]> rows = new ArrayList<>(batchSize);
+
+		for(int from = 0; from < ids.length; from += batchSize)
+		{
+			if(Thread.currentThread().isInterrupted()) throw new IllegalStateException("Interrupted while writing predictions");
+
+			int to = Math.min(ids.length, from + batchSize);
+			try(Transaction tx = db.beginTx())
+			{
+				//Read the features of the batch
+				int n = 0;
+				rows.clear();
+				try(Statement statement = bridge.get())
+				{
+					ReadOperations ops = statement.readOperations();
+					for(int i = from; i < to; i++)
+					{
+						Object[] values = new Object[featureKeys.length];
+						boolean complete = true;
+						for(int j = 0; j < featureKeys.length && complete; j++)
+						{
+							values[j] = property(ops, ids[i], featureKeys[j]);
+							complete = values[j] != null;
+						}
+						if(!complete) continue;
+						rows.add(values);
+						targets[n++] = ids[i];
+					}
+				}
+
+				//Predict the whole batch at once and write the results
+				long start = System.nanoTime();
+				double[] predictions = model.predictBatch(rows);
+				model.stats.predicted(n, System.nanoTime() - start);
+				for(int i = 0; i < n; i++)
+				{
+					db.getNodeById(targets[i]).setProperty(targetProp, predictions[i]);
+				}
+				tx.success();
+				written += n;
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Resolves the property keys of the features in the order of the feature columns.
+	 *
+	 * @param ops the read operations of the current statement
+	 * @param model the MLModel
+	 * @param featureProps the Map of feature names of the model and the respective property names
+	 * @return the property key ids
+	 */
+	private static int[] featureKeys(ReadOperations ops, MLModel model, Map<String, String> featureProps)
+	{
+		int[] featureKeys = new int[model.nFeatures];
+		int colIter = 0;
+		for(String featureName : model.getFeatureNames())
+		{
+			String property = featureProps.get(featureName);
+			if(property == null) throw new IllegalArgumentException("The featurename '"+featureName+"' specified for this model has no property in this call. Call ml.info.");
+			featureKeys[colIter++] = ops.propertyKeyGetForName(property);
+		}
+		return featureKeys;
+	}
+
+	/**
+	 * Reads and encodes one partition of nodes in a new transaction.
+	 *
+	 * @param model the MLModel the rows are encoded for
+	 * @param ids the ids of the nodes
+	 * @param featureKeys the property key ids of the features in column order
+	 * @param labelKey the property key id of the label
+	 * @return the ColumnStore with the encoded rows
+	 */
+	private ColumnStore encodePartition(MLModel model, long[] ids, int[] featureKeys, int labelKey)
+	{
+		ColumnStore batch 	= new ColumnStore(model.nFeatures+1);
+		Object[] values 	= new Object[featureKeys.length];
+
+		try(Transaction tx = db.beginTx(); Statement statement = bridge.get())
+		{
+			ReadOperations ops = statement.readOperations();
+			for(long id : ids)
+			{
+				Object label = property(ops, id, labelKey);
+				if(label == null) continue;
+
+				boolean complete = true;
+				for(int j = 0; j < featureKeys.length && complete; j++)
+				{
+					values[j] = property(ops, id, featureKeys[j]);
+					complete = values[j] != null;
+				}
+				if(complete) batch.add(model.encode(values, label));
+			}
+			tx.success();
+		}
+		return batch;
+	}
+
+	/**
+	 * Reads a property of a node.
+	 *
+	 * @param ops the read operations of the current statement
+	 * @param id the id of the node
+	 * @param key the property key id
+	 * @return the value or null if the node does not have the property
+	 */
+	private static Object property(ReadOperations ops, long id, int key)
+	{
+		if(key == StatementConstants.NO_SUCH_PROPERTY_KEY) return null;
+		try
+		{
+			return ops.nodeGetProperty(id, key);
+		}
+		catch(EntityNotFoundException e) //node has been deleted concurrently
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the ids of all nodes with the label.
+	 *
+	 * @param ops the read operations of the current statement
+	 * @param label the name of the label
+	 * @return the array of node ids
+	 */
+	static long[] nodeIds(ReadOperations ops, String label)
+	{
+		int labelId = ops.labelGetForName(label);
+		if(labelId == StatementConstants.NO_SUCH_LABEL) return new long[0];
+
+		long[] ids = new long[1024];
+		int size = 0;
+		PrimitiveLongIterator iter = ops.nodesGetForLabel(labelId);
+		while(iter.hasNext())
+		{
+			if(size == ids.length) ids = Arrays.copyOf(ids, size + (size >> 1));
+			ids[size++] = iter.next();
+		}
+		return Arrays.copyOf(ids, size);
+	}
+
+	/**
+	 * Splits the node ids in one partition per available core, but not into partitions smaller than <tt>MIN_PARTITION_SIZE</tt>.
+	 *
+	 * @param ids the node ids
+	 * @return the List of partitions
+	 */
+	static List<long[]> partition(long[] ids)
+	{
+		return partition(ids, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Splits the node ids in at most the given number of partitions, but not into partitions smaller than <tt>MIN_PARTITION_SIZE</tt>.
+	 *
+	 * @param ids the node ids
+	 * @param maxPartitions the maximum number of partitions
+	 * @return the List of partitions
+	 */
+	static List<long[]> partition(long[] ids, int maxPartitions)
+	{
+		int nPartitions = (int) Math.max(1, Math.min(maxPartitions, ids.length / MIN_PARTITION_SIZE));
+		int size 		= Math.max(1, (ids.length + nPartitions - 1) / nPartitions);
+
+		List<long[]> partitions = new ArrayList<>();
+		for(int from = 0; from < ids.length; from += size)
+		{
+			partitions.add(Arrays.copyOfRange(ids, from, Math.min(ids.length, from + size)));
+		}
+		return partitions;
+	}
+
+	/**
+	 * Runs a task for every partition, each one in its own thread, and waits for all of them.
+	 *
+	 * @param partitions the List of partitions
+	 * @param task the task
+	 * @return the List of results in the order of the partitions
+	 */
+	static <T> List<T> runPartitions(List<long[]> partitions, Function<long[], T> task)
+	{
+		List<T> results = new ArrayList<>();
+		if(partitions.isEmpty()) return results;
+
+		ExecutorService executor = Executors.newFixedThreadPool(partitions.size());
+		try
+		{
+			List<Future<T>> futures = new ArrayList<>();
+			for(long[] partition : partitions)
+			{
+				futures.add(executor.submit(() -> task.apply(partition)));
+			}
+			for(Future<T> future : futures)
+			{
+				results.add(future.get());
+			}
+			return results;
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while reading nodes", e);
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+}
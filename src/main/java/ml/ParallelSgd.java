@@ -0,0 +1,210 @@
+package ml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Mini-batch Stochastic Gradient Descent for Linear Regression that runs the shards of the rows in parallel on a ForkJoinPool.
+ * <p>
+ * Every shard runs mini-batch SGD over its rows. With synchronous averaging every shard starts an epoch
+ * from the same theta values and the results of all shards are averaged at the end of the epoch.
+ * With Hogwild all shards update the same theta values without any locking.
+ * The rows are shuffled before every epoch, so every shard sees other rows in another order in every pass.
+ * All trainings share the pool of {@link TrainingScheduler} with a thread per core.
+ *
+ * @author mwe
+ */
+public class ParallelSgd
+{
+	/** The features (with bias column) in column-major order. */
+	private final double[] features;
+
+	/** The labels. */
+	private final double[] labels;
+
+	/** The number of rows. */
+	private final int m;
+
+	/** The number of columns (features plus bias). */
+	private final int n;
+
+	/** The step size. */
+	private final double alpha;
+
+	/** The number of rows per gradient step. */
+	private final int batchSize;
+
+	/** The boolean that indicates whether the shards update shared theta values without locking. */
+	private final boolean hogwild;
+
+	/** The ranges of the shards in <tt>order</tt>, shard i covers the positions from bounds[i] to bounds[i+1]. */
+	private final int[] bounds;
+
+	/** The rows in the order of the current epoch. */
+	private final int[] order;
+
+	/** The Random that shuffles the rows. */
+	private final Random random;
+
+	/**
+	 * Instantiates a new ParallelSgd.
+	 *
+	 * @param features the features (with bias column) in column-major order
+	 * @param labels the labels
+	 * @param m the number of rows
+	 * @param n the number of columns
+	 * @param alpha the step size
+	 * @param batchSize the number of rows per gradient step
+	 * @param parallelism the number of shards that run in parallel
+	 * @param hogwild the boolean that indicates whether the shards update shared theta values without locking
+	 * @param seed the seed of the row order
+	 */
+	public ParallelSgd(double[] features, double[] labels, int m, int n, double alpha, int batchSize, int parallelism, boolean hogwild, long seed)
+	{
+		if(batchSize < 1) throw new IllegalArgumentException("Illegal batch size " + batchSize + ". Please use at least one row per batch.");
+		if(parallelism < 1) throw new IllegalArgumentException("Illegal parallelism " + parallelism + ". Please use at least one thread.");
+
+		this.features 	= features;
+		this.labels 	= labels;
+		this.m 			= m;
+		this.n 			= n;
+		this.alpha 		= alpha;
+		this.batchSize 	= batchSize;
+		this.hogwild 	= hogwild;
+		this.random 	= new Random(seed);
+		this.order 		= new int[m];
+		for(int i = 0; i < m; i++)
+		{
+			order[i] = i;
+		}
+
+		//Shards with less than one batch are not worth a thread
+		int nShards = Math.max(1, Math.min(parallelism, m / batchSize));
+		this.bounds = new int[nShards+1];
+		for(int s = 0; s <= nShards; s++)
+		{
+			bounds[s] = (int) ((long) m * s / nShards);
+		}
+	}
+
+	/**
+	 * Runs one epoch over all rows.
+	 *
+	 * @param theta the theta values before the epoch
+	 * @return the theta values after the epoch
+	 * @throws InterruptedException if the training has been cancelled
+	 */
+	public double[] epoch(double[] theta) throws InterruptedException
+	{
+		int nShards = bounds.length - 1;
+		shuffle();
+		if(nShards == 1) return runShard(theta.clone(), 0, m);
+		double[] shared = hogwild ? theta.clone() : null;
+
+		List<Callable<double[]>> tasks = new ArrayList<>();
+		for(int s = 0; s < nShards; s++)
+		{
+			final int from 	= bounds[s];
+			final int to 	= bounds[s+1];
+			tasks.add(() -> runShard(hogwild ? shared : theta.clone(), from, to));
+		}
+
+		double[] result = new double[n];
+		try
+		{
+			for(Future<double[]> future : TrainingScheduler.pool.invokeAll(tasks))
+			{
+				double[] shardTheta = future.get();
+				if(hogwild) return shardTheta;
+				for(int j = 0; j < n; j++)
+				{
+					result[j] += shardTheta[j] / nShards;
+				}
+			}
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+		return result;
+	}
+
+	/**
+	 * Shuffles the order of the rows with the Fisher-Yates algorithm.
+	 */
+	private void shuffle()
+	{
+		for(int i = m - 1; i > 0; i--)
+		{
+			int j 		= random.nextInt(i + 1);
+			int swap 	= order[i];
+			order[i] 	= order[j];
+			order[j] 	= swap;
+		}
+	}
+
+	/**
+	 * Runs mini-batch SGD over the rows of one shard.
+	 *
+	 * @param theta the theta values that are updated in place
+	 * @param from the first position in <tt>order</tt> (inclusive)
+	 * @param to the last position in <tt>order</tt> (exclusive)
+	 * @return the updated theta values
+	 */
+	private double[] runShard(double[] theta, int from, int to)
+	{
+		double[] gradient = new double[n];
+		for(int start = from; start < to; start += batchSize)
+		{
+			int end = Math.min(to, start + batchSize);
+			Arrays.fill(gradient, 0.0d);
+			for(int k = start; k < end; k++)
+			{
+				int i = order[k];
+				double residual = -labels[i];
+				for(int j = 0; j < n; j++)
+				{
+					residual += features[j * m + i] * theta[j];
+				}
+				for(int j = 0; j < n; j++)
+				{
+					gradient[j] += residual * features[j * m + i];
+				}
+			}
+			double step = alpha / (end - start);
+			for(int j = 0; j < n; j++)
+			{
+				theta[j] -= step * gradient[j];
+			}
+		}
+		return theta;
+	}
+
+	/**
+	 * Computes the cost for these theta values.
+	 * Loss function 'mean squared error'.
+	 *
+	 * @param theta the theta values
+	 * @return the cost
+	 */
+	public double cost(double[] theta)
+	{
+		double sum = 0.0d;
+		for(int i = 0; i < m; i++)
+		{
+			double residual = -labels[i];
+			for(int j = 0; j < n; j++)
+			{
+				residual += features[j * m + i] * theta[j];
+			}
+			sum += residual * residual;
+		}
+		return sum / (2.0d * m);
+	}
+}
@@ -0,0 +1,175 @@
+package ml;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+/**
+ * Read-only view of one predicted row as Map of feature names, the prediction and the extra attributes.
+ * The values are read from the arrays of the prediction when they are accessed, the extra attributes are shared by all rows.
+ * Like the former result maps, numeric values are rounded and extra attributes replace features with the same name.
+ *
+ * @author mwe
+ */
+public class PredictionMap extends AbstractMap<String, Object>
+{
+	/** The key of the predicted value. */
+	static final String PREDICTION = "prediction";
+
+	/** The names of the features in column order, shared by all rows. */
+	private final String[] featureNames;
+
+	/** The feature values of all rows, one column per feature. */
+	private final INDArray features;
+
+	/** The predicted values of all rows in one column. */
+	private final INDArray predictions;
+
+	/** The index of the row. */
+	private final int row;
+
+	/** The extra attributes, shared by all rows. */
+	private final Map<String, ?> extra;
+
+	/** The entries of the row, created on first use. */
+	private Set<Map.Entry<String, Object>> entrySet;
+
+	/**
+	 * Instantiates a new PredictionMap.
+	 *
+	 * @param featureNames the names of the features in column order
+	 * @param features the feature values of all rows
+	 * @param predictions the predicted values of all rows
+	 * @param row the index of the row
+	 * @param extra the extra attributes or null
+	 */
+	public PredictionMap(String[] featureNames, INDArray features, INDArray predictions, int row, Map<String, ?> extra)
+	{
+		this.featureNames 	= featureNames;
+		this.features 		= features;
+		this.predictions 	= predictions;
+		this.row 			= row;
+		this.extra 			= extra != null ? extra : Collections.emptyMap();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.AbstractMap#get(java.lang.Object)
+	 */
+	@Override
+	public Object get(Object key)
+	{
+		if(extra.containsKey(key)) return extra.get(key);
+		if(PREDICTION.equals(key)) return Math.round(predictions.getDouble(row, 0));
+		for(int i = 0; i < featureNames.length; i++)
+		{
+			if(featureNames[i].equals(key)) return Math.round(features.getDouble(row, i));
+		}
+		return null;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.AbstractMap#containsKey(java.lang.Object)
+	 */
+	@Override
+	public boolean containsKey(Object key)
+	{
+		if(extra.containsKey(key) || PREDICTION.equals(key)) return true;
+		for(String featureName : featureNames)
+		{
+			if(featureName.equals(key)) return true;
+		}
+		return false;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.AbstractMap#entrySet()
+	 */
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet()
+	{
+		if(entrySet == null)
+		{
+			entrySet = new AbstractSet<Map.Entry<String, Object>>()
+			{
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator()
+				{
+					return new EntryIterator();
+				}
+
+				@Override
+				public int size()
+				{
+					int size = extra.size() + (extra.containsKey(PREDICTION) ? 0 : 1);
+					for(String featureName : featureNames)
+					{
+						if(!extra.containsKey(featureName)) size++;
+					}
+					return size;
+				}
+			};
+		}
+		return entrySet;
+	}
+
+	/**
+	 * Iterates the features, the prediction and then the extra attributes.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<String, Object>>
+	{
+		/** The index of the next feature, <tt>featureNames.length</tt> for the prediction. */
+		private int column = 0;
+
+		/** The iterator of the extra attributes, used after the prediction. */
+		private final Iterator<? extends Map.Entry<String, ?>> extraIter = extra.entrySet().iterator();
+
+		/**
+		 * Skips the features and the prediction that are replaced by extra attributes.
+		 */
+		private void skipReplaced()
+		{
+			while(column < featureNames.length && extra.containsKey(featureNames[column]))
+			{
+				column++;
+			}
+			if(column == featureNames.length && extra.containsKey(PREDICTION)) column++;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext()
+		{
+			skipReplaced();
+			return column <= featureNames.length || extraIter.hasNext();
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public Map.Entry<String, Object> next()
+		{
+			if(!hasNext()) throw new NoSuchElementException();
+			if(column < featureNames.length)
+			{
+				int i = column++;
+				return new SimpleImmutableEntry<>(featureNames[i], Math.round(features.getDouble(row, i)));
+			}
+			if(column == featureNames.length)
+			{
+				column++;
+				return new SimpleImmutableEntry<>(PREDICTION, Math.round(predictions.getDouble(row, 0)));
+			}
+			Map.Entry<String, ?> entry = extraIter.next();
+			return new SimpleImmutableEntry<>(entry.getKey(), entry.getValue());
+		}
+	}
+}
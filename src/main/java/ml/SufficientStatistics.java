@@ -0,0 +1,213 @@
+package ml;
+
+/**
+ * Running sufficient statistics for Linear Regression on normalized features.
+ * Keeps the mean of every feature and of the label together with the centered co-moments
+ * (Welford's online algorithm), so the optimal theta values can be computed without the added rows.
+ * Adding a row costs O(d^2), solving costs O(d^3) where d is the number of features.
+ *
+ * @author mwe
+ */
+public class SufficientStatistics
+{
+	/** The number of features. */
+	final int nFeatures;
+
+	/** The number of added rows. */
+	long n;
+
+	/** The mean of every feature. */
+	final double[] mean;
+
+	/** The mean of the label. */
+	double labelMean;
+
+	/** The sums of products of the centered features. */
+	final double[][] comoment;
+
+	/** The sums of products of the centered features and the centered label. */
+	final double[] labelComoment;
+
+	/** The sum of squares of the centered label. */
+	double labelMoment;
+
+	/**
+	 * Instantiates new empty SufficientStatistics.
+	 *
+	 * @param nFeatures the number of features
+	 */
+	public SufficientStatistics(int nFeatures)
+	{
+		this.nFeatures 		= nFeatures;
+		this.mean 			= new double[nFeatures];
+		this.comoment 		= new double[nFeatures][nFeatures];
+		this.labelComoment 	= new double[nFeatures];
+	}
+
+	/**
+	 * Adds one row to the statistics.
+	 *
+	 * @param x the feature values
+	 * @param y the label
+	 */
+	public void add(double[] x, double y)
+	{
+		n++;
+		double[] dx = new double[nFeatures];
+		for(int j = 0; j < nFeatures; j++)
+		{
+			dx[j] 	 = x[j] - mean[j];
+			mean[j] += dx[j] / n;
+		}
+		double dy 	= y - labelMean;
+		labelMean  += dy / n;
+
+		//The deltas to the old and the new mean give the exact increase of the co-moments
+		for(int j = 0; j < nFeatures; j++)
+		{
+			for(int k = 0; k < nFeatures; k++)
+			{
+				comoment[j][k] += dx[j] * (x[k] - mean[k]);
+			}
+			labelComoment[j] += dx[j] * (y - labelMean);
+		}
+		labelMoment += dy * (y - labelMean);
+	}
+
+	/**
+	 * Adds the rows of other statistics (Chan's parallel algorithm), so statistics of disjoint rows can be kept separately and combined.
+	 * The other statistics are not modified.
+	 *
+	 * @param other the statistics with the same number of features
+	 */
+	public void merge(SufficientStatistics other)
+	{
+		if(other.n == 0) return;
+		if(n == 0)
+		{
+			n 			= other.n;
+			labelMean 	= other.labelMean;
+			labelMoment = other.labelMoment;
+			System.arraycopy(other.mean, 0, mean, 0, nFeatures);
+			System.arraycopy(other.labelComoment, 0, labelComoment, 0, nFeatures);
+			for(int j = 0; j < nFeatures; j++)
+			{
+				System.arraycopy(other.comoment[j], 0, comoment[j], 0, nFeatures);
+			}
+			return;
+		}
+		
+		long total 		= n + other.n;
+		double weight 	= (double) n * other.n / total;
+		double[] dx 	= new double[nFeatures];
+		for(int j = 0; j < nFeatures; j++)
+		{
+			dx[j] 	 = other.mean[j] - mean[j];
+			mean[j] += dx[j] * other.n / total;
+		}
+		double dy 	= other.labelMean - labelMean;
+		labelMean  += dy * other.n / total;
+		
+		//The co-moments of both parts plus the correction for the distance of their means
+		for(int j = 0; j < nFeatures; j++)
+		{
+			for(int k = 0; k < nFeatures; k++)
+			{
+				comoment[j][k] += other.comoment[j][k] + dx[j] * dx[k] * weight;
+			}
+			labelComoment[j] += other.labelComoment[j] + dx[j] * dy * weight;
+		}
+		labelMoment += other.labelMoment + dy * dy * weight;
+		n = total;
+	}
+
+	/**
+	 * Gets the sample standard deviation of every feature, like <tt>INDArray.std(true, 0)</tt>.
+	 * Features with a standard deviation of zero get the value one, so they can be used for normalization.
+	 *
+	 * @return the standard deviations
+	 */
+	public double[] sigma()
+	{
+		double[] sigma = new double[nFeatures];
+		for(int j = 0; j < nFeatures; j++)
+		{
+			sigma[j] = n > 1 ? Math.sqrt(comoment[j][j] / (n - 1)) : 0.0d;
+			if(sigma[j] == 0.0d) sigma[j] = 1.0d;
+		}
+		return sigma;
+	}
+
+	/**
+	 * Builds the normal equations for the features normalized with <tt>mean</tt> and <tt>sigma</tt>.
+	 * Element [d][0..d-1] of the returned array is the right hand side.
+	 * Features without variance get an identity row, so their theta value is zero.
+	 *
+	 * @param sigma the standard deviations
+	 * @return the matrix X^T X with the vector X^T y appended as last row
+	 */
+	double[][] normalEquations(double[] sigma)
+	{
+		double[][] system = new double[nFeatures+1][nFeatures];
+		for(int j = 0; j < nFeatures; j++)
+		{
+			boolean constant = comoment[j][j] == 0.0d;
+			for(int k = 0; k < nFeatures; k++)
+			{
+				if(constant || comoment[k][k] == 0.0d) system[j][k] = (j == k) ? 1.0d : 0.0d;
+				else system[j][k] = comoment[j][k] / (sigma[j] * sigma[k]);
+			}
+			system[nFeatures][j] = constant ? 0.0d : labelComoment[j] / sigma[j];
+		}
+		return system;
+	}
+
+	/**
+	 * Computes the optimal theta values for the normalized features.
+	 * The bias (theta 0) is the mean of the label, because the normalized features are centered.
+	 *
+	 * @return the theta values, bias first
+	 */
+	public double[] solve()
+	{
+		double[] sigma 		= sigma();
+		double[][] system 	= normalEquations(sigma);
+		double[][] gram 	= new double[nFeatures][];
+		System.arraycopy(system, 0, gram, 0, nFeatures);
+		double[] beta 		= LinearAlgebra.choleskySolve(gram, system[nFeatures]);
+
+		double[] theta = new double[nFeatures+1];
+		theta[0] = labelMean;
+		System.arraycopy(beta, 0, theta, 1, nFeatures);
+		return theta;
+	}
+
+	/**
+	 * Computes the cost (mean squared error divided by two) of theta values for the normalized features
+	 * without touching the rows.
+	 *
+	 * @param theta the theta values, bias first
+	 * @return the cost
+	 */
+	public double cost(double[] theta)
+	{
+		if(n == 0) return 0.0d;
+
+		double[][] system 	= normalEquations(sigma());
+		double bias 		= theta[0] - labelMean;
+
+		//Sum of squared errors: |Xb - (y - mean)|^2 + n * bias^2, the cross term vanishes for centered features
+		double sse = labelMoment + n * bias * bias;
+		for(int j = 0; j < nFeatures; j++)
+		{
+			if(comoment[j][j] == 0.0d) continue; //normalized constant features are always zero
+			double beta = theta[j+1];
+			sse -= 2.0d * beta * system[nFeatures][j];
+			for(int k = 0; k < nFeatures; k++)
+			{
+				if(comoment[k][k] != 0.0d) sse += beta * system[j][k] * theta[k+1];
+			}
+		}
+		return Math.max(0.0d, sse) / (2.0d * n);
+	}
+}
@@ -0,0 +1,270 @@
+package ml;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs trainings in the background, so they do not hold a transaction and a query thread.
+ * The executor has a fixed number of threads and a bounded queue, jobs that do not fit are rejected.
+ *
+ * @author mwe
+ */
+public class TrainingJobs
+{
+	/** The number of threads that train at the same time. Half of the cores are left for queries. */
+	static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+	/** The maximum number of jobs that wait for a thread. */
+	static final int MAX_QUEUED = 16;
+
+	/** The maximum number of finished jobs that are kept for <tt>ml.jobs</tt>. */
+	static final int MAX_FINISHED = 100;
+
+	/** The executor that runs the jobs. */
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<>(MAX_QUEUED), new TrainingThreadFactory());
+
+	/** The jobs ordered by their id. */
+	static ConcurrentSkipListMap<Long, Job> jobs = new ConcurrentSkipListMap<>();
+
+	/** The id of the next job. */
+	private static final AtomicLong nextId = new AtomicLong(1);
+
+	static
+	{
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	private TrainingJobs()
+	{
+	}
+
+	/**
+	 * Submits a training of the model.
+	 *
+	 * @param model the MLModel to train
+	 * @return the Job
+	 */
+	public static Job submit(MLModel model)
+	{
+		removeFinished();
+
+		Job job = new Job(nextId.getAndIncrement(), model);
+		jobs.put(job.id, job);
+		try
+		{
+			job.future = executor.submit(job::run);
+		}
+		catch(RejectedExecutionException e)
+		{
+			jobs.remove(job.id);
+			throw new IllegalArgumentException("There are already " + MAX_QUEUED + " trainings waiting, please try again later.");
+		}
+		return job;
+	}
+
+	/**
+	 * Cancels a job. A running training stops at its next iteration or epoch.
+	 * A closed form solution is computed to the end, but not installed in the model.
+	 *
+	 * @param id the id of the job
+	 * @return the Job
+	 */
+	public static Job cancel(long id)
+	{
+		Job job = getJob(id);
+		if(job.future != null && job.future.cancel(true) && job.status == Status.queued)
+		{
+			job.finish(Status.cancelled, null);
+		}
+		return job;
+	}
+
+	/**
+	 * Gets a job.
+	 *
+	 * @param id the id of the job
+	 * @return the Job
+	 */
+	public static Job getJob(long id)
+	{
+		Job job = jobs.get(id);
+		if(job != null) return job;
+		throw new IllegalArgumentException("No valid training job " + id);
+	}
+
+	/**
+	 * Gets all jobs ordered by their id.
+	 *
+	 * @return the List of jobs
+	 */
+	public static List<Job> getJobs()
+	{
+		return new ArrayList<>(jobs.values());
+	}
+
+	/**
+	 * Removes the oldest finished jobs if there are more than <tt>MAX_FINISHED</tt>.
+	 */
+	private static void removeFinished()
+	{
+		long finished = jobs.values().stream().filter(Job::isFinished).count();
+		Iterator<Job> iter = jobs.values().iterator();
+		while(finished > MAX_FINISHED && iter.hasNext())
+		{
+			if(iter.next().isFinished())
+			{
+				iter.remove();
+				finished--;
+			}
+		}
+	}
+
+	/**
+	 * The Enum Status holds the states of a training job.
+	 */
+	public enum Status
+	{
+		/** The job waits for a thread. */
+		queued,
+		/** The model is being trained. */
+		running,
+		/** The model has been trained. */
+		finished,
+		/** The training has thrown an exception. */
+		failed,
+		/** The job has been cancelled. */
+		cancelled
+	}
+
+	/**
+	 * A training of one model.
+	 */
+	public static class Job
+	{
+		/** The id of the job. */
+		final long id;
+
+		/** The model that is trained. */
+		final MLModel model;
+
+		/** The state of the job. */
+		volatile Status status;
+
+		/** The time the training started in milliseconds, 0 while queued. */
+		volatile long started;
+
+		/** The time the training ended in milliseconds, 0 while not finished. */
+		volatile long ended;
+
+		/** The message of the exception if the training has failed. */
+		volatile String error;
+
+		/** The cost of the published training if the job has finished, NaN otherwise. */
+		volatile double cost = Double.NaN;
+
+		/** The future of the submitted task. */
+		volatile Future<?> future;
+
+		/**
+		 * Instantiates a new queued Job.
+		 *
+		 * @param id the id of the job
+		 * @param model the MLModel to train
+		 */
+		Job(long id, MLModel model)
+		{
+			this.id 	= id;
+			this.model 	= model;
+			this.status = Status.queued;
+		}
+
+		/**
+		 * Trains the model and records the outcome, a job always ends as finished, cancelled or failed.
+		 */
+		private void run()
+		{
+			started = System.currentTimeMillis();
+			status 	= Status.running;
+			try
+			{
+				model.trainExclusive();
+				cost = model.trainedCost();
+				finish(Status.finished, null);
+			}
+			catch(InterruptedException e)
+			{
+				finish(Status.cancelled, null);
+			}
+			catch(Throwable e)
+			{
+				//Errors of the native backend (e.g. OutOfMemoryError, UnsatisfiedLinkError) end the job as well
+				finish(Status.failed, e.getMessage() != null ? e.getMessage() : e.toString());
+			}
+		}
+
+		/**
+		 * Sets the final state of the job.
+		 *
+		 * @param status the final state
+		 * @param error the error message or null
+		 */
+		private void finish(Status status, String error)
+		{
+			this.ended 	= System.currentTimeMillis();
+			this.error 	= error;
+			this.status = status;
+		}
+
+		/**
+		 * Checks whether the job is not queued or running anymore.
+		 *
+		 * @return true if the job has ended
+		 */
+		boolean isFinished()
+		{
+			return status != Status.queued && status != Status.running;
+		}
+
+		/**
+		 * Gets the time the training has been running in milliseconds.
+		 *
+		 * @return the elapsed time
+		 */
+		long elapsed()
+		{
+			if(started == 0) return 0;
+			return (ended != 0 ? ended : System.currentTimeMillis()) - started;
+		}
+	}
+
+	/**
+	 * Creates daemon threads for the training, so they do not keep the database from shutting down.
+	 */
+	private static class TrainingThreadFactory implements ThreadFactory
+	{
+		/** The number of the next thread. */
+		private final AtomicInteger count = new AtomicInteger(1);
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+		 */
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "ml-training-" + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
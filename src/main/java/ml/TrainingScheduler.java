@@ -0,0 +1,255 @@
+package ml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Trains several models in one call and runs the parallel work of the trainings on one shared pool.
+ * <p>
+ * The models are ordered by their estimated work. Large models are trained one after the other, so the native operations of Nd4j
+ * have all cores for their matrix operations. Small models spend most of their time outside of the native operations,
+ * they are trained side by side on <tt>concurrency</tt> threads of the pool.
+ * <p>
+ * The pool has a thread per core and also runs the candidates of <tt>ml.tune</tt>, the folds of <tt>ml.evaluate</tt> and the shards
+ * of {@link ParallelSgd}, so parallel trainings do not start more threads than there are cores. The native threads of Nd4j are a
+ * setting of the whole process and are left as they are.
+ *
+ * @author mwe
+ */
+public final class TrainingScheduler
+{
+	/** The number of cores. */
+	static final int CORES = Runtime.getRuntime().availableProcessors();
+
+	/** The estimated floating point operations from which a model is trained on its own. */
+	static final long LARGE_WORK = 1L << 30;
+
+	/** The pool that runs the parallel work of all trainings. */
+	static final ForkJoinPool pool = new ForkJoinPool(CORES);
+
+	/** The lock that lets one call train at a time, so the trainings of two calls do not compete for the cores. */
+	private static final ReentrantLock lock = new ReentrantLock();
+
+	private TrainingScheduler()
+	{
+	}
+
+	/**
+	 * Trains the models. A failed training does not stop the others.
+	 *
+	 * @param models the models to train
+	 * @param concurrency the number of small models that are trained at the same time
+	 * @return the Outcomes in the order of the models
+	 * @throws InterruptedException if the calling thread has been interrupted, the remaining models are not trained
+	 */
+	public static List<Outcome> trainAll(List<MLModel> models, int concurrency) throws InterruptedException
+	{
+		if(concurrency < 1) throw new IllegalArgumentException("The concurrency has to be at least 1, got " + concurrency + ".");
+
+		List<Outcome> outcomes = new ArrayList<>(models.size());
+		for(MLModel model : models)
+		{
+			outcomes.add(new Outcome(model, model.trainingWork()));
+		}
+		List<Outcome> large = new ArrayList<>();
+		List<Outcome> small = new ArrayList<>();
+		for(Outcome outcome : outcomes)
+		{
+			(outcome.work >= LARGE_WORK || models.size() == 1 ? large : small).add(outcome);
+		}
+
+		//The largest models first, so the small ones fill up the threads at the end
+		Comparator<Outcome> byWork = Comparator.comparingLong((Outcome o) -> o.work).reversed();
+		large.sort(byWork);
+		small.sort(byWork);
+		List<Callable<Void>> tasks = new ArrayList<>(small.size());
+		for(Outcome outcome : small)
+		{
+			tasks.add(() -> { outcome.run(); return null; });
+		}
+
+		lock.lockInterruptibly();
+		try
+		{
+			for(Outcome outcome : large)
+			{
+				outcome.run();
+			}
+			if(!tasks.isEmpty()) invokeAll(tasks, concurrency);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		return outcomes;
+	}
+
+	/**
+	 * Runs tasks on the shared pool and waits for all of them. At most <tt>concurrency</tt> tasks of the call run at the same time,
+	 * each of the threads takes the next task when its last one has finished. If the calling thread is interrupted or a task fails,
+	 * the running tasks are interrupted and the remaining ones are not started.
+	 *
+	 * @param <T> the type of the results
+	 * @param tasks the tasks
+	 * @param concurrency the number of tasks that run at the same time
+	 * @return the results in the order of the tasks
+	 * @throws InterruptedException if the calling thread has been interrupted
+	 */
+	static <T> List<T> invokeAll(List<? extends Callable<T>> tasks, int concurrency) throws InterruptedException
+	{
+		int n 					= tasks.size();
+		Object[] results 		= new Object[n];
+		AtomicInteger next 		= new AtomicInteger();
+		Set<Thread> running 	= new HashSet<>();
+		boolean[] cancelled 	= new boolean[1];
+
+		List<Future<?>> workers = new ArrayList<>();
+		for(int w = 0; w < Math.max(1, Math.min(concurrency, n)); w++)
+		{
+			workers.add(pool.submit(() ->
+			{
+				Thread thread = Thread.currentThread();
+				synchronized(running)
+				{
+					if(cancelled[0]) return null;
+					running.add(thread);
+				}
+				try
+				{
+					for(int i = next.getAndIncrement(); i < n; i = next.getAndIncrement())
+					{
+						results[i] = tasks.get(i).call();
+						synchronized(running)
+						{
+							if(cancelled[0]) break;
+						}
+					}
+					return null;
+				}
+				finally
+				{
+					//No interrupt reaches the thread after it has left the call, the pool runs other tasks on it
+					synchronized(running)
+					{
+						running.remove(thread);
+					}
+					Thread.interrupted();
+				}
+			}));
+		}
+
+		try
+		{
+			for(Future<?> worker : workers)
+			{
+				worker.get();
+			}
+		}
+		catch(ExecutionException e)
+		{
+			cancel(running, cancelled);
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+		catch(InterruptedException e)
+		{
+			cancel(running, cancelled);
+			throw e;
+		}
+
+		@SuppressWarnings("unchecked")
+		List<T> list = (List<T>) Arrays.asList(results);
+		return list;
+	}
+
+	/**
+	 * Stops a call of {@link #invokeAll(List, int)}, its running tasks are interrupted and no further task is started.
+	 *
+	 * @param running the threads that run tasks of the call
+	 * @param cancelled the flag of the call
+	 */
+	private static void cancel(Set<Thread> running, boolean[] cancelled)
+	{
+		synchronized(running)
+		{
+			cancelled[0] = true;
+			for(Thread thread : running)
+			{
+				thread.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * The training of one model and its result.
+	 */
+	public static final class Outcome
+	{
+		/** The model that is trained. */
+		final MLModel model;
+
+		/** The estimated work of the training. */
+		final long work;
+
+		/** The state of the training, one of queued, finished, failed or cancelled. */
+		volatile TrainingJobs.Status status = TrainingJobs.Status.queued;
+
+		/** The time of the training in milliseconds. */
+		volatile long millis;
+
+		/** The message of the exception if the training has failed. */
+		volatile String error;
+
+		/** The cost of the published training if it has finished, NaN otherwise. */
+		volatile double cost = Double.NaN;
+
+		/**
+		 * Instantiates a new Outcome.
+		 *
+		 * @param model the model that is trained
+		 * @param work the estimated work of the training
+		 */
+		Outcome(MLModel model, long work)
+		{
+			this.model 	= model;
+			this.work 	= work;
+		}
+
+		/**
+		 * Trains the model and records the result. An interrupted training is recorded as cancelled and the interrupt is kept.
+		 */
+		private void run()
+		{
+			long start = System.nanoTime();
+			try
+			{
+				if(Thread.currentThread().isInterrupted()) throw new InterruptedException();
+				status = TrainingJobs.Status.running;
+				model.trainExclusive();
+				cost 	= model.trainedCost();
+				status 	= TrainingJobs.Status.finished;
+			}
+			catch(InterruptedException e)
+			{
+				status = TrainingJobs.Status.cancelled;
+				Thread.currentThread().interrupt();
+			}
+			catch(Exception e)
+			{
+				error 	= e.getMessage();
+				status 	= TrainingJobs.Status.failed;
+			}
+			millis = (System.nanoTime() - start) / 1000000;
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package ml;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Iterates the sliding windows of a time series as mini-batches for the training of a recurrent network.
+ * The window starting at row <tt>i</tt> is the sequence of the rows <tt>i</tt> to <tt>i+window-1</tt>,
+ * its labels are the same sequence shifted by one row, so every step is trained to predict the row that follows it.
+ * <p>
+ * A mini-batch of consecutive windows is a strided view on the buffer of the series, no values are copied to build it.
+ * The view is only copied once into the ordering the network reads, which happens in the prefetch thread
+ * when the iterator is wrapped in an <tt>AsyncDataSetIterator</tt>.
+ *
+ * @author mwe
+ */
+public class WindowDataSetIterator implements DataSetIterator
+{
+	/** The serial version UID. */
+	private static final long serialVersionUID = 1L;
+
+	/** The series with one row per column of the model and one column per time step, in 'c' order. */
+	private final INDArray series;
+
+	/** The number of columns of the model (label and features). */
+	private final int nColumns;
+
+	/** The number of time steps of the series. */
+	private final int length;
+
+	/** The number of time steps of a window. */
+	private final int window;
+
+	/** The number of windows of a mini-batch. */
+	private final int batchSize;
+
+	/** The number of windows, every one needs the row after it for its labels. */
+	private final int nWindows;
+
+	/** The first window of the next mini-batch. */
+	private int cursor;
+
+	/** The preprocessor of the mini-batches, may be null. */
+	private DataSetPreProcessor preProcessor;
+
+	/**
+	 * Instantiates a new WindowDataSetIterator.
+	 *
+	 * @param series the series with one row per column of the model and one column per time step, it has to be in 'c' order and not be a view
+	 * @param window the number of time steps of a window
+	 * @param batchSize the number of windows of a mini-batch
+	 */
+	public WindowDataSetIterator(INDArray series, int window, int batchSize)
+	{
+		if(series.ordering() != 'c') throw new IllegalArgumentException("The series has to be in 'c' order");
+		if(window < 1 || batchSize < 1) throw new IllegalArgumentException("The window and the batch size have to be at least 1, got " + window + " and " + batchSize + ".");
+
+		this.series 	= series;
+		this.nColumns 	= series.rows();
+		this.length 	= series.columns();
+		this.window 	= window;
+		this.batchSize 	= batchSize;
+		this.nWindows 	= length - window;
+		if(nWindows < 1) throw new IllegalArgumentException("The series has " + length + " time steps, it needs at least " + (window + 1) + " for a window of " + window + ".");
+	}
+
+	/**
+	 * Gets consecutive windows as strided view on the series.
+	 * Window <tt>b</tt> starts <tt>b</tt> steps after the first one, so the batch dimension has the stride 1.
+	 *
+	 * @param first the time step the first window starts at
+	 * @param count the number of windows
+	 * @return the view with the shape [count, nColumns, window]
+	 */
+	INDArray windows(int first, int count)
+	{
+		return Nd4j.create(series.data(), new int[]{count, nColumns, window}, new int[]{1, length, 1}, first);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.nd4j.linalg.dataset.api.iterator.DataSetIterator#next(int)
+	 */
+	@Override
+	public DataSet next(int num)
+	{
+		int count = Math.min(num, nWindows - cursor);
+		if(count <= 0) throw new NoSuchElementException();
+
+		DataSet batch = new DataSet(windows(cursor, count).dup('f'), windows(cursor + 1, count).dup('f'));
+		cursor += count;
+		if(preProcessor != null) preProcessor.preProcess(batch);
+		return batch;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.Iterator#next()
+	 */
+	@Override
+	public DataSet next()
+	{
+		return next(batchSize);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.Iterator#hasNext()
+	 */
+	@Override
+	public boolean hasNext()
+	{
+		return cursor < nWindows;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.nd4j.linalg.dataset.api.iterator.DataSetIterator#totalExamples()
+	 */
+	@Override
+	public int totalExamples()
+	{
+		return nWindows;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.nd4j.linalg.dataset.api.iterator.DataSetIterator#inputColumns()
+	 */
+	@Override
+	public int inputColumns()
+	{
+		return nColumns;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.nd4j.linalg.dataset.api.iterator.DataSetIterator#totalOutcomes()
+	 */
+	@Override
+	public int totalOutcomes()
+	{
+		return nColumns;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.nd4j.linalg.dataset.api.iterator.DataSetIterator#resetSupported()
+	 */
+	@Override
+	public boolean resetSupported()
+	{
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.nd4j.linalg.dataset.api.iterator.DataSetIterator#asyncSupported()
+	 */
+	@Override
+	public boolean asyncSupported()
+	{
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.nd4j.linalg.dataset.api.iterator.DataSetIterator#reset()
+	 */
+	@Override
+	public void reset()
+	{
+		cursor = 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.nd4j.linalg.dataset.api.iterator.DataSetIterator#batch()
+	 */
+	@Override
+	public int batch()
+	{
+		return batchSize;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.nd4j.linalg.dataset.api.iterator.DataSetIterator#cursor()
+	 */
+	@Override
+	public int cursor()
+	{
+		return cursor;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.nd4j.linalg.dataset.api.iterator.DataSetIterator#numExamples()
+	 */
+	@Override
+	public int numExamples()
+	{
+		return nWindows;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.nd4j.linalg.dataset.api.iterator.DataSetIterator#setPreProcessor(org.nd4j.linalg.dataset.api.DataSetPreProcessor)
+	 */
+	@Override
+	public void setPreProcessor(DataSetPreProcessor preProcessor)
+	{
+		this.preProcessor = preProcessor;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.nd4j.linalg.dataset.api.iterator.DataSetIterator#getPreProcessor()
+	 */
+	@Override
+	public DataSetPreProcessor getPreProcessor()
+	{
+		return preProcessor;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.nd4j.linalg.dataset.api.iterator.DataSetIterator#getLabels()
+	 */
+	@Override
+	public List<String> getLabels()
+	{
+		return null;
+	}
+}
@@ -1,5 +1,12 @@
 package ml;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -19,9 +26,11 @@ public class Dl4jRNNTest
         db = new TestGraphDatabaseFactory().newImpermanentDatabase();
         Procedures procedures = ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(Procedures.class);
         procedures.registerProcedure(ML.class);
+        //One row per day from 20170101 to 20170629
+        long firstDay = DateEncoder.toEpochDay(20170101);
         for(int i = 1; i < 181; i++)
         {
-        	db.execute("CREATE (n:User {date: '"+i+"', count: '"+(100 + i*50)+"'})");
+        	db.execute("CREATE (n:User {date: '"+DateEncoder.toDate(firstDay + i - 1)+"', count: '"+(100 + i*50)+"'})");
         }
         for(int i = 1; i < 10; i++)
         {
@@ -61,4 +70,83 @@ public class Dl4jRNNTest
 //        result = db.execute("CALL ml.remove('user')");
 //        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
     }
+    
+    @Test
+    public void forecast() throws Exception 
+    {
+    	Result result;
+    	
+    	result = db.execute("CALL ml.create('user', {date: 'numeric'}, {alpha: 0.2, epochs: 5, hidden: 10, window: 30, batchSize: 16}, null, true, 'dl4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("MATCH (n:User) CALL ml.add('user', {date: n.date}, n.count) YIELD result RETURN count(*)");
+        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.train('user')");
+        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+        
+        //The trained rows end at 20170629, the forecast starts with the next day and continues into July
+        Map<Long, Object> first = new HashMap<>();
+        result = db.execute("CALL ml.predict('user', {start: 20170619, end: 20170709})");
+        while(result.hasNext())
+        {
+        	@SuppressWarnings("unchecked")
+        	Map<String, Object> prediction = (Map<String, Object>) result.next().get("result");
+        	first.put((Long) prediction.get("date"), prediction.get("prediction"));
+        }
+        System.out.println("predictResult = " + first);
+        assertEquals(10, first.size());
+        assertTrue(first.containsKey(20170630L));
+        assertTrue(first.containsKey(20170701L));
+        assertFalse(first.containsKey(20170631L));
+        
+        //A longer forecast continues the cached one, the steps that have been computed do not change
+        int count = 0;
+        result = db.execute("CALL ml.predict('user', {start: 20170704, end: 20170719})");
+        while(result.hasNext())
+        {
+        	@SuppressWarnings("unchecked")
+        	Map<String, Object> prediction = (Map<String, Object>) result.next().get("result");
+        	Long date = (Long) prediction.get("date");
+        	if(first.containsKey(date)) assertEquals(first.get(date), prediction.get("prediction"));
+        	count++;
+        }
+        assertEquals(16, count);
+        
+        //The rows of a forecast are counted as they are streamed
+        assertEquals(26L, MLModel.getModel("user").stats.getRowsPredicted());
+        
+        result = db.execute("CALL ml.info('user')");
+        System.out.println("infoResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.remove('user')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+    }
+    
+    @Test
+    public void earlyStopping() throws Exception 
+    {
+    	Result result;
+    	
+    	result = db.execute("CALL ml.create('user', {date: 'numeric'}, {alpha: 0.2, epochs: 200, hidden: 10, window: 20, validation: 0.25, patience: 3}, null, true, 'dl4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("MATCH (n:User) CALL ml.add('user', {date: n.date}, n.count) YIELD result RETURN count(*)");
+        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.train('user')");
+        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+        
+        //The network keeps the parameters of the best validation score, the training stops at most patience evaluations after it
+        Dl4jRNN model = (Dl4jRNN) MLModel.models.get("user");
+        System.out.println("bestEpoch = " + model.bestEpoch + ", bestScore = " + model.bestScore + ", epochs = " + model.progress);
+        assertTrue(model.bestEpoch >= 1);
+        assertTrue(model.progress <= Math.min(200, model.bestEpoch + 3));
+        
+        result = db.execute("CALL ml.predict('user', {start: 20170630, end: 20170704})");
+        System.out.println("predictResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.remove('user')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+    }
 }
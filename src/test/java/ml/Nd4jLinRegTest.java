@@ -1,5 +1,23 @@
 package ml;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -21,6 +39,9 @@ public class Nd4jLinRegTest
         db = new TestGraphDatabaseFactory().newImpermanentDatabase();
         Procedures procedures = ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(Procedures.class);
         procedures.registerProcedure(ML.class);
+        procedures.registerAggregationFunction(ML.class);
+        procedures.registerFunction(ML.class);
+        procedures.registerProcedure(MLNodes.class);
         for(int i = 1; i < 10; i++)
         {
         	db.execute("CREATE (n:User {date: '2017050"+i+"', count: '"+(450000d + i * 500)+"'})");
@@ -134,4 +155,734 @@ public class Nd4jLinRegTest
 				+ "RETURN  createresult, addresult, inforesult, trainresult, predictresult, removeresult");
         System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
     }
+    
+    @Test
+    public void collect() throws Exception 
+    {
+    	Result result;
+    	
+    	result = db.execute("CALL ml.create('vehicle', {date: 'numeric'}, {alpha: 0.1, iter: 300, theta: [0.0, 0.0]}, null, true, 'nd4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("MATCH (n:Vehicle) RETURN ml.collect('vehicle', {date: n.date}, n.count) AS added");
+        assertEquals(9L, result.columnAs("added").next());
+        assertEquals(9, MLModel.getModel("vehicle").nRows.get());
+        
+        result = db.execute("CALL ml.train('vehicle')");
+        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.predict('vehicle', {start: 20170510, end: 20170520})");
+        System.out.println("predictResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.remove('vehicle')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+    }
+    
+    @Test
+    public void addFromLabel() throws Exception 
+    {
+    	Result result;
+    	
+    	result = db.execute("CALL ml.create('user', {date: 'numeric'}, {alpha: 0.1, iter: 300, theta: [0.0, 0.0]}, null, true, 'nd4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.addFromLabel('user', 'User', {date: 'date'}, 'count')");
+        System.out.println("addFromLabelResult.resultAsString() = \n" + result.resultAsString());
+        assertEquals(9, MLModel.getModel("user").nRows.get());
+        
+        result = db.execute("CALL ml.train('user')");
+        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.remove('user')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+    }
+    
+    @Test
+    public void incremental() throws Exception 
+    {
+    	Result result;
+    	
+    	result = db.execute("CALL ml.create('user', {date: 'numeric'}, {theta: [0.0, 0.0], incremental: true}, null, false, 'nd4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("MATCH (n:User) RETURN ml.collect('user', {date: n.date}, n.count) AS added");
+        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.train('user')");
+        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+        
+        //The user counts are exactly linear, so the closed form solution has to hit them
+        result = db.execute("CALL ml.predict('user', {date: 20170510})");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> prediction = (Map<String, Object>) result.next().get("result");
+        assertEquals(455000L, prediction.get("prediction"));
+        
+        result = db.execute("CALL ml.remove('user')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+    }
+    
+    @Test
+    public void invalidDate() throws Exception 
+    {
+    	Result result;
+    	
+    	result = db.execute("CALL ml.create('user', {date: 'numeric'}, {theta: [0.0, 0.0], incremental: true}, null, false, 'nd4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("MATCH (n:User) RETURN ml.collect('user', {date: n.date}, n.count) AS added");
+        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+        
+        //A row with an invalid date is rejected before it is stored
+        MLModel model = MLModel.getModel("user");
+        try
+        {
+        	model.add(Collections.singletonMap("date", 20171301), 455000);
+        	fail("The invalid date has been added");
+        }
+        catch(IllegalArgumentException e)
+        {
+        	System.out.println(e.getMessage());
+        }
+        ColumnStore batch = new ColumnStore(2);
+        batch.add(new double[]{455500, 20170511});
+        batch.add(new double[]{456000, 20171301});
+        try
+        {
+        	model.addAll(batch);
+        	fail("The batch with the invalid date has been added");
+        }
+        catch(IllegalArgumentException e)
+        {
+        	System.out.println(e.getMessage());
+        }
+        assertEquals(9, model.nRows.get());
+        
+        //The rows and the statistics still match, so the model is trained and hits the linear counts
+        result = db.execute("CALL ml.train('user')");
+        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+        assertEquals(MLModel.State.trained, model.state);
+        assertEquals(9, model.rows.size());
+        
+        result = db.execute("CALL ml.predict('user', {date: 20170510})");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> prediction = (Map<String, Object>) result.next().get("result");
+        assertEquals(455000L, prediction.get("prediction"));
+        
+        result = db.execute("CALL ml.remove('user')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+    }
+    
+    @Test
+    public void dates() throws Exception 
+    {
+    	//Days that do not exist in their month are rejected instead of moved to the next month
+    	for(double date : new double[]{20170230, 20170229, 20170431, 20170631, 20170931, 20171131, 21000229, 20170132, 20171301})
+    	{
+    		try
+    		{
+    			DateEncoder.toEpochDay(date);
+    			fail("The date " + date + " has been accepted");
+    		}
+    		catch(IllegalArgumentException e)
+    		{
+    			System.out.println(e.getMessage());
+    		}
+    	}
+    	
+    	//Leap days and the last days of the months are converted back to themselves
+    	for(long date : new long[]{20160229, 20000229, 20170228, 20170430, 20170131, 20171231})
+    	{
+    		assertEquals(date, DateEncoder.toDate(DateEncoder.toEpochDay(date)));
+    	}
+    	assertEquals(DateEncoder.toEpochDay(20170301), DateEncoder.toEpochDay(20170228) + 1);
+    	
+    	//The first feature is always encoded as date, so it can not be a class
+    	try
+    	{
+    		db.execute("CALL ml.create('user', {date: 'class'}, {theta: [0.0, 0.0]}, null, false, 'nd4j')").resultAsString();
+    		fail("The model has been created with a class date");
+    	}
+    	catch(RuntimeException e)
+    	{
+    		System.out.println(e.getMessage());
+    	}
+    	assertFalse(MLModel.models.containsKey("user"));
+    }
+    
+    @Test
+    public void solvers() throws Exception 
+    {
+    	Result result;
+    	
+    	for(String solver : new String[]{"cholesky", "qr", "auto"})
+    	{
+	    	result = db.execute("CALL ml.create('user', {date: 'numeric'}, {theta: [0.0, 0.0], solver: '"+solver+"'}, null, false, 'nd4j')");
+	        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+	        
+	        result = db.execute("MATCH (n:User) RETURN ml.collect('user', {date: n.date}, n.count) AS added");
+	        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+	        
+	        result = db.execute("CALL ml.train('user')");
+	        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+	        
+	        result = db.execute("CALL ml.info('user')");
+	        System.out.println("infoResult.resultAsString() = \n" + result.resultAsString());
+	        
+	        result = db.execute("CALL ml.predict('user', {date: 20170510})");
+	        @SuppressWarnings("unchecked")
+	        Map<String, Object> prediction = (Map<String, Object>) result.next().get("result");
+	        assertEquals(455000L, prediction.get("prediction"));
+	        
+	        result = db.execute("CALL ml.remove('user')");
+	        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+    	}
+    }
+    
+    @Test
+    public void sgd() throws Exception 
+    {
+    	Result result;
+    	
+    	result = db.execute("CALL ml.create('exact', {date: 'numeric'}, {theta: [0.0, 0.0], solver: 'cholesky'}, null, false, 'nd4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        result = db.execute("MATCH (n:User) RETURN ml.collect('exact', {date: n.date}, n.count) AS added");
+        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+        result = db.execute("CALL ml.train('exact')");
+        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+        double[] exact = ((Nd4jLinReg) MLModel.getModel("exact")).coefficients.thetaValues;
+        
+        //Two shards of single rows, averaged after every epoch or updating the same theta values
+        for(boolean hogwild : new boolean[]{false, true})
+        {
+	    	result = db.execute("CALL ml.create('user', {date: 'numeric'}, {alpha: 0.05, iter: 5000, theta: [0.0, 0.0], solver: 'sgd', batchSize: 1, parallelism: 2, hogwild: "+hogwild+", tolerance: 0.0}, null, false, 'nd4j')");
+	        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+	        
+	        result = db.execute("MATCH (n:User) RETURN ml.collect('user', {date: n.date}, n.count) AS added");
+	        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+	        
+	        result = db.execute("CALL ml.train('user')");
+	        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+	        
+	        result = db.execute("CALL ml.info('user')");
+	        System.out.println("infoResult.resultAsString() = \n" + result.resultAsString());
+	        
+	        double[] theta = ((Nd4jLinReg) MLModel.getModel("user")).coefficients.thetaValues;
+	        for(int j = 0; j < exact.length; j++)
+	        {
+	        	assertEquals(exact[j], theta[j], 1e-3 * Math.abs(exact[j]) + 1e-3);
+	        }
+	        
+	        result = db.execute("CALL ml.remove('user')");
+	        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+        }
+        
+        result = db.execute("CALL ml.remove('exact')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+    }
+    
+    @Test
+    public void convergence() throws Exception 
+    {
+    	Result result;
+    	
+    	result = db.execute("CALL ml.create('noisy', {date: 'numeric'}, {alpha: 0.1, iter: 100000, theta: [0.0, 0.0], tolerance: 1e-6, costEvery: 5, costHistory: 3}, null, false, 'nd4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        
+        //The labels are not exactly linear, so the cost converges to a value above zero
+        result = db.execute("UNWIND range(1, 20) AS i CALL ml.add('noisy', {date: 20170500 + i}, 100 + i * 10 + (i % 3) * 7) YIELD result RETURN count(result) AS added");
+        assertEquals(20L, result.columnAs("added").next());
+        
+        result = db.execute("CALL ml.train('noisy')");
+        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.info('noisy')");
+        System.out.println("infoResult.resultAsString() = \n" + result.resultAsString());
+        
+        //Stopped by the tolerance at a cost evaluation, with only the last costs kept
+        Nd4jLinReg model = (Nd4jLinReg) MLModel.getModel("noisy");
+        assertTrue(model.iterations < 100000);
+        assertEquals(0, model.iterations % 5);
+        assertTrue(model.costHistory.size() > 0 && model.costHistory.size() <= 3);
+        
+        List<Double> costs = new ArrayList<>(model.costHistory);
+        double last 	= costs.get(costs.size() - 1);
+        double previous = costs.size() > 1 ? costs.get(costs.size() - 2) : Double.NaN;
+        assertTrue(costs.size() == 1 || Math.abs(previous - last) <= 1e-6 * Math.abs(previous));
+        
+        result = db.execute("CALL ml.remove('noisy')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+    }
+    
+    @Test
+    public void trainAsync() throws Exception 
+    {
+    	Result result;
+    	
+    	result = db.execute("CALL ml.create('vehicle', {date: 'numeric'}, {alpha: 0.1, iter: 300, theta: [0.0, 0.0]}, null, true, 'nd4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("MATCH (n:Vehicle) RETURN ml.collect('vehicle', {date: n.date}, n.count) AS added");
+        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.trainAsync('vehicle') YIELD jobId RETURN jobId");
+        long jobId = (Long) result.columnAs("jobId").next();
+        
+        for(int i = 0; i < 100 && !TrainingJobs.getJob(jobId).isFinished(); i++)
+        {
+        	Thread.sleep(100);
+        }
+        result = db.execute("CALL ml.jobs()");
+        System.out.println("jobsResult.resultAsString() = \n" + result.resultAsString());
+        assertEquals(TrainingJobs.Status.finished, TrainingJobs.getJob(jobId).status);
+        
+        result = db.execute("CALL ml.predict('vehicle', {start: 20170510, end: 20170520})");
+        System.out.println("predictResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.remove('vehicle')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+    }
+    
+    @Test
+    public void snapshot() throws Exception 
+    {
+    	Result result;
+    	File directory = Files.createTempDirectory("ml-models").toFile();
+    	ModelSnapshots.configure(directory, null);
+    	try
+    	{
+	    	result = db.execute("CALL ml.create('user', {date: 'numeric'}, {theta: [0.0, 0.0], incremental: true}, null, false, 'nd4j')");
+	        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+	        
+	        result = db.execute("MATCH (n:User) RETURN ml.collect('user', {date: n.date}, n.count) AS added");
+	        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+	        
+	        result = db.execute("CALL ml.train('user')");
+	        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+	        
+	        //Forget the model like a restart of the database would
+	        MLModel.models.remove("user");
+	        ModelSnapshots.configure(directory, null);
+	        
+	        result = db.execute("CALL ml.models()");
+	        System.out.println("modelsResult.resultAsString() = \n" + result.resultAsString());
+	        
+	        result = db.execute("CALL ml.predict('user', {date: 20170510})");
+	        @SuppressWarnings("unchecked")
+	        Map<String, Object> prediction = (Map<String, Object>) result.next().get("result");
+	        assertEquals(455000L, prediction.get("prediction"));
+	        
+	        result = db.execute("CALL ml.remove('user')");
+	        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+	        assertEquals(0, directory.list().length);
+    	}
+    	finally
+    	{
+    		ModelSnapshots.disable();
+    		directory.delete();
+    	}
+    }
+    
+    @Test
+    public void concurrentAdd() throws Exception 
+    {
+    	Result result;
+    	
+    	result = db.execute("CALL ml.create('user', {date: 'numeric'}, {theta: [0.0, 0.0], incremental: true}, null, false, 'nd4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        
+        //Several loaders add the same rows to one model at once
+        MLModel model = MLModel.getModel("user");
+        List<Thread> loaders = new ArrayList<>();
+        for(int t = 0; t < 8; t++)
+        {
+        	loaders.add(new Thread(() -> {
+        		for(int i = 1; i < 10; i++)
+        		{
+        			model.add(Collections.singletonMap("date", "2017050"+i), 450000d + i * 500);
+        		}
+        	}));
+        }
+        for(Thread loader : loaders) loader.start();
+        for(Thread loader : loaders) loader.join();
+        assertEquals(72, model.nRows.get());
+        
+        result = db.execute("CALL ml.train('user')");
+        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+        assertEquals(72, model.rows.size());
+        
+        result = db.execute("CALL ml.predict('user', {date: 20170510})");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> prediction = (Map<String, Object>) result.next().get("result");
+        assertEquals(455000L, prediction.get("prediction"));
+        
+        result = db.execute("CALL ml.remove('user')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+    }
+    
+    @Test
+    public void unseenClass() throws Exception 
+    {
+    	Result result;
+    	
+    	result = db.execute("CALL ml.create('user', {date: 'numeric', source: 'class'}, {theta: [0.0, 0.0, 0.0], solver: 'qr'}, null, false, 'nd4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("MATCH (n:User) RETURN ml.collect('user', {date: n.date, source: 'web'}, n.count) AS added");
+        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.train('user')");
+        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+        
+        //A value that has not been trained upon is neutral and does not change the dictionary
+        MLModel model = MLModel.getModel("user");
+        int source = model.getFeatureNames().indexOf("source");
+        result = db.execute("CALL ml.predict('user', {date: 20170510, source: 'app'})");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> prediction = (Map<String, Object>) result.next().get("result");
+        assertEquals(455000L, prediction.get("prediction"));
+        assertEquals(1, model.classAttributes[source].frozen.size());
+        assertEquals(1, model.classAttributes[source].valuesMap.size());
+        
+        //A value added after the training stays unseen after a snapshot has been restored
+        result = db.execute("CALL ml.add('user', {date: 20170510, source: 'app'}, 455000)");
+        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ModelSnapshots.write(model, new DataOutputStream(bytes));
+        MLModel.models.remove("user");
+        MLModel restored = ModelSnapshots.read(ByteBuffer.wrap(bytes.toByteArray()));
+        assertEquals(1, restored.classAttributes[source].frozen.size());
+        assertEquals(2, restored.classAttributes[source].valuesMap.size());
+        assertEquals(FrozenDictionary.UNSEEN, restored.lookup(source, "app"));
+        
+        result = db.execute("CALL ml.remove('user')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+    }
+    
+    @Test
+    public void score() throws Exception 
+    {
+    	Result result;
+    	
+    	result = db.execute("CALL ml.create('user', {date: 'numeric'}, {theta: [0.0, 0.0], solver: 'cholesky'}, null, false, 'nd4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("MATCH (n:User) RETURN ml.collect('user', {date: n.date}, n.count) AS added");
+        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.train('user')");
+        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+        
+        //Every node is scored with its own date, the counts are exactly linear
+        result = db.execute("MATCH (n:User) RETURN toFloat(n.count) AS count, ml.score('user', {date: n.date}) AS score");
+        while(result.hasNext())
+        {
+        	Map<String, Object> row = result.next();
+        	assertEquals((Double) row.get("count"), (Double) row.get("score"), 1e-3);
+        }
+        
+        result = db.execute("RETURN ml.score('user', {date: 20170510}) AS score");
+        assertEquals(455000.0d, (Double) result.next().get("score"), 1e-3);
+        
+        result = db.execute("CALL ml.remove('user')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+    }
+    
+    @Test
+    public void predictAndWrite() throws Exception 
+    {
+    	Result result;
+    	
+    	result = db.execute("CALL ml.create('user', {date: 'numeric'}, {theta: [0.0, 0.0], solver: 'qr'}, null, false, 'nd4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.addFromLabel('user', 'User', {date: 'date'}, 'count')");
+        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.train('user')");
+        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+        
+        //Small batches, so the nodes are written in several transactions
+        result = db.execute("CALL ml.predictAndWrite('user', 'User', {date: 'date'}, 'predicted', {batchSize: 4, concurrency: 2})");
+        Map<String, Object> counts = result.next();
+        System.out.println("writeResult = " + counts);
+        assertEquals(9L, counts.get("written"));
+        assertEquals(0L, counts.get("skipped"));
+        
+        result = db.execute("MATCH (n:User) RETURN toFloat(n.count) AS count, n.predicted AS predicted");
+        while(result.hasNext())
+        {
+        	Map<String, Object> row = result.next();
+        	assertEquals((Double) row.get("count"), (Double) row.get("predicted"), 1e-3);
+        }
+        
+        result = db.execute("CALL ml.remove('user')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+    }
+    
+    @Test
+    public void stats() throws Exception 
+    {
+    	Result result;
+    	
+    	result = db.execute("CALL ml.create('user', {date: 'numeric'}, {theta: [0.0, 0.0], alpha: 0.1, iter: 50, tolerance: 0.0}, null, false, 'nd4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("MATCH (n:User) CALL ml.add('user', {date: n.date}, n.count) YIELD result RETURN result");
+        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.train('user')");
+        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.predict('user', {date: [20170510, 20170511, 20170512]})");
+        System.out.println("predictResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("RETURN ml.score('user', {date: 20170510}) AS score");
+        System.out.println("scoreResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.stats('user')");
+        Map<String, Object> stats = result.next();
+        System.out.println("statsResult = " + stats);
+        assertEquals("user", stats.get("model"));
+        assertEquals(9L, stats.get("rowsAdded"));
+        assertEquals(1L, stats.get("trainings"));
+        assertEquals(50L, stats.get("iterations"));
+        assertEquals(2L, stats.get("predictCalls"));
+        assertEquals(4L, stats.get("rowsPredicted"));
+        assertTrue((Double) stats.get("predictP99Millis") >= (Double) stats.get("predictP50Millis"));
+        assertTrue((Long) stats.get("heapBytes") > 0);
+        assertEquals(3L * 2 * Double.BYTES, stats.get("offHeapBytes"));
+        
+        result = db.execute("CALL ml.stats()");
+        System.out.println("statsResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.remove('user')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+    }
+    
+    @Test
+    public void memoryBudget() throws Exception 
+    {
+    	Result result;
+    	File directory = Files.createTempDirectory("ml-models").toFile();
+    	ModelSnapshots.configure(directory, null);
+    	MemoryBudget.configure(Collections.singletonMap(MemoryBudget.BUDGET_SETTING, "1"));
+    	MemoryBudget.dropRows = true;
+    	try
+    	{
+	    	result = db.execute("CALL ml.create('user', {date: 'numeric'}, {theta: [0.0, 0.0], solver: 'cholesky'}, null, false, 'nd4j')");
+	        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+	        
+	        result = db.execute("CALL ml.create('vehicle', {date: 'numeric'}, {theta: [0.0, 0.0], solver: 'cholesky'}, null, false, 'nd4j')");
+	        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+	        
+	        result = db.execute("CALL ml.addFromLabel('user', 'User', {date: 'date'}, 'count')");
+	        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+	        
+	        result = db.execute("CALL ml.addFromLabel('vehicle', 'Vehicle', {date: 'date'}, 'count')");
+	        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+	        
+	        result = db.execute("CALL ml.train('user')");
+	        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+	        MLModel evictedUser = MLModel.models.get("user");
+	        
+	        //The budget is exceeded by every model, training the second one evicts the least recently used first one
+	        result = db.execute("CALL ml.train('vehicle')");
+	        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+	        assertFalse(MLModel.models.containsKey("user"));
+	        assertTrue(ModelSnapshots.exists("user"));
+	        assertEquals(0, MLModel.models.get("vehicle").nRows.get());
+	        
+	        //Using the evicted model restores it and evicts the other one
+	        result = db.execute("CALL ml.predict('user', {date: 20170510})");
+	        @SuppressWarnings("unchecked")
+	        Map<String, Object> prediction = (Map<String, Object>) result.next().get("result");
+	        assertEquals(455000L, prediction.get("prediction"));
+	        assertTrue(MLModel.models.containsKey("user"));
+	        assertFalse(MLModel.models.containsKey("vehicle"));
+	        
+	        //Rows added to the evicted instance go to the restored one, encoded rows fail so they can be added again
+	        MLModel restoredUser = MLModel.models.get("user");
+	        assertTrue(restoredUser != evictedUser);
+	        evictedUser.add(Collections.singletonMap("date", 20170511), 455500);
+	        assertEquals(1, restoredUser.nRows.get());
+	        assertEquals(0, evictedUser.nRows.get());
+	        ColumnStore batch = new ColumnStore(2);
+	        batch.add(new double[]{455500, 20170511});
+	        try
+	        {
+	        	evictedUser.addAll(batch);
+	        	fail("The rows have been added to the evicted instance");
+	        }
+	        catch(IllegalArgumentException e)
+	        {
+	        	System.out.println(e.getMessage());
+	        }
+	        assertEquals(1, restoredUser.nRows.get());
+	        
+	        result = db.execute("CALL ml.models()");
+	        System.out.println("modelsResult.resultAsString() = \n" + result.resultAsString());
+	        
+	        result = db.execute("CALL ml.remove('user')");
+	        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+	        
+	        result = db.execute("CALL ml.remove('vehicle')");
+	        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+	        assertEquals(0, directory.list().length);
+    	}
+    	finally
+    	{
+    		MemoryBudget.disable();
+    		ModelSnapshots.disable();
+    		directory.delete();
+    	}
+    }
+    
+    @Test
+    public void trainAll() throws Exception 
+    {
+    	Result result;
+    	
+    	result = db.execute("CALL ml.create('user', {date: 'numeric'}, {theta: [0.0, 0.0], alpha: 0.1, iter: 50, tolerance: 0.0}, null, false, 'nd4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.create('vehicle', {date: 'numeric'}, {theta: [0.0, 0.0], solver: 'cholesky'}, null, false, 'nd4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.create('empty', {date: 'numeric'}, {theta: [0.0, 0.0], alpha: 0.1, iter: 50}, null, false, 'nd4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.addFromLabel('user', 'User', {date: 'date'}, 'count')");
+        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.addFromLabel('vehicle', 'Vehicle', {date: 'date'}, 'count')");
+        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+        
+        //The model without rows fails, the others are trained anyway
+        Map<String, String> status = new HashMap<>();
+        result = db.execute("CALL ml.trainAll(['user', 'vehicle', 'empty'], {concurrency: 2})");
+        while(result.hasNext())
+        {
+        	Map<String, Object> row = result.next();
+        	System.out.println("trainAllResult = " + row);
+        	status.put((String) row.get("model"), (String) row.get("status"));
+        }
+        assertEquals("finished", status.get("user"));
+        assertEquals("finished", status.get("vehicle"));
+        assertEquals("failed", status.get("empty"));
+        assertEquals(MLModel.State.trained, MLModel.getModel("user").state);
+        assertEquals(MLModel.State.trained, MLModel.getModel("vehicle").state);
+        
+        result = db.execute("CALL ml.remove('user')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.remove('vehicle')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.remove('empty')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+    }
+    
+    @Test
+    public void tune() throws Exception 
+    {
+    	Result result;
+    	
+    	result = db.execute("CALL ml.create('user', {date: 'numeric'}, {theta: [0.0, 0.0], alpha: 0.001, iter: 10}, null, false, 'nd4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.addFromLabel('user', 'User', {date: 'date'}, 'count')");
+        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+        
+        //The tuning does not continue from the theta values of this training
+        result = db.execute("CALL ml.train('user')");
+        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+        
+        //Every combination is scored on the same held out rows, the model keeps the best one
+        int trials 					= 0;
+        Map<String, Object> best 	= null;
+        result = db.execute("CALL ml.tune('user', {alpha: [0.01, 0.1, 1], iter: [50, 300]}, {strategy: 'grid', concurrency: 2, validation: 0.3, seed: 42})");
+        while(result.hasNext())
+        {
+        	Map<String, Object> row = result.next();
+        	System.out.println("tuneResult = " + row);
+        	trials++;
+        	if((Boolean) row.get("best"))
+        	{
+        		@SuppressWarnings("unchecked")
+        		Map<String, Object> params = (Map<String, Object>) row.get("params");
+        		best = params;
+        	}
+        }
+        assertEquals(6, trials);
+        assertTrue(best != null);
+        
+        Nd4jLinReg model = (Nd4jLinReg) MLModel.getModel("user");
+        assertEquals(MLModel.State.trained, model.state);
+        assertEquals(((Number) best.get("alpha")).doubleValue(), (double) model.params.get("alpha"), 0.0d);
+        assertEquals(((Number) best.get("iter")).longValue(), (long) model.params.get("iter"));
+        
+        //The installed training starts from the initial theta values like the best candidate, so it equals a new model with its hyperparameters
+        result = db.execute("CALL ml.create('reference', {date: 'numeric'}, {theta: [0.0, 0.0], alpha: " + best.get("alpha") + ", iter: " + best.get("iter") + "}, null, false, 'nd4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        result = db.execute("CALL ml.addFromLabel('reference', 'User', {date: 'date'}, 'count')");
+        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+        result = db.execute("CALL ml.train('reference')");
+        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+        Nd4jLinReg reference = (Nd4jLinReg) MLModel.getModel("reference");
+        assertEquals(reference.trainedCost(), model.trainedCost(), 1e-9d);
+        assertArrayEquals(reference.coefficients.thetaValues, model.coefficients.thetaValues, 1e-9d);
+        result = db.execute("CALL ml.remove('reference')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.tune('user', {alpha: {min: 0.001, max: 1.0, log: true}}, {strategy: 'random', trials: 4, seed: 7})");
+        System.out.println("tuneResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.remove('user')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+    }
+    
+    @Test
+    public void evaluate() throws Exception 
+    {
+    	Result result;
+    	
+    	result = db.execute("CALL ml.create('user', {date: 'numeric'}, {theta: [0.0, 0.0], solver: 'cholesky'}, null, false, 'nd4j')");
+        System.out.println("createResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.addFromLabel('user', 'User', {date: 'date'}, 'count')");
+        System.out.println("addResult.resultAsString() = \n" + result.resultAsString());
+        
+        result = db.execute("CALL ml.train('user')");
+        System.out.println("trainResult.resultAsString() = \n" + result.resultAsString());
+        double[] theta = ((Nd4jLinReg) MLModel.getModel("user")).coefficients.thetaValues;
+        
+        //Every row is predicted once, the overall errors are computed over all of them
+        long rows 	= 0;
+        int folds 	= 0;
+        result = db.execute("CALL ml.evaluate('user', {folds: 3, concurrency: 2, seed: 42})");
+        while(result.hasNext())
+        {
+        	Map<String, Object> row = result.next();
+        	System.out.println("evaluateResult = " + row);
+        	if("overall".equals(row.get("fold")))
+        	{
+        		assertEquals(rows, row.get("rows"));
+        		assertTrue((Double) row.get("mse") >= 0);
+        		assertTrue((Double) row.get("mae") >= 0);
+        	}
+        	else
+        	{
+        		rows += (Long) row.get("rows");
+        		folds++;
+        	}
+        }
+        assertEquals(3, folds);
+        assertEquals(9L, rows);
+        
+        //The trained model is not changed
+        assertTrue(Arrays.equals(theta, ((Nd4jLinReg) MLModel.getModel("user")).coefficients.thetaValues));
+        
+        result = db.execute("CALL ml.remove('user')");
+        System.out.println("removeResult.resultAsString() = \n" + result.resultAsString());
+    }
 }